@@ -0,0 +1,237 @@
+package com.axinom.drm.sample.loadtest;
+
+import android.util.Base64;
+import android.util.Log;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Minimal HTTP/1.1 license server stand-in on the loopback interface, for load testing the
+ * request layer without real license servers. POST requests are answered with random license
+ * bytes after a configurable latency; a share of requests fails with 503, and requests without a
+ * well-formed X-AxDRM-Message are rejected with 401. Connections are kept alive.
+ */
+public class FakeLicenseServer {
+
+    private static final String TAG = FakeLicenseServer.class.getSimpleName();
+    private static final String LICENSE_PATH = "/license";
+
+    /**
+     * Server behaviour
+     */
+    public static class Config {
+        public long latencyMs = 50;
+        public long latencyJitterMs = 25;
+        // Share of requests answered with 503, between 0 and 1
+        public double errorRate = 0.01;
+        public int responseBytes = 2048;
+        public boolean validateDrmMessage = true;
+    }
+
+    private final Config mConfig;
+    private final Random mRandom = new Random();
+    private final ExecutorService mConnectionExecutor = Executors.newCachedThreadPool();
+    private ServerSocket mServerSocket;
+    private volatile boolean mRunning;
+
+    private final AtomicLong mRequestCount = new AtomicLong();
+    private final AtomicLong mInjectedErrorCount = new AtomicLong();
+    private final AtomicLong mRejectedCount = new AtomicLong();
+
+    public FakeLicenseServer(Config config) {
+        mConfig = config;
+    }
+
+    public synchronized void start() throws IOException {
+        if (mRunning) return;
+        mServerSocket = new ServerSocket(0, 1024, InetAddress.getByName("127.0.0.1"));
+        mRunning = true;
+        Thread acceptThread = new Thread(this::acceptConnections, "FakeLicenseServer");
+        acceptThread.setDaemon(true);
+        acceptThread.start();
+        Log.d(TAG, "Listening on " + getLicenseUrl());
+    }
+
+    public synchronized void stop() {
+        mRunning = false;
+        try {
+            if (mServerSocket != null) mServerSocket.close();
+        } catch (IOException e) {
+            // ignore, server is shutting down
+        }
+        mConnectionExecutor.shutdownNow();
+    }
+
+    public String getLicenseUrl() {
+        return "http://127.0.0.1:" + mServerSocket.getLocalPort() + LICENSE_PATH;
+    }
+
+    public String getStats() {
+        return "requests=" + mRequestCount.get()
+                + ", injectedErrors=" + mInjectedErrorCount.get()
+                + ", rejected=" + mRejectedCount.get();
+    }
+
+    private void acceptConnections() {
+        while (mRunning) {
+            try {
+                Socket socket = mServerSocket.accept();
+                mConnectionExecutor.execute(() -> serveConnection(socket));
+            } catch (IOException e) {
+                if (mRunning) Log.w(TAG, "Accept failed: " + e);
+            }
+        }
+    }
+
+    private void serveConnection(Socket socket) {
+        try (Socket connection = socket) {
+            InputStream in = new BufferedInputStream(connection.getInputStream());
+            OutputStream out = connection.getOutputStream();
+            while (mRunning) {
+                String requestLine = readLine(in);
+                if (requestLine == null || requestLine.isEmpty()) return;
+                Map<String, String> headers = readHeaders(in);
+                int contentLength = headers.containsKey("content-length")
+                        ? Integer.parseInt(headers.get("content-length")) : 0;
+                readBody(in, contentLength);
+                boolean keepAlive = !"close".equalsIgnoreCase(headers.get("connection"));
+                respond(out, requestLine, headers, keepAlive);
+                if (!keepAlive) return;
+            }
+        } catch (IOException | RuntimeException e) {
+            if (mRunning) Log.d(TAG, "Connection closed: " + e);
+        }
+    }
+
+    private void respond(OutputStream out, String requestLine, Map<String, String> headers,
+                         boolean keepAlive) throws IOException {
+        String[] parts = requestLine.split(" ");
+        String method = parts[0];
+        String path = parts.length > 1 ? parts[1] : "/";
+        if ("HEAD".equals(method)) {
+            writeResponse(out, 200, new byte[0], keepAlive);
+            return;
+        }
+        mRequestCount.incrementAndGet();
+        if (!"POST".equals(method) || !path.startsWith(LICENSE_PATH)) {
+            writeResponse(out, 404, new byte[0], keepAlive);
+            return;
+        }
+        if (mConfig.validateDrmMessage && !isValidDrmMessage(headers.get("x-axdrm-message"))) {
+            mRejectedCount.incrementAndGet();
+            writeResponse(out, 401, new byte[0], keepAlive);
+            return;
+        }
+
+        long latencyMs;
+        boolean fail;
+        byte[] license = new byte[mConfig.responseBytes];
+        synchronized (mRandom) {
+            latencyMs = mConfig.latencyMs + (mConfig.latencyJitterMs > 0
+                    ? (long) (mRandom.nextDouble() * mConfig.latencyJitterMs) : 0);
+            fail = mRandom.nextDouble() < mConfig.errorRate;
+            mRandom.nextBytes(license);
+        }
+        try {
+            Thread.sleep(latencyMs);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        if (fail) {
+            mInjectedErrorCount.incrementAndGet();
+            writeResponse(out, 503, new byte[0], keepAlive);
+        } else {
+            writeResponse(out, 200, license, keepAlive);
+        }
+    }
+
+    // Accepts tokens in JWT form whose payload is a JSON object with a "message" field
+    private static boolean isValidDrmMessage(String drmMessage) {
+        if (drmMessage == null) return false;
+        String[] parts = drmMessage.split("\\.");
+        if (parts.length != 3) return false;
+        try {
+            byte[] payload = Base64.decode(parts[1], Base64.URL_SAFE | Base64.NO_PADDING | Base64.NO_WRAP);
+            return new JSONObject(new String(payload, StandardCharsets.UTF_8)).has("message");
+        } catch (IllegalArgumentException | JSONException e) {
+            return false;
+        }
+    }
+
+    private static void writeResponse(OutputStream out, int code, byte[] body, boolean keepAlive)
+            throws IOException {
+        String header = "HTTP/1.1 " + code + " " + getReason(code) + "\r\n"
+                + "Content-Type: application/octet-stream\r\n"
+                + "Content-Length: " + body.length + "\r\n"
+                + "Connection: " + (keepAlive ? "keep-alive" : "close") + "\r\n\r\n";
+        out.write(header.getBytes(StandardCharsets.ISO_8859_1));
+        out.write(body);
+        out.flush();
+    }
+
+    private static String getReason(int code) {
+        switch (code) {
+            case 200:
+                return "OK";
+            case 401:
+                return "Unauthorized";
+            case 404:
+                return "Not Found";
+            default:
+                return "Service Unavailable";
+        }
+    }
+
+    private static Map<String, String> readHeaders(InputStream in) throws IOException {
+        Map<String, String> headers = new HashMap<>();
+        String line;
+        while ((line = readLine(in)) != null && !line.isEmpty()) {
+            int separator = line.indexOf(':');
+            if (separator > 0) {
+                headers.put(line.substring(0, separator).trim().toLowerCase(Locale.US),
+                        line.substring(separator + 1).trim());
+            }
+        }
+        return headers;
+    }
+
+    private static void readBody(InputStream in, int length) throws IOException {
+        byte[] buffer = new byte[Math.min(length, 8192)];
+        int remaining = length;
+        while (remaining > 0) {
+            int count = in.read(buffer, 0, Math.min(buffer.length, remaining));
+            if (count == -1) throw new IOException("Request body ended early");
+            remaining -= count;
+        }
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) != -1) {
+            if (b == '\n') break;
+            if (b != '\r') line.write(b);
+        }
+        if (b == -1 && line.size() == 0) return null;
+        return new String(line.toByteArray(), StandardCharsets.ISO_8859_1);
+    }
+}
@@ -0,0 +1,143 @@
+package com.axinom.drm.sample.loadtest;
+
+import android.os.SystemClock;
+import android.util.Base64;
+
+import com.axinom.drm.sample.license.RequestStage;
+import com.axinom.drm.sample.license.internal.exception.LicenseManagerException;
+import com.axinom.drm.sample.license.internal.utils.RequestUtils;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs many concurrent license requests through {@link RequestUtils#executePost} and measures
+ * throughput and latency percentiles. Requests go through the configured transport, retry policy
+ * and circuit breaker, like real license acquisitions.
+ */
+public class LicenseLoadDriver {
+
+    /**
+     * Outcome of a load run
+     */
+    public static class Result {
+        public final int requests;
+        public final int failures;
+        public final long durationMs;
+        public final long p50Ms, p95Ms, p99Ms, maxMs;
+        // Number of failures by error code
+        public final Map<String, Integer> failuresByCode;
+
+        Result(int requests, int failures, long durationMs, long[] sortedLatencies,
+               Map<String, Integer> failuresByCode) {
+            this.requests = requests;
+            this.failures = failures;
+            this.durationMs = durationMs;
+            this.p50Ms = getPercentile(sortedLatencies, 0.50);
+            this.p95Ms = getPercentile(sortedLatencies, 0.95);
+            this.p99Ms = getPercentile(sortedLatencies, 0.99);
+            this.maxMs = sortedLatencies.length > 0 ? sortedLatencies[sortedLatencies.length - 1] : 0;
+            this.failuresByCode = failuresByCode;
+        }
+
+        public double getThroughput() {
+            return durationMs > 0 ? requests * 1000.0 / durationMs : 0;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US,
+                    "requests=%d, failures=%d %s, duration=%d ms, throughput=%.1f req/s, "
+                            + "p50=%d ms, p95=%d ms, p99=%d ms, max=%d ms",
+                    requests, failures, failuresByCode, durationMs, getThroughput(),
+                    p50Ms, p95Ms, p99Ms, maxMs);
+        }
+    }
+
+    /**
+     * Returns a DRM message in the form the fake license server accepts. It is not signed and
+     * is rejected by real license servers.
+     *
+     * @return DRM message
+     */
+    public static String createTestDrmMessage() {
+        return encode("{\"alg\":\"none\",\"typ\":\"JWT\"}") + "."
+                + encode("{\"version\":1,\"com_key_id\":\"load-test\","
+                + "\"message\":{\"type\":\"entitlement_message\",\"keys\":[]}}") + ".";
+    }
+
+    private static String encode(String value) {
+        return Base64.encodeToString(value.getBytes(StandardCharsets.UTF_8),
+                Base64.URL_SAFE | Base64.NO_PADDING | Base64.NO_WRAP);
+    }
+
+    /**
+     * Sends license requests and waits for all of them to finish.
+     *
+     * @param licenseServerUrl URL of the license server
+     * @param drmMessage       DRM message sent with every request
+     * @param requests         total number of requests
+     * @param concurrency      number of requests in flight at the same time
+     * @param requestBytes     size of the request body
+     * @return result of the run
+     * @throws InterruptedException if interrupted while waiting for the requests
+     */
+    public static Result run(String licenseServerUrl, String drmMessage, int requests,
+                             int concurrency, int requestBytes) throws InterruptedException {
+        byte[] body = new byte[requestBytes];
+        new Random().nextBytes(body);
+        long[] latencies = new long[requests];
+        boolean[] failed = new boolean[requests];
+        Map<String, Integer> failuresByCode = new TreeMap<>();
+        CountDownLatch done = new CountDownLatch(requests);
+        ExecutorService executor = Executors.newFixedThreadPool(concurrency);
+
+        long startTime = SystemClock.elapsedRealtime();
+        for (int i = 0; i < requests; i++) {
+            final int index = i;
+            executor.execute(() -> {
+                long requestStartTime = SystemClock.elapsedRealtime();
+                try {
+                    RequestUtils.executePost(licenseServerUrl, drmMessage, body, null,
+                            RequestStage.LICENSE);
+                } catch (LicenseManagerException e) {
+                    failed[index] = true;
+                    synchronized (failuresByCode) {
+                        String code = String.valueOf(e.getErrorCode().getCode());
+                        Integer count = failuresByCode.get(code);
+                        failuresByCode.put(code, count == null ? 1 : count + 1);
+                    }
+                }
+                latencies[index] = SystemClock.elapsedRealtime() - requestStartTime;
+                done.countDown();
+            });
+        }
+        try {
+            done.await();
+        } finally {
+            executor.shutdownNow();
+            executor.awaitTermination(10, TimeUnit.SECONDS);
+        }
+        long durationMs = SystemClock.elapsedRealtime() - startTime;
+
+        int failures = 0;
+        for (boolean f : failed) if (f) failures++;
+        long[] sortedLatencies = latencies.clone();
+        Arrays.sort(sortedLatencies);
+        return new Result(requests, failures, durationMs, sortedLatencies, failuresByCode);
+    }
+
+    private static long getPercentile(long[] sortedValues, double percentile) {
+        if (sortedValues.length == 0) return 0;
+        int index = (int) Math.ceil(percentile * sortedValues.length) - 1;
+        return sortedValues[Math.max(0, Math.min(index, sortedValues.length - 1))];
+    }
+}
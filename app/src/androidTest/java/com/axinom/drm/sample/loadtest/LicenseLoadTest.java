@@ -0,0 +1,80 @@
+package com.axinom.drm.sample.loadtest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import android.util.Log;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import com.axinom.drm.sample.license.interfaces.IHttpTransport;
+import com.axinom.drm.sample.license.internal.network.CircuitBreaker;
+import com.axinom.drm.sample.license.internal.network.PooledHttpTransport;
+import com.axinom.drm.sample.license.internal.utils.RequestUtils;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * License load tests against a local {@link FakeLicenseServer}. The request layer transport is
+ * replaced by one which allows as many connections as the test concurrency, and the previous
+ * transport is restored afterwards. Results and request timings are logged.
+ */
+@RunWith(AndroidJUnit4.class)
+public class LicenseLoadTest {
+
+    private static final String TAG = LicenseLoadTest.class.getSimpleName();
+
+    private static final int REQUESTS = 2000;
+    private static final int CONCURRENCY = 64;
+    private static final int REQUEST_BYTES = 1024;
+
+    private FakeLicenseServer mServer;
+    private IHttpTransport mPreviousTransport;
+
+    @Before
+    public void setUp() {
+        mPreviousTransport = RequestUtils.getTransport();
+        RequestUtils.setTransport(new PooledHttpTransport(CONCURRENCY));
+        RequestUtils.setCircuitBreaker(new CircuitBreaker());
+    }
+
+    @After
+    public void tearDown() {
+        if (mServer != null) mServer.stop();
+        RequestUtils.setTransport(mPreviousTransport);
+        RequestUtils.setCircuitBreaker(null);
+    }
+
+    @Test
+    public void allRequestsSucceedWithoutServerErrors() throws Exception {
+        FakeLicenseServer.Config config = new FakeLicenseServer.Config();
+        config.errorRate = 0;
+        LicenseLoadDriver.Result result = run(config);
+        assertEquals(REQUESTS, result.requests);
+        assertEquals(0, result.failures);
+    }
+
+    @Test
+    public void retriesRecoverInjectedServerErrors() throws Exception {
+        FakeLicenseServer.Config config = new FakeLicenseServer.Config();
+        config.errorRate = 0.01;
+        LicenseLoadDriver.Result result = run(config);
+        // A request only fails if all its attempts hit an injected error
+        assertTrue("Too many failed requests: " + result, result.failures <= REQUESTS / 100);
+    }
+
+    private LicenseLoadDriver.Result run(FakeLicenseServer.Config config) throws Exception {
+        mServer = new FakeLicenseServer(config);
+        mServer.start();
+        Log.d(TAG, "Running " + REQUESTS + " license requests with concurrency " + CONCURRENCY);
+        LicenseLoadDriver.Result result = LicenseLoadDriver.run(mServer.getLicenseUrl(),
+                LicenseLoadDriver.createTestDrmMessage(), REQUESTS, CONCURRENCY, REQUEST_BYTES);
+        Log.d(TAG, "Load test finished: " + result);
+        Log.d(TAG, "Server: " + mServer.getStats());
+        Log.d(TAG, "Request timings:\n" + RequestUtils.getTimingHistograms().getStats());
+        return result;
+    }
+}
@@ -198,6 +198,7 @@ public class SampleChooserActivity extends Activity implements View.OnClickListe
 				if (i == mSelectedVideo) {
 					mRecyclerView.getChildAt(i).setBackgroundColor(Color.LTGRAY);
 					checkCurrentDownloadStatus();
+					prewarmConnections(getSelectedMediaItem());
 				} else {
 					mRecyclerView.getChildAt(i).setBackgroundColor(Color.TRANSPARENT);
 				}
@@ -227,6 +228,7 @@ public class SampleChooserActivity extends Activity implements View.OnClickListe
 					mSelectedVideo = 0;
 					holder.itemView.setBackgroundColor(Color.LTGRAY);
 					checkCurrentDownloadStatus();
+					prewarmConnections(getSelectedMediaItem());
 				}
 			}
 		}
@@ -247,6 +249,16 @@ public class SampleChooserActivity extends Activity implements View.OnClickListe
 		return mMediaItems.get(mSelectedVideo);
 	}
 
+	// A method for opening connections to the license server and manifest hosts of a video in the
+	// background, so that playback or license download started next skips connection setup
+	private void prewarmConnections(MediaItem mediaItem) {
+		MediaItem.DrmConfiguration drmConfiguration = Utility.getDrmConfiguration(mediaItem);
+		if (drmConfiguration == null || !isNetworkAvailable()) return;
+		mLicenseManager.prewarmConnections(Arrays.asList(
+				String.valueOf(drmConfiguration.licenseUri),
+				String.valueOf(Utility.getPlaybackProperties(mediaItem).uri)));
+	}
+
 	// A method for checking current download status and updating UI accordingly
 	private void checkCurrentDownloadStatus() {
 		if (mAxDownloadTracker != null && mSelectedVideo >= 0) {
@@ -322,6 +334,7 @@ public class SampleChooserActivity extends Activity implements View.OnClickListe
 		mButtonRemoveLicense.setOnClickListener(this);
 		mButtonRemoveAll.setOnClickListener(this);
 		mLicenseManager.setEventListener(this);
+		if (mSelectedVideo >= 0) prewarmConnections(getSelectedMediaItem());
 
 		// Registering receiver for download progress
 		registerReceiver(mBroadcastReceiver, new IntentFilter(
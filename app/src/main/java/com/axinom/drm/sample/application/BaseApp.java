@@ -4,14 +4,39 @@ import android.app.Application;
 
 import com.android.volley.RequestQueue;
 import com.android.volley.toolbox.Volley;
+import com.axinom.drm.sample.license.internal.task.LicenseBatchDownloadTask;
+import com.axinom.drm.sample.license.internal.utils.ConnectionPrewarmer;
+import com.axinom.drm.sample.license.internal.utils.RequestUtils;
+import com.axinom.drm.sample.network.NetworkPolicy;
+import com.axinom.drm.sample.network.OkHttpStack;
+import com.axinom.drm.sample.network.SharedHttpClient;
 
 public class BaseApp extends Application {
 
-    public static RequestQueue requestQueue;
+    private static BaseApp sInstance;
+    private static RequestQueue sRequestQueue;
 
     @Override
     public void onCreate() {
         super.onCreate();
-        requestQueue = Volley.newRequestQueue(this);
+        sInstance = this;
+        // License requests share the connection pool of Volley
+        RequestUtils.setTransport(SharedHttpClient.getLicenseTransport());
+        // License batches and pre-warming follow the network, downloads are adjusted by
+        // AxOfflineManager
+        NetworkPolicy.getInstance().start(this);
+        NetworkPolicy.getInstance().addListener(profile -> {
+            LicenseBatchDownloadTask.setMaxBatchSize(profile.licenseBatchSize);
+            ConnectionPrewarmer.getInstance().configure(profile.prewarm, profile.keepWarmMs);
+        });
+    }
+
+    // Returns the Volley request queue running on the shared HTTP client, creating it on first use
+    public static synchronized RequestQueue getRequestQueue() {
+        if (sRequestQueue == null) {
+            sRequestQueue = Volley.newRequestQueue(sInstance,
+                    new OkHttpStack(SharedHttpClient.getClient()));
+        }
+        return sRequestQueue;
     }
 }
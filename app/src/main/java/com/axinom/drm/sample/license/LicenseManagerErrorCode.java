@@ -48,7 +48,19 @@ public enum LicenseManagerErrorCode {
     /**
      * Device provisioning failed
      */
-    ERROR_309(309, R.string.license_player_error_309);
+    ERROR_309(309, R.string.license_player_error_309),
+    /**
+     * No DRM session available, device session limit reached
+     */
+    ERROR_312(312, R.string.license_player_error_312),
+    /**
+     * Request failed with a non-retryable error or after all retries
+     */
+    ERROR_313(313, R.string.license_player_error_313),
+    /**
+     * Server failed repeatedly, requests fail fast until it recovers
+     */
+    ERROR_314(314, R.string.license_player_error_314);
 
     private int mCode;
     private int mDescription;
@@ -4,13 +4,30 @@ import android.content.Context;
 import android.os.AsyncTask;
 import android.util.Log;
 
+import com.axinom.drm.sample.license.interfaces.IHttpTransport;
 import com.axinom.drm.sample.license.interfaces.IOfflineLicenseManagerListener;
+import com.axinom.drm.sample.license.interfaces.IRequestTimingListener;
+import com.axinom.drm.sample.license.internal.network.CircuitBreaker;
+import com.axinom.drm.sample.license.internal.network.OkHttpTransport;
+import com.axinom.drm.sample.license.internal.network.PooledHttpTransport;
+import com.axinom.drm.sample.license.internal.network.RequestOptions;
+import com.axinom.drm.sample.license.internal.network.RetryPolicy;
 import com.axinom.drm.sample.license.internal.task.LicenceDownloadTask;
+import com.axinom.drm.sample.license.internal.task.LicenseBatchDownloadTask;
 import com.axinom.drm.sample.license.internal.task.LicenseCheckTask;
 import com.axinom.drm.sample.license.internal.task.LicenseReleaseTask;
 import com.axinom.drm.sample.license.internal.task.LicenseRestoreTask;
+import com.axinom.drm.sample.license.internal.utils.ConnectionPrewarmer;
+import com.axinom.drm.sample.license.internal.utils.KeyExpiryTracker;
 import com.axinom.drm.sample.license.internal.utils.LicenseFileUtils;
-
+import com.axinom.drm.sample.license.internal.utils.ManifestDiskCache;
+import com.axinom.drm.sample.license.internal.utils.ManifestUtils;
+import com.axinom.drm.sample.license.internal.utils.ParsedManifestCache;
+import com.axinom.drm.sample.license.internal.utils.RequestUtils;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -30,8 +47,11 @@ public class OfflineLicenseManager {
     private LicenseCheckTask mCheckTask;
     private LicenseReleaseTask mReleaseTask;
     private LicenseRestoreTask mRestoreTask;
+    private LicenseBatchDownloadTask mBatchDownloadTask;
     private long mMinExpireSeconds = LICENSE_MIN_EXPIRE_SECONDS;
     private Map<String, String> mRequestParams = null;
+    private String mBatchLicenseServerUrl = null;
+    private List<String> mLicenseServerMirrors = null;
 
     /**
      * Create an instance of OfflineLicenseManager
@@ -63,6 +83,8 @@ public class OfflineLicenseManager {
         cancelCheckTask();
         cancelReleaseTask();
         cancelRestoreTask();
+        cancelBatchDownloadTask();
+        ConnectionPrewarmer.getInstance().stop();
         mContext = null;
         mListener = null;
     }
@@ -101,7 +123,7 @@ public class OfflineLicenseManager {
     public void releaseLicense(String manifestUrl) {
         LicenseReleaseTask.Params params = new LicenseReleaseTask.Params(
                 null, manifestUrl, mDefaultStoragePath, false,
-                false, mRequestParams
+                false, mRequestParams, mBatchLicenseServerUrl
         );
         runReleaseLicenseTask(params);
     }
@@ -119,7 +141,7 @@ public class OfflineLicenseManager {
     public void releaseLicense(String manifestUrl, String licenseServerUrl, boolean stopOnLicenseServerFail) {
         LicenseReleaseTask.Params params = new LicenseReleaseTask.Params(
                 licenseServerUrl, manifestUrl, mDefaultStoragePath, false,
-                stopOnLicenseServerFail, mRequestParams
+                stopOnLicenseServerFail, mRequestParams, mBatchLicenseServerUrl
         );
         runReleaseLicenseTask(params);
     }
@@ -136,7 +158,7 @@ public class OfflineLicenseManager {
     public void releaseAllLicenses(String licenseServerUrl, boolean stopOnLicenseServerFail) {
         LicenseReleaseTask.Params params = new LicenseReleaseTask.Params(
                 licenseServerUrl, null, mDefaultStoragePath, true,
-                stopOnLicenseServerFail, mRequestParams
+                stopOnLicenseServerFail, mRequestParams, mBatchLicenseServerUrl
         );
         runReleaseLicenseTask(params);
     }
@@ -147,11 +169,46 @@ public class OfflineLicenseManager {
     public void releaseAllLicenses() {
         LicenseReleaseTask.Params params = new LicenseReleaseTask.Params(
                 null, null, mDefaultStoragePath, true,
-                false, mRequestParams
+                false, mRequestParams, mBatchLicenseServerUrl
         );
         runReleaseLicenseTask(params);
     }
 
+    /**
+     * Start opening connections to the hosts of the given URLs in the background, e.g. license
+     * server and manifest of a title the user is about to play, so the following requests do not
+     * wait for DNS resolution and connection handshakes. Connections are kept warm for a few
+     * minutes, until other connections are pre-warmed or release() is called.
+     *
+     * @param urls URLs of the license server and video manifest file
+     */
+    public void prewarmConnections(List<String> urls) {
+        ConnectionPrewarmer.getInstance().prewarm(urls);
+    }
+
+    /**
+     * Configure connection pre-warming. By default connections are pre-warmed and kept warm for
+     * 5 minutes. The setting is shared by all OfflineLicenseManager instances.
+     *
+     * @param enabled       whether {@link #prewarmConnections(List)} opens connections
+     * @param maxKeepWarmMs time for which connections are kept warm, 0 to warm them only once
+     */
+    public void setConnectionPrewarming(boolean enabled, long maxKeepWarmMs) {
+        ConnectionPrewarmer.getInstance().configure(enabled, maxKeepWarmMs);
+    }
+
+    /**
+     * Set the maximum number of titles sent in one batch license request, e.g. larger batches
+     * on high latency networks. The size is also limited by the device session budget. By
+     * default up to 8 titles are batched. The setting is shared by all OfflineLicenseManager
+     * instances.
+     *
+     * @param maxBatchSize maximum batch size
+     */
+    public void setMaxLicenseBatchSize(int maxBatchSize) {
+        LicenseBatchDownloadTask.setMaxBatchSize(maxBatchSize);
+    }
+
     private void runReleaseLicenseTask(LicenseReleaseTask.Params params) {
         cancelReleaseTask();
         mReleaseTask = new LicenseReleaseTask(mInternalListener);
@@ -201,6 +258,50 @@ public class OfflineLicenseManager {
         mCheckTask.execute(params);
     }
 
+    /**
+     * Returns the remaining license duration known from earlier license operations. No DRM
+     * session is opened and no CDM call is made.
+     *
+     * @param manifestUrl URL of the video manifest file
+     * @return remaining seconds, {@link Long#MAX_VALUE} if license never expires or
+     * {@link com.google.android.exoplayer2.C#TIME_UNSET} if nothing is known about the license
+     */
+    public long getKnownLicenseRemainingSeconds(String manifestUrl) {
+        if (!LicenseFileUtils.hasLicenseFile(mDefaultStoragePath, manifestUrl)) {
+            return com.google.android.exoplayer2.C.TIME_UNSET;
+        }
+        return KeyExpiryTracker.getInstance(mDefaultStoragePath)
+                .getRemainingSec(LicenseFileUtils.getLicenseKey(mDefaultStoragePath, manifestUrl));
+    }
+
+    /**
+     * Call when playback with the stored license of the manifest is about to start. The playback
+     * duration of an offline license starts with its first playback, so the expiry time known
+     * from earlier license operations is dropped, and validity checks ask the CDM until the
+     * playback session reports the new expiry time with
+     * {@link #onLicenseExpirationUpdate(String, long)}.
+     *
+     * @param manifestUrl URL of the video manifest file
+     */
+    public void onPlaybackStarting(String manifestUrl) {
+        KeyExpiryTracker.getInstance(mDefaultStoragePath)
+                .onPlaybackStarting(LicenseFileUtils.getLicenseKey(mDefaultStoragePath, manifestUrl));
+    }
+
+    /**
+     * Records an expiration update of a playback session using the stored license of the
+     * manifest, e.g. from an expiration update or key status change listener of the player's DRM
+     * sessions.
+     *
+     * @param manifestUrl      URL of the video manifest file
+     * @param expirationTimeMs expiration time in milliseconds since the epoch, 0 if the keys never
+     *                         expire
+     */
+    public void onLicenseExpirationUpdate(String manifestUrl, long expirationTimeMs) {
+        KeyExpiryTracker.getInstance(mDefaultStoragePath).recordExpirationUpdate(
+                LicenseFileUtils.getLicenseKey(mDefaultStoragePath, manifestUrl), expirationTimeMs);
+    }
+
     private void cancelCheckTask() {
         if (mCheckTask != null && mCheckTask.getStatus() == AsyncTask.Status.RUNNING) {
             mCheckTask.cancel(true);
@@ -229,7 +330,8 @@ public class OfflineLicenseManager {
                         licenseServerUrl,
                         drmMessage,
                         mDefaultStoragePath,
-                        mMinExpireSeconds
+                        mMinExpireSeconds,
+                        mLicenseServerMirrors
                 );
         mDownloadTask = new LicenceDownloadTask(mInternalListener, true, autoSave);
         mDownloadTask.execute(params);
@@ -252,12 +354,48 @@ public class OfflineLicenseManager {
                         licenseServerUrl,
                         drmMessage,
                         mDefaultStoragePath,
-                        mMinExpireSeconds
+                        mMinExpireSeconds,
+                        mLicenseServerMirrors
                 );
         mDownloadTask = new LicenceDownloadTask(mInternalListener, false, true);
         mDownloadTask.execute(params);
     }
 
+    /**
+     * Start license downloading and saving process for several titles which share the same DRM
+     * message. Key requests of the titles are sent to the license server in a batch request if
+     * a batch endpoint is set with setBatchLicenseServerUrl(). Set event listener to receive a
+     * callback for every title.
+     *
+     * @param licenseServerUrl URL of the license server
+     * @param manifestUrls     URLs of the video manifest files
+     * @param drmMessage       DRM message (token)
+     */
+    public void downloadLicenses(String licenseServerUrl, List<String> manifestUrls,
+                                 String drmMessage) {
+        cancelBatchDownloadTask();
+        LicenseBatchDownloadTask.Params params =
+                new LicenseBatchDownloadTask.Params(
+                        mRequestParams,
+                        new ArrayList<>(manifestUrls),
+                        licenseServerUrl,
+                        mBatchLicenseServerUrl,
+                        drmMessage,
+                        mDefaultStoragePath,
+                        mMinExpireSeconds,
+                        mLicenseServerMirrors
+                );
+        mBatchDownloadTask = new LicenseBatchDownloadTask(mInternalListener);
+        mBatchDownloadTask.execute(params);
+    }
+
+    private void cancelBatchDownloadTask() {
+        if (mBatchDownloadTask != null && mBatchDownloadTask.getStatus() == AsyncTask.Status.RUNNING) {
+            mBatchDownloadTask.cancel(true);
+            mBatchDownloadTask = null;
+        }
+    }
+
     private void cancelDownloadTask() {
         if (mDownloadTask != null && mDownloadTask.getStatus() == AsyncTask.Status.RUNNING) {
             mDownloadTask.cancel(true);
@@ -296,6 +434,134 @@ public class OfflineLicenseManager {
         mRequestParams = requestParams;
     }
 
+    /**
+     * Set the maximum size of the disk cache of downloaded manifests. Cached manifests are
+     * revalidated with the server on every use and only transferred again if they changed.
+     *
+     * @param maxSizeBytes maximum size in bytes, 0 disables the cache. Default value is
+     *                     {@link ManifestDiskCache#DEFAULT_MAX_SIZE_BYTES}.
+     */
+    public void setManifestCacheSize(long maxSizeBytes) {
+        ManifestDiskCache.getInstance(mDefaultStoragePath).setMaxSizeBytes(maxSizeBytes);
+    }
+
+    /**
+     * Set the query parameters of manifest URLs which do not select a different manifest, e.g.
+     * authorization tokens. They are ignored when looking up cached manifests, so a manifest
+     * requested with a new token is still revalidated instead of downloaded again. Other query
+     * parameters always select a separate cache entry.
+     *
+     * @param parameterNames names of the ignored query parameters, or null for none
+     */
+    public void setManifestCacheIgnoredParameters(Collection<String> parameterNames) {
+        ManifestUtils.setIgnoredCacheKeyParameters(parameterNames);
+    }
+
+    /**
+     * Set the maximum size of the memory cache of protection data parsed from manifests. An
+     * unchanged manifest is not parsed again while its data is cached. The cache is shared by
+     * all OfflineLicenseManager instances.
+     *
+     * @param maxSizeBytes maximum size in bytes. Default value is
+     *                     {@link ParsedManifestCache#DEFAULT_MAX_SIZE_BYTES}.
+     */
+    public void setParsedManifestCacheSize(int maxSizeBytes) {
+        ParsedManifestCache.getInstance().setMaxSizeBytes(maxSizeBytes);
+    }
+
+    /**
+     * Set the license server endpoint which accepts batched requests. It is used for releasing
+     * several licenses and for downloadLicenses(). Batch requests and responses are JSON arrays
+     * of Base64 encoded license messages in the same order. If not set, requests for several
+     * licenses are sent one by one.
+     *
+     * @param batchLicenseServerUrl URL of the batch endpoint or null
+     */
+    public void setBatchLicenseServerUrl(String batchLicenseServerUrl) {
+        mBatchLicenseServerUrl = batchLicenseServerUrl;
+    }
+
+    /**
+     * Set connect and read timeouts, the total deadline and the maximum response size of
+     * manifest, license and provisioning requests. Requests which cannot complete within the
+     * deadline, including retries, fail with error 313. The options are shared by all
+     * OfflineLicenseManager instances.
+     *
+     * @param requestOptions request options, or null to restore the defaults
+     */
+    public void setRequestOptions(RequestOptions requestOptions) {
+        RequestUtils.setRequestOptions(requestOptions);
+    }
+
+    /**
+     * Set the listener which receives the timing breakdown (DNS, connect, TLS, time to first
+     * byte, transfer and bytes) of every manifest, license, provisioning and release request.
+     * Timings are also aggregated into histograms by host and stage, which are logged with
+     * {@link #logRequestStats()}. The listener is shared by all OfflineLicenseManager instances.
+     *
+     * @param timingListener timing listener, or null
+     */
+    public void setRequestTimingListener(IRequestTimingListener timingListener) {
+        RequestUtils.setTimingListener(timingListener);
+    }
+
+    /**
+     * Log the aggregated request timings by host and stage
+     */
+    public void logRequestStats() {
+        Log.d(TAG, "Request timings:\n" + RequestUtils.getTimingHistograms().getStats());
+    }
+
+    /**
+     * Set license server endpoints equivalent to the license server URL given to the download
+     * methods. If a license request has not been answered within the 95th percentile of recent
+     * response times, a duplicate request is sent to the next mirror and the first response
+     * wins. A failed request moves on to the next mirror right away. Release requests are only
+     * sent to the given license server.
+     *
+     * @param mirrors URLs of the mirror endpoints, or null to disable hedging
+     */
+    public void setLicenseServerMirrors(List<String> mirrors) {
+        mLicenseServerMirrors = mirrors != null ? new ArrayList<>(mirrors) : null;
+    }
+
+    /**
+     * Set the HTTP transport used for manifest, license and provisioning requests. By default a
+     * pooled keep-alive transport with default pool settings is used; set a
+     * {@link PooledHttpTransport} with custom settings or an own implementation to change it.
+     * An {@link OkHttpTransport} multiplexes concurrent requests to a host over one HTTP/2
+     * connection and sends license requests ahead of manifest and release requests.
+     * The transport is shared by all OfflineLicenseManager instances.
+     *
+     * @param transport HTTP transport, or null to restore the default
+     */
+    public void setHttpTransport(IHttpTransport transport) {
+        RequestUtils.setTransport(transport);
+    }
+
+    /**
+     * Set the policy for retrying failed requests. Manifest, license and provisioning requests
+     * failing with a server error, timeout or connection error are retried with exponential
+     * backoff; release requests are never retried. The policy is shared by all
+     * OfflineLicenseManager instances.
+     *
+     * @param retryPolicy retry policy, or null to restore the default
+     */
+    public void setRetryPolicy(RetryPolicy retryPolicy) {
+        RequestUtils.setRetryPolicy(retryPolicy);
+    }
+
+    /**
+     * Set the circuit breaker which makes requests to a repeatedly failing host fail fast with
+     * error 314 until the host recovers. The circuit breaker is shared by all
+     * OfflineLicenseManager instances.
+     *
+     * @param circuitBreaker circuit breaker, or null to restore the default
+     */
+    public void setCircuitBreaker(CircuitBreaker circuitBreaker) {
+        RequestUtils.setCircuitBreaker(circuitBreaker);
+    }
+
     private class InternalListener implements LicenceDownloadTask.ILicenceDownloadTaskCallback,
             LicenseCheckTask.ILicenceCheckTaskCallback,
             LicenseReleaseTask.ILicenseReleaseTaskCallback,
@@ -0,0 +1,11 @@
+package com.axinom.drm.sample.license;
+
+/**
+ * Stages of the license workflow a request belongs to
+ */
+public enum RequestStage {
+    MANIFEST,
+    LICENSE,
+    PROVISIONING,
+    RELEASE
+}
@@ -0,0 +1,46 @@
+package com.axinom.drm.sample.license;
+
+/**
+ * Timing breakdown of one HTTP exchange, measured by the transport. Phases which were skipped,
+ * e.g. connection setup on a reused connection, take 0 ms, and phases the transport cannot
+ * measure separately are {@link #UNKNOWN}.
+ */
+public class RequestTiming {
+
+    public static final long UNKNOWN = -1;
+
+    public final long dnsMs;
+    // TCP connection setup, including the TLS handshake if tlsMs is unknown
+    public final long connectMs;
+    public final long tlsMs;
+    // Time from sending the request to the first response byte
+    public final long ttfbMs;
+    public final long transferMs;
+    public final long bytesSent;
+    public final long bytesReceived;
+    // Whether a pooled connection was used, or null if the transport cannot tell
+    public final Boolean connectionReused;
+
+    public RequestTiming(long dnsMs, long connectMs, long tlsMs, long ttfbMs, long transferMs,
+                         long bytesSent, long bytesReceived, Boolean connectionReused) {
+        this.dnsMs = dnsMs;
+        this.connectMs = connectMs;
+        this.tlsMs = tlsMs;
+        this.ttfbMs = ttfbMs;
+        this.transferMs = transferMs;
+        this.bytesSent = bytesSent;
+        this.bytesReceived = bytesReceived;
+        this.connectionReused = connectionReused;
+    }
+
+    public long getTotalMs() {
+        return Math.max(0, dnsMs) + Math.max(0, connectMs) + Math.max(0, tlsMs) + ttfbMs + transferMs;
+    }
+
+    @Override
+    public String toString() {
+        return "dns=" + dnsMs + "ms, connect=" + connectMs + "ms, tls=" + tlsMs + "ms, ttfb="
+                + ttfbMs + "ms, transfer=" + transferMs + "ms, sent=" + bytesSent
+                + "B, received=" + bytesReceived + "B, reused=" + connectionReused;
+    }
+}
@@ -0,0 +1,129 @@
+package com.axinom.drm.sample.license.interfaces;
+
+import com.axinom.drm.sample.license.RequestStage;
+import com.axinom.drm.sample.license.RequestTiming;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * HTTP transport used by the license manager for manifest, license and provisioning requests
+ */
+public interface IHttpTransport {
+
+    /**
+     * Executes the request and reads the whole response body. A gzip encoded body is returned
+     * decoded.
+     *
+     * @param request request to execute
+     * @return response, also for unsuccessful status codes
+     * @throws IOException if the request could not be completed
+     */
+    Response execute(Request request) throws IOException;
+
+    /**
+     * Executes the request and returns the response with the decoded body as an unread
+     * {@link Response#stream}, so the body can be processed while it arrives. The stream must be
+     * closed; closing it before the end releases the connection without reusing it. The default
+     * implementation reads the whole body first.
+     *
+     * @param request request to execute
+     * @return response with the body stream, also for unsuccessful status codes
+     * @throws IOException if the request could not be completed
+     */
+    default Response open(Request request) throws IOException {
+        Response response = execute(request);
+        return new Response(response.code, response.headers, null, response.timing,
+                new ByteArrayInputStream(response.body != null ? response.body : new byte[0]));
+    }
+
+    /**
+     * HTTP request. Timeouts and the maximum response size are not limited if 0.
+     */
+    class Request {
+        public final String method;
+        public final String url;
+        public final Map<String, String> headers;
+        public final byte[] body;
+        public final int connectTimeoutMs;
+        public final int readTimeoutMs;
+        // Maximum time for the whole exchange, including reading the response body
+        public final long totalTimeoutMs;
+        public final int maxResponseBytes;
+        // Stage the request belongs to, e.g. for prioritization, or null if unknown
+        public final RequestStage stage;
+
+        public Request(String method, String url, Map<String, String> headers, byte[] body) {
+            this(method, url, headers, body, 0, 0, 0, 0, null);
+        }
+
+        public Request(String method, String url, Map<String, String> headers, byte[] body,
+                       int connectTimeoutMs, int readTimeoutMs, long totalTimeoutMs,
+                       int maxResponseBytes, RequestStage stage) {
+            this.method = method;
+            this.url = url;
+            this.headers = headers != null ? headers : new HashMap<>();
+            this.body = body;
+            this.connectTimeoutMs = connectTimeoutMs;
+            this.readTimeoutMs = readTimeoutMs;
+            this.totalTimeoutMs = totalTimeoutMs;
+            this.maxResponseBytes = maxResponseBytes;
+            this.stage = stage;
+        }
+    }
+
+    /**
+     * HTTP response
+     */
+    class Response {
+        public final int code;
+        public final Map<String, String> headers;
+        public final byte[] body;
+        // Timing breakdown, or null if the transport does not measure it
+        public final RequestTiming timing;
+        // Unread body of responses returned by open(), otherwise null
+        public final InputStream stream;
+
+        public Response(int code, Map<String, String> headers, byte[] body) {
+            this(code, headers, body, null, null);
+        }
+
+        public Response(int code, Map<String, String> headers, byte[] body, RequestTiming timing) {
+            this(code, headers, body, timing, null);
+        }
+
+        public Response(int code, Map<String, String> headers, byte[] body, RequestTiming timing,
+                        InputStream stream) {
+            this.code = code;
+            this.headers = headers != null ? headers : new HashMap<>();
+            this.body = body;
+            this.timing = timing;
+            this.stream = stream;
+        }
+
+        public void closeStream() {
+            if (stream == null) return;
+            try {
+                stream.close();
+            } catch (IOException e) {
+                // ignore, the response is not used
+            }
+        }
+
+        /**
+         * Returns a response header value, ignoring the case of the header name.
+         *
+         * @param name header name
+         * @return header value or null
+         */
+        public String getHeader(String name) {
+            for (Map.Entry<String, String> header : headers.entrySet()) {
+                if (name.equalsIgnoreCase(header.getKey())) return header.getValue();
+            }
+            return null;
+        }
+    }
+}
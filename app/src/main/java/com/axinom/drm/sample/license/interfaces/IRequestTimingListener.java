@@ -0,0 +1,20 @@
+package com.axinom.drm.sample.license.interfaces;
+
+import com.axinom.drm.sample.license.RequestStage;
+import com.axinom.drm.sample.license.RequestTiming;
+
+/**
+ * Receives the timing breakdown of manifest, license, provisioning and release requests
+ */
+public interface IRequestTimingListener {
+
+    /**
+     * Dispatched on the request thread after every request attempt which received a response
+     *
+     * @param host         host and port of the request
+     * @param stage        stage the request belongs to
+     * @param responseCode HTTP response code
+     * @param timing       timing breakdown of the request
+     */
+    void onRequestTiming(String host, RequestStage stage, int responseCode, RequestTiming timing);
+}
@@ -9,4 +9,8 @@ public class DrmMessage {
     public String comKeyId;
     public boolean persistent;
     public boolean keysBasedOnRequest;
+    // Inline content key ids, empty if keys are not listed in the message
+    public String[] keyIds = new String[0];
+    // License duration in seconds, or 0 if not limited by the message
+    public long licenseDuration;
 }
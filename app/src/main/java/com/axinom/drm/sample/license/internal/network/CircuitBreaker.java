@@ -0,0 +1,143 @@
+package com.axinom.drm.sample.license.internal.network;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Per host circuit breaker. After a number of consecutive failures (server errors, timeouts or
+ * connection errors) requests to the host fail fast for a while instead of waiting for the
+ * timeouts again. After that a single probe request is let through (half-open state); its success
+ * closes the circuit, its failure opens it again.
+ */
+public class CircuitBreaker {
+
+    private static final String TAG = CircuitBreaker.class.getSimpleName();
+
+    public static final int DEFAULT_FAILURE_THRESHOLD = 5;
+    public static final long DEFAULT_OPEN_DURATION_MS = 30000;
+
+    private enum State {
+        CLOSED,
+        OPEN,
+        HALF_OPEN
+    }
+
+    private static class HostState {
+        State state = State.CLOSED;
+        int consecutiveFailures = 0;
+        long openedAtMs = 0;
+        boolean probeInFlight = false;
+    }
+
+    private final int mFailureThreshold;
+    private final long mOpenDurationMs;
+    private final Map<String, HostState> mHostStates = new HashMap<>();
+    private long mRejectedCount = 0;
+
+    public CircuitBreaker() {
+        this(DEFAULT_FAILURE_THRESHOLD, DEFAULT_OPEN_DURATION_MS);
+    }
+
+    /**
+     * @param failureThreshold number of consecutive failures which opens the circuit
+     * @param openDurationMs   time the circuit stays open before a probe request is allowed
+     */
+    public CircuitBreaker(int failureThreshold, long openDurationMs) {
+        mFailureThreshold = Math.max(1, failureThreshold);
+        mOpenDurationMs = openDurationMs;
+    }
+
+    /**
+     * Returns whether a request to the host may be made now. A request allowed in half-open state
+     * is the probe, its result must be recorded.
+     *
+     * @param host host name and port
+     * @return true if the request may be made
+     */
+    public synchronized boolean allowRequest(String host) {
+        HostState hostState = getHostState(host);
+        if (hostState.state == State.OPEN
+                && SystemClock.elapsedRealtime() - hostState.openedAtMs >= mOpenDurationMs) {
+            hostState.state = State.HALF_OPEN;
+            hostState.probeInFlight = false;
+        }
+        if (hostState.state == State.CLOSED) return true;
+        if (hostState.state == State.HALF_OPEN && !hostState.probeInFlight) {
+            Log.d(TAG, "Sending probe request to " + host);
+            hostState.probeInFlight = true;
+            return true;
+        }
+        mRejectedCount++;
+        return false;
+    }
+
+    /**
+     * Returns the time until the circuit of the host allows a probe request.
+     *
+     * @param host host name and port
+     * @return remaining time in milliseconds, 0 if requests are allowed
+     */
+    public synchronized long getRemainingOpenMs(String host) {
+        HostState hostState = getHostState(host);
+        if (hostState.state != State.OPEN) return 0;
+        return Math.max(0, mOpenDurationMs - (SystemClock.elapsedRealtime() - hostState.openedAtMs));
+    }
+
+    public synchronized void recordSuccess(String host) {
+        HostState hostState = getHostState(host);
+        if (hostState.state != State.CLOSED) Log.d(TAG, "Closing circuit for " + host);
+        hostState.state = State.CLOSED;
+        hostState.consecutiveFailures = 0;
+        hostState.probeInFlight = false;
+    }
+
+    /**
+     * Releases the probe slot of the host without recording a result, e.g. when the probe request
+     * ended without reaching the server, so that the next request is let through as the probe.
+     *
+     * @param host host name and port
+     */
+    public synchronized void releaseProbe(String host) {
+        getHostState(host).probeInFlight = false;
+    }
+
+    public synchronized void recordFailure(String host) {
+        HostState hostState = getHostState(host);
+        hostState.consecutiveFailures++;
+        if (hostState.state == State.HALF_OPEN
+                || hostState.consecutiveFailures >= mFailureThreshold) {
+            if (hostState.state != State.OPEN) {
+                Log.d(TAG, "Opening circuit for " + host + " after "
+                        + hostState.consecutiveFailures + " consecutive failures");
+            }
+            hostState.state = State.OPEN;
+            hostState.openedAtMs = SystemClock.elapsedRealtime();
+            hostState.probeInFlight = false;
+        }
+    }
+
+    /**
+     * Returns circuit states in a loggable form.
+     *
+     * @return statistics string
+     */
+    public synchronized String getStats() {
+        StringBuilder builder = new StringBuilder("rejected=").append(mRejectedCount);
+        for (Map.Entry<String, HostState> entry : mHostStates.entrySet()) {
+            builder.append(", ").append(entry.getKey()).append('=').append(entry.getValue().state);
+        }
+        return builder.toString();
+    }
+
+    private HostState getHostState(String host) {
+        HostState hostState = mHostStates.get(host);
+        if (hostState == null) {
+            hostState = new HostState();
+            mHostStates.put(host, hostState);
+        }
+        return hostState;
+    }
+}
@@ -0,0 +1,187 @@
+package com.axinom.drm.sample.license.internal.network;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.SocketTimeoutException;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Decodes compressed response bodies while they are read. Only gzip is supported, as the platform
+ * has no brotli decoder. The number of bytes transferred and the time spent decoding are
+ * collected, so the savings of compression can be seen.
+ */
+public class ContentDecoder {
+
+    private static final String TAG = ContentDecoder.class.getSimpleName();
+
+    /**
+     * Value of the Accept-Encoding header for requests whose responses are decoded
+     */
+    public static final String ACCEPT_ENCODING = "gzip";
+
+    private static long sResponseCount = 0;
+    private static long sWireBytes = 0;
+    private static long sDecodedBytes = 0;
+    private static long sDecodeTimeMs = 0;
+
+    /**
+     * Reads the body to the end, decoding it according to its content encoding, and closes the
+     * stream. The maximum size applies to the decoded body.
+     *
+     * @param inputStream     stream to read
+     * @param contentEncoding value of the Content-Encoding header, or null
+     * @param contentLength   value of the Content-Length header, or -1 if unknown
+     * @param maxBytes        maximum number of decoded bytes
+     * @param deadline        elapsed realtime after which reading fails
+     * @return decoded body
+     * @throws IOException if reading or decoding failed
+     */
+    public static byte[] readBody(InputStream inputStream, String contentEncoding,
+                                  long contentLength, int maxBytes, long deadline)
+            throws IOException {
+        if (!"gzip".equalsIgnoreCase(contentEncoding)) {
+            return ResponseReader.read(inputStream, contentLength, maxBytes, deadline);
+        }
+
+        long startTime = SystemClock.elapsedRealtime();
+        TimedInputStream wireStream = new TimedInputStream(inputStream);
+        GZIPInputStream gzipStream;
+        try {
+            gzipStream = new GZIPInputStream(wireStream);
+        } catch (IOException e) {
+            inputStream.close();
+            throw e;
+        }
+        byte[] body = ResponseReader.read(gzipStream, -1, maxBytes, deadline);
+        // Time spent waiting for the network is not counted as decoding time
+        long decodeTimeMs = Math.max(0,
+                SystemClock.elapsedRealtime() - startTime - wireStream.mReadTimeMs);
+        recordDecode(wireStream.mByteCount, body.length, decodeTimeMs);
+        return body;
+    }
+
+    /**
+     * Returns a stream which decodes the body according to its content encoding while it is
+     * read. The maximum size applies to the decoded body.
+     *
+     * @param inputStream     stream to read
+     * @param contentEncoding value of the Content-Encoding header, or null
+     * @param maxBytes        maximum number of decoded bytes
+     * @param deadline        elapsed realtime after which reading fails
+     * @return decoding stream
+     * @throws IOException if the gzip header cannot be read
+     */
+    public static InputStream decode(InputStream inputStream, String contentEncoding,
+                                     int maxBytes, long deadline) throws IOException {
+        if (!"gzip".equalsIgnoreCase(contentEncoding)) {
+            return new BoundedInputStream(inputStream, maxBytes, deadline);
+        }
+        TimedInputStream wireStream = new TimedInputStream(inputStream);
+        TimedInputStream decodedStream;
+        try {
+            decodedStream = new TimedInputStream(new GZIPInputStream(wireStream)) {
+                @Override
+                public void close() throws IOException {
+                    super.close();
+                    // Time spent waiting for the network is not counted as decoding time
+                    recordDecode(wireStream.mByteCount, mByteCount,
+                            Math.max(0, mReadTimeMs - wireStream.mReadTimeMs));
+                }
+            };
+        } catch (IOException e) {
+            inputStream.close();
+            throw e;
+        }
+        return new BoundedInputStream(decodedStream, maxBytes, deadline);
+    }
+
+    private static synchronized void recordDecode(long wireBytes, long decodedBytes,
+                                                  long decodeTimeMs) {
+        sResponseCount++;
+        sWireBytes += wireBytes;
+        sDecodedBytes += decodedBytes;
+        sDecodeTimeMs += decodeTimeMs;
+        Log.d(TAG, "Decoded " + wireBytes + " gzip bytes to " + decodedBytes + " bytes in "
+                + decodeTimeMs + " ms, " + getStats());
+    }
+
+    /**
+     * Returns compression statistics in a loggable form.
+     *
+     * @return statistics string
+     */
+    public static synchronized String getStats() {
+        return "compressedResponses=" + sResponseCount
+                + ", wireBytes=" + sWireBytes
+                + ", decodedBytes=" + sDecodedBytes
+                + ", saved=" + (sDecodedBytes == 0 ? 0 : (sDecodedBytes - sWireBytes) * 100 / sDecodedBytes) + "%"
+                + ", decodeTimeMs=" + sDecodeTimeMs;
+    }
+
+    // Fails reading when the maximum size is exceeded or the deadline has passed
+    private static class BoundedInputStream extends FilterInputStream {
+        private final int mMaxBytes;
+        private final long mDeadline;
+        private long mByteCount = 0;
+
+        BoundedInputStream(InputStream in, int maxBytes, long deadline) {
+            super(in);
+            mMaxBytes = maxBytes;
+            mDeadline = deadline;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int value = super.read();
+            if (value != -1) onRead(1);
+            return value;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int count = super.read(b, off, len);
+            if (count > 0) onRead(count);
+            return count;
+        }
+
+        private void onRead(int count) throws IOException {
+            mByteCount += count;
+            if (mByteCount > mMaxBytes) throw new ResponseTooLargeException(mMaxBytes);
+            if (SystemClock.elapsedRealtime() > mDeadline) {
+                throw new SocketTimeoutException("Response not received within the deadline");
+            }
+        }
+    }
+
+    // Counts the bytes read from the wrapped stream and the time spent in reading them
+    private static class TimedInputStream extends FilterInputStream {
+        long mByteCount = 0;
+        long mReadTimeMs = 0;
+
+        TimedInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            long startTime = SystemClock.elapsedRealtime();
+            int value = super.read();
+            mReadTimeMs += SystemClock.elapsedRealtime() - startTime;
+            if (value != -1) mByteCount++;
+            return value;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            long startTime = SystemClock.elapsedRealtime();
+            int count = super.read(b, off, len);
+            mReadTimeMs += SystemClock.elapsedRealtime() - startTime;
+            if (count > 0) mByteCount += count;
+            return count;
+        }
+    }
+}
@@ -0,0 +1,165 @@
+package com.axinom.drm.sample.license.internal.network;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.axinom.drm.sample.license.LicenseManagerErrorCode;
+import com.axinom.drm.sample.license.internal.exception.LicenseManagerException;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Executes a request against equivalent endpoints with hedging. The request is sent to the first
+ * endpoint, and if no response arrived within the 95th percentile of recent latencies, a duplicate
+ * request is sent to the next endpoint. The first successful response wins and the other requests
+ * are cancelled. A failed request moves on to the next endpoint right away.
+ */
+public class HedgedRequestExecutor {
+
+    /**
+     * A request to one endpoint
+     */
+    public interface Attempt {
+        byte[] execute(String url) throws Exception;
+    }
+
+    private static final String TAG = HedgedRequestExecutor.class.getSimpleName();
+
+    // Hedge delay used until enough latencies are known
+    public static final long DEFAULT_HEDGE_DELAY_MS = 1000;
+    private static final long MIN_HEDGE_DELAY_MS = 50;
+    private static final int MIN_SAMPLES = 20;
+    private static final int MAX_SAMPLES = 100;
+
+    private final ExecutorService mExecutor = Executors.newCachedThreadPool();
+    private final long[] mLatencies = new long[MAX_SAMPLES];
+    private int mSampleCount = 0;
+    private int mNextSample = 0;
+
+    private long mRequestCount = 0;
+    private long mHedgedCount = 0;
+    private long mHedgeWinCount = 0;
+
+    private static class Result {
+        final int endpointIndex;
+        final long latencyMs;
+        final byte[] body;
+
+        Result(int endpointIndex, long latencyMs, byte[] body) {
+            this.endpointIndex = endpointIndex;
+            this.latencyMs = latencyMs;
+            this.body = body;
+        }
+    }
+
+    /**
+     * Executes the request with hedging.
+     *
+     * @param urls    equivalent endpoints, primary first
+     * @param attempt request to execute against one endpoint
+     * @return response body of the first successful request
+     * @throws LicenseManagerException if the request failed on all endpoints
+     */
+    public byte[] execute(List<String> urls, Attempt attempt) throws LicenseManagerException {
+        CompletionService<Result> completionService = new ExecutorCompletionService<>(mExecutor);
+        List<Future<Result>> futures = new ArrayList<>();
+        long hedgeDelayMs = getHedgeDelayMs();
+        boolean hedged = false;
+        int finished = 0;
+        Exception lastError = null;
+        futures.add(submit(completionService, urls, 0, attempt));
+        try {
+            while (true) {
+                Future<Result> done;
+                if (futures.size() < urls.size()) {
+                    done = completionService.poll(hedgeDelayMs, TimeUnit.MILLISECONDS);
+                    if (done == null) {
+                        Log.d(TAG, "No response within " + hedgeDelayMs + " ms, hedging to "
+                                + urls.get(futures.size()));
+                        hedged = true;
+                        futures.add(submit(completionService, urls, futures.size(), attempt));
+                        continue;
+                    }
+                } else if (finished < futures.size()) {
+                    done = completionService.take();
+                } else {
+                    break;
+                }
+                finished++;
+                try {
+                    Result result = done.get();
+                    recordResult(result, hedged);
+                    return result.body;
+                } catch (ExecutionException e) {
+                    lastError = e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+                    if (futures.size() < urls.size()) {
+                        futures.add(submit(completionService, urls, futures.size(), attempt));
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new LicenseManagerException(LicenseManagerErrorCode.ERROR_313,
+                    "Interrupted while waiting for a response");
+        } finally {
+            for (Future<Result> future : futures) future.cancel(true);
+        }
+        synchronized (this) {
+            mRequestCount++;
+            if (hedged) mHedgedCount++;
+        }
+        if (lastError instanceof LicenseManagerException) throw (LicenseManagerException) lastError;
+        throw new LicenseManagerException(LicenseManagerErrorCode.ERROR_313, String.valueOf(lastError));
+    }
+
+    private static Future<Result> submit(CompletionService<Result> completionService,
+                                         List<String> urls, int index, Attempt attempt) {
+        String url = urls.get(index);
+        return completionService.submit(() -> {
+            long startTime = SystemClock.elapsedRealtime();
+            byte[] body = attempt.execute(url);
+            return new Result(index, SystemClock.elapsedRealtime() - startTime, body);
+        });
+    }
+
+    private synchronized void recordResult(Result result, boolean hedged) {
+        mLatencies[mNextSample] = result.latencyMs;
+        mNextSample = (mNextSample + 1) % MAX_SAMPLES;
+        mSampleCount = Math.min(MAX_SAMPLES, mSampleCount + 1);
+        mRequestCount++;
+        if (hedged) mHedgedCount++;
+        if (hedged && result.endpointIndex > 0) mHedgeWinCount++;
+        Log.d(TAG, "Response from endpoint " + result.endpointIndex + " in " + result.latencyMs
+                + " ms, " + getStats());
+    }
+
+    // Returns the 95th percentile of recent latencies, or the default before enough are known
+    private synchronized long getHedgeDelayMs() {
+        if (mSampleCount < MIN_SAMPLES) return DEFAULT_HEDGE_DELAY_MS;
+        long[] latencies = Arrays.copyOf(mLatencies, mSampleCount);
+        Arrays.sort(latencies);
+        return Math.max(MIN_HEDGE_DELAY_MS, latencies[(int) Math.ceil(0.95 * mSampleCount) - 1]);
+    }
+
+    /**
+     * Returns hedging statistics in a loggable form.
+     *
+     * @return statistics string
+     */
+    public synchronized String getStats() {
+        return "requests=" + mRequestCount
+                + ", hedged=" + mHedgedCount
+                + ", hedgeRate=" + (mRequestCount == 0 ? 0 : mHedgedCount * 100 / mRequestCount) + "%"
+                + ", hedgeWins=" + mHedgeWinCount
+                + ", hedgeDelayMs=" + getHedgeDelayMs();
+    }
+}
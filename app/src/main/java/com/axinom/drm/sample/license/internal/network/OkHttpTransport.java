@@ -0,0 +1,387 @@
+package com.axinom.drm.sample.license.internal.network;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.axinom.drm.sample.license.RequestTiming;
+import com.axinom.drm.sample.license.interfaces.IHttpTransport;
+
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.Call;
+import okhttp3.Connection;
+import okhttp3.ConnectionPool;
+import okhttp3.EventListener;
+import okhttp3.Handshake;
+import okhttp3.HttpUrl;
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+import okhttp3.RequestBody;
+import okhttp3.ResponseBody;
+
+/**
+ * {@link IHttpTransport} based on OkHttp. Requests to a host are multiplexed over one HTTP/2
+ * connection if the server supports it, and fall back to pooled HTTP/1.1 connections otherwise.
+ * OkHttp does not expose HTTP/2 stream priorities, so requests are prioritized before they are
+ * sent instead: a per-host {@link PriorityGate} lets license and provisioning requests in ahead
+ * of manifest and release requests.
+ */
+public class OkHttpTransport implements IHttpTransport {
+
+    private static final String TAG = OkHttpTransport.class.getSimpleName();
+
+    public static final int DEFAULT_MAX_IN_FLIGHT_PER_HOST = 8;
+
+    private final OkHttpClient mClient;
+    private final PriorityGate mGate;
+
+    private long mRequestCount = 0;
+    private long mHttp2Count = 0;
+    private long mReusedCount = 0;
+
+    public OkHttpTransport() {
+        this(new OkHttpClient.Builder()
+                .protocols(Arrays.asList(Protocol.HTTP_2, Protocol.HTTP_1_1))
+                .connectionPool(new ConnectionPool(PooledHttpTransport.DEFAULT_MAX_IDLE_CONNECTIONS,
+                        PooledHttpTransport.DEFAULT_KEEP_ALIVE_DURATION_MS, TimeUnit.MILLISECONDS))
+                .build(), DEFAULT_MAX_IN_FLIGHT_PER_HOST);
+    }
+
+    /**
+     * @param client            client whose connection pool and settings are used
+     * @param maxInFlightPerHost maximum number of concurrent requests to one host
+     */
+    public OkHttpTransport(OkHttpClient client, int maxInFlightPerHost) {
+        mClient = client.newBuilder().eventListenerFactory(new TimingListenerFactory(
+                client.eventListenerFactory())).build();
+        mGate = new PriorityGate(maxInFlightPerHost);
+    }
+
+    @Override
+    public Response execute(Request request) throws IOException {
+        HttpUrl url = HttpUrl.parse(request.url);
+        if (url == null) throw new IOException("Invalid URL: " + request.url);
+        String host = url.host() + ":" + url.port();
+        CallTimer timer = new CallTimer();
+        Call call = newCall(request, url, timer);
+
+        long deadline = getDeadline(request);
+        mGate.enter(host, PriorityGate.getPriority(request.stage), deadline);
+        try {
+            startCallTimeout(call, deadline);
+            try (okhttp3.Response response = call.execute()) {
+                long responseTime = SystemClock.elapsedRealtime();
+                int maxBytes = request.maxResponseBytes > 0
+                        ? request.maxResponseBytes : Integer.MAX_VALUE;
+                // Content-Length of HEAD, 204 and 304 responses does not describe the (empty) body
+                boolean hasBody = !"HEAD".equals(request.method) && response.code() != 204
+                        && response.code() != 304;
+                ResponseBody responseBody = response.body();
+                byte[] data = responseBody != null ? ContentDecoder.readBody(
+                        responseBody.byteStream(), response.header("Content-Encoding"),
+                        hasBody ? responseBody.contentLength() : -1, maxBytes, deadline)
+                        : new byte[0];
+
+                RequestTiming timing = timer.getTiming(SystemClock.elapsedRealtime() - responseTime,
+                        request.body != null ? request.body.length : 0, data.length);
+                recordRequest(host, response.protocol(), timing.connectionReused);
+                return new Response(response.code(), getHeaders(response), data, timing);
+            }
+        } finally {
+            mGate.exit(host);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * <p>The call keeps its place in the {@link PriorityGate} until the stream is closed. The
+     * transfer time is not known, as the body is read by the caller.
+     */
+    @Override
+    public Response open(Request request) throws IOException {
+        HttpUrl url = HttpUrl.parse(request.url);
+        if (url == null) throw new IOException("Invalid URL: " + request.url);
+        String host = url.host() + ":" + url.port();
+        CallTimer timer = new CallTimer();
+        Call call = newCall(request, url, timer);
+
+        long deadline = getDeadline(request);
+        mGate.enter(host, PriorityGate.getPriority(request.stage), deadline);
+        okhttp3.Response response = null;
+        try {
+            startCallTimeout(call, deadline);
+            response = call.execute();
+            int maxBytes = request.maxResponseBytes > 0
+                    ? request.maxResponseBytes : Integer.MAX_VALUE;
+            // Decoding an empty body would fail on the missing gzip header
+            boolean hasBody = !"HEAD".equals(request.method) && response.code() != 204
+                    && response.code() != 304;
+            ResponseBody responseBody = response.body();
+            InputStream stream = responseBody != null && hasBody ? ContentDecoder.decode(
+                    responseBody.byteStream(), response.header("Content-Encoding"), maxBytes,
+                    deadline) : new ByteArrayInputStream(new byte[0]);
+
+            RequestTiming timing = timer.getTiming(RequestTiming.UNKNOWN,
+                    request.body != null ? request.body.length : 0, RequestTiming.UNKNOWN);
+            recordRequest(host, response.protocol(), timing.connectionReused);
+            return new Response(response.code(), getHeaders(response), null, timing,
+                    new CallInputStream(stream, response, host));
+        } catch (IOException | RuntimeException e) {
+            if (response != null) response.close();
+            mGate.exit(host);
+            throw e;
+        }
+    }
+
+    private Call newCall(Request request, HttpUrl url, CallTimer timer) {
+        okhttp3.Request.Builder builder = new okhttp3.Request.Builder().url(url)
+                .tag(CallTimer.class, timer);
+        for (Map.Entry<String, String> header : request.headers.entrySet()) {
+            builder.header(header.getKey(), header.getValue());
+        }
+        RequestBody body = request.body != null ? RequestBody.create(null, request.body)
+                : "POST".equals(request.method) ? RequestBody.create(null, new byte[0]) : null;
+        builder.method(request.method, body);
+
+        OkHttpClient client = mClient;
+        if (request.connectTimeoutMs > 0 || request.readTimeoutMs > 0) {
+            OkHttpClient.Builder clientBuilder = mClient.newBuilder();
+            if (request.connectTimeoutMs > 0) {
+                clientBuilder.connectTimeout(request.connectTimeoutMs, TimeUnit.MILLISECONDS);
+            }
+            if (request.readTimeoutMs > 0) {
+                clientBuilder.readTimeout(request.readTimeoutMs, TimeUnit.MILLISECONDS);
+            }
+            client = clientBuilder.build();
+        }
+        return client.newCall(builder.build());
+    }
+
+    // The total timeout covers the wait in the gate as well as the call
+    private static long getDeadline(Request request) {
+        return request.totalTimeoutMs > 0
+                ? SystemClock.elapsedRealtime() + request.totalTimeoutMs : Long.MAX_VALUE;
+    }
+
+    private static void startCallTimeout(Call call, long deadline) {
+        if (deadline == Long.MAX_VALUE) return;
+        long remainingMs = Math.max(1, deadline - SystemClock.elapsedRealtime());
+        call.timeout().timeout(remainingMs, TimeUnit.MILLISECONDS);
+    }
+
+    private static Map<String, String> getHeaders(okhttp3.Response response) {
+        Map<String, String> headers = new HashMap<>();
+        for (String name : response.headers().names()) {
+            headers.put(name, response.header(name));
+        }
+        return headers;
+    }
+
+    private synchronized void recordRequest(String host, Protocol protocol, boolean reused) {
+        mRequestCount++;
+        if (protocol == Protocol.HTTP_2) mHttp2Count++;
+        if (reused) mReusedCount++;
+        Log.d(TAG, "Request to " + host + " over " + protocol + ", connection reused: " + reused
+                + ", " + getStats());
+    }
+
+    /**
+     * Returns protocol, connection reuse and prioritization statistics in a loggable form.
+     *
+     * @return statistics string
+     */
+    public synchronized String getStats() {
+        return "requests=" + mRequestCount
+                + ", http2=" + mHttp2Count
+                + ", reused=" + mReusedCount
+                + ", connections=" + mClient.connectionPool().connectionCount()
+                + ", gate: " + mGate.getStats();
+    }
+
+    // Body stream of an opened response, closing the call and leaving the gate when closed
+    private class CallInputStream extends FilterInputStream {
+        private final okhttp3.Response mResponse;
+        private final String mHost;
+        private boolean mClosed = false;
+
+        CallInputStream(InputStream in, okhttp3.Response response, String host) {
+            super(in);
+            mResponse = response;
+            mHost = host;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (mClosed) return;
+            mClosed = true;
+            try {
+                super.close();
+            } finally {
+                mResponse.close();
+                mGate.exit(mHost);
+            }
+        }
+    }
+
+    // Routes events of calls made by this transport to their timers, which pass them on to the
+    // listener of the client the transport was created with
+    private static class TimingListenerFactory implements EventListener.Factory {
+        private final EventListener.Factory mDelegate;
+
+        TimingListenerFactory(EventListener.Factory delegate) {
+            mDelegate = delegate;
+        }
+
+        @Override
+        public EventListener create(Call call) {
+            CallTimer timer = call.request().tag(CallTimer.class);
+            if (timer == null) return mDelegate.create(call);
+            timer.mDelegate = mDelegate.create(call);
+            return timer;
+        }
+    }
+
+    // Collects the phase times of one call
+    private static class CallTimer extends EventListener {
+        private long mDnsStartTime;
+        private long mDnsMs = 0;
+        private long mConnectStartTime;
+        private long mConnectMs = 0;
+        private long mTlsStartTime;
+        private long mTlsMs = 0;
+        private long mRequestSentTime;
+        private long mTtfbMs = 0;
+        private boolean mConnected = false;
+        private EventListener mDelegate = EventListener.NONE;
+
+        @Override
+        public void callStart(Call call) {
+            mDelegate.callStart(call);
+        }
+
+        @Override
+        public void dnsStart(Call call, String domainName) {
+            mDnsStartTime = SystemClock.elapsedRealtime();
+            mDelegate.dnsStart(call, domainName);
+        }
+
+        @Override
+        public void dnsEnd(Call call, String domainName, List<InetAddress> inetAddressList) {
+            mDnsMs += SystemClock.elapsedRealtime() - mDnsStartTime;
+            mDelegate.dnsEnd(call, domainName, inetAddressList);
+        }
+
+        @Override
+        public void connectStart(Call call, InetSocketAddress inetSocketAddress, Proxy proxy) {
+            mConnected = true;
+            mConnectStartTime = SystemClock.elapsedRealtime();
+            mDelegate.connectStart(call, inetSocketAddress, proxy);
+        }
+
+        @Override
+        public void secureConnectStart(Call call) {
+            mTlsStartTime = SystemClock.elapsedRealtime();
+            mDelegate.secureConnectStart(call);
+        }
+
+        @Override
+        public void secureConnectEnd(Call call, Handshake handshake) {
+            mTlsMs += SystemClock.elapsedRealtime() - mTlsStartTime;
+            mDelegate.secureConnectEnd(call, handshake);
+        }
+
+        @Override
+        public void connectEnd(Call call, InetSocketAddress inetSocketAddress, Proxy proxy,
+                               Protocol protocol) {
+            mConnectMs += SystemClock.elapsedRealtime() - mConnectStartTime;
+            mDelegate.connectEnd(call, inetSocketAddress, proxy, protocol);
+        }
+
+        @Override
+        public void connectFailed(Call call, InetSocketAddress inetSocketAddress, Proxy proxy,
+                                  Protocol protocol, IOException ioe) {
+            mDelegate.connectFailed(call, inetSocketAddress, proxy, protocol, ioe);
+        }
+
+        @Override
+        public void connectionAcquired(Call call, Connection connection) {
+            mDelegate.connectionAcquired(call, connection);
+        }
+
+        @Override
+        public void connectionReleased(Call call, Connection connection) {
+            mDelegate.connectionReleased(call, connection);
+        }
+
+        @Override
+        public void requestHeadersStart(Call call) {
+            mDelegate.requestHeadersStart(call);
+        }
+
+        @Override
+        public void requestHeadersEnd(Call call, okhttp3.Request request) {
+            mRequestSentTime = SystemClock.elapsedRealtime();
+            mDelegate.requestHeadersEnd(call, request);
+        }
+
+        @Override
+        public void requestBodyStart(Call call) {
+            mDelegate.requestBodyStart(call);
+        }
+
+        @Override
+        public void requestBodyEnd(Call call, long byteCount) {
+            mRequestSentTime = SystemClock.elapsedRealtime();
+            mDelegate.requestBodyEnd(call, byteCount);
+        }
+
+        @Override
+        public void responseHeadersStart(Call call) {
+            mTtfbMs = SystemClock.elapsedRealtime() - mRequestSentTime;
+            mDelegate.responseHeadersStart(call);
+        }
+
+        @Override
+        public void responseHeadersEnd(Call call, okhttp3.Response response) {
+            mDelegate.responseHeadersEnd(call, response);
+        }
+
+        @Override
+        public void responseBodyStart(Call call) {
+            mDelegate.responseBodyStart(call);
+        }
+
+        @Override
+        public void responseBodyEnd(Call call, long byteCount) {
+            mDelegate.responseBodyEnd(call, byteCount);
+        }
+
+        @Override
+        public void callEnd(Call call) {
+            mDelegate.callEnd(call);
+        }
+
+        @Override
+        public void callFailed(Call call, IOException ioe) {
+            mDelegate.callFailed(call, ioe);
+        }
+
+        RequestTiming getTiming(long transferMs, long bytesSent, long bytesReceived) {
+            // Connect time as reported by OkHttp includes the TLS handshake
+            return new RequestTiming(mDnsMs, Math.max(0, mConnectMs - mTlsMs), mTlsMs, mTtfbMs,
+                    transferMs, bytesSent, bytesReceived, !mConnected);
+        }
+    }
+}
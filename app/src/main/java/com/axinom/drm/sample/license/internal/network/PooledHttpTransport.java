@@ -0,0 +1,308 @@
+package com.axinom.drm.sample.license.internal.network;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.axinom.drm.sample.license.RequestTiming;
+import com.axinom.drm.sample.license.interfaces.IHttpTransport;
+
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Default {@link IHttpTransport} based on {@link HttpURLConnection} with keep-alive connection
+ * pooling. Connections are never disconnected after a successful exchange; the response is read
+ * fully and closed instead, which returns the connection to the platform connection pool for
+ * reuse by the next request to the same host.
+ *
+ * <p>The platform pool is shared by all {@link HttpURLConnection} users of the process and is
+ * left at its defaults unless {@link #configurePlatformPool(int, long)} is called. The number of
+ * concurrent connections per host is limited by the transport itself.
+ *
+ * <p>HttpURLConnection does not tell whether a pooled socket was used, so the timings report
+ * connection reuse as unknown. {@link #getStats()} reports an estimate instead: a connect phase
+ * of at most {@link #REUSE_CONNECT_THRESHOLD_MS} is counted as a reused connection, as no TCP or
+ * TLS handshake can complete that fast over a real network.
+ */
+public class PooledHttpTransport implements IHttpTransport {
+
+    private static final String TAG = PooledHttpTransport.class.getSimpleName();
+
+    public static final int DEFAULT_MAX_IDLE_CONNECTIONS = 5;
+    public static final long DEFAULT_KEEP_ALIVE_DURATION_MS = 5 * 60 * 1000;
+    public static final int DEFAULT_MAX_CONNECTIONS_PER_HOST = 4;
+    public static final long REUSE_CONNECT_THRESHOLD_MS = 2;
+
+    private final int mMaxConnectionsPerHost;
+    private final Map<String, Semaphore> mHostPermits = new HashMap<>();
+
+    private long mRequestCount = 0;
+    private long mEstimatedReusedCount = 0;
+
+    public PooledHttpTransport() {
+        this(DEFAULT_MAX_CONNECTIONS_PER_HOST);
+    }
+
+    /**
+     * @param maxConnectionsPerHost maximum number of concurrent connections to one host
+     */
+    public PooledHttpTransport(int maxConnectionsPerHost) {
+        mMaxConnectionsPerHost = maxConnectionsPerHost;
+    }
+
+    /**
+     * Configures the platform connection pool through the http.keepAlive, http.maxConnections and
+     * http.keepAliveDuration system properties. The settings apply to every HttpURLConnection of
+     * the process and are read when the first connection is made, so this should be called before
+     * any HTTP request. The platform defaults match {@link #DEFAULT_MAX_IDLE_CONNECTIONS} and
+     * {@link #DEFAULT_KEEP_ALIVE_DURATION_MS}.
+     *
+     * @param maxIdleConnections  maximum number of idle connections kept in the pool
+     * @param keepAliveDurationMs time after which an idle connection is closed
+     */
+    public static void configurePlatformPool(int maxIdleConnections, long keepAliveDurationMs) {
+        System.setProperty("http.keepAlive", "true");
+        System.setProperty("http.maxConnections", String.valueOf(maxIdleConnections));
+        System.setProperty("http.keepAliveDuration", String.valueOf(keepAliveDurationMs));
+    }
+
+    @Override
+    public Response execute(Request request) throws IOException {
+        URL url = new URL(request.url);
+        String host = getHost(url);
+        Semaphore permits = acquirePermit(host);
+        Exchange exchange = null;
+        try {
+            exchange = send(request, url);
+            HttpURLConnection urlConnection = exchange.urlConnection;
+            InputStream in = exchange.getBodyStream();
+            int maxBytes = request.maxResponseBytes > 0 ? request.maxResponseBytes : Integer.MAX_VALUE;
+            // Reading the body to the end and closing the stream returns the connection to the pool
+            byte[] body = in != null ? ContentDecoder.readBody(in, urlConnection.getContentEncoding(),
+                    exchange.getContentLength(), maxBytes, exchange.deadline) : new byte[0];
+            Map<String, String> headers = getHeaders(urlConnection);
+
+            recordRequest(host, exchange.connectMs);
+            RequestTiming timing = exchange.getTiming(
+                    SystemClock.elapsedRealtime() - exchange.responseTime, body.length);
+            return new Response(exchange.responseCode, headers, body, timing);
+        } catch (IOException e) {
+            if (exchange != null) exchange.urlConnection.disconnect();
+            throw e;
+        } finally {
+            permits.release();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * <p>The connection and its per-host permit are held until the stream is closed. The
+     * connection is returned to the pool if the body was read to the end, otherwise it is
+     * disconnected. The transfer time is not known, as the body is read by the caller.
+     */
+    @Override
+    public Response open(Request request) throws IOException {
+        URL url = new URL(request.url);
+        String host = getHost(url);
+        Semaphore permits = acquirePermit(host);
+        Exchange exchange = null;
+        try {
+            exchange = send(request, url);
+            HttpURLConnection urlConnection = exchange.urlConnection;
+            InputStream in = exchange.getBodyStream();
+            int maxBytes = request.maxResponseBytes > 0 ? request.maxResponseBytes : Integer.MAX_VALUE;
+            // Decoding an empty body would fail on the missing gzip header
+            if (in != null && !exchange.hasBody) in.close();
+            InputStream stream = in != null && exchange.hasBody ? ContentDecoder.decode(in,
+                    urlConnection.getContentEncoding(), maxBytes, exchange.deadline)
+                    : new ByteArrayInputStream(new byte[0]);
+            Map<String, String> headers = getHeaders(urlConnection);
+            RequestTiming timing = exchange.getTiming(RequestTiming.UNKNOWN, RequestTiming.UNKNOWN);
+            return new Response(exchange.responseCode, headers, null, timing,
+                    new ConnectionInputStream(stream, exchange, host, permits));
+        } catch (IOException e) {
+            if (exchange != null) exchange.urlConnection.disconnect();
+            permits.release();
+            throw e;
+        }
+    }
+
+    // Sends the request and waits for the response status
+    private Exchange send(Request request, URL url) throws IOException {
+        Exchange exchange = new Exchange();
+        long startTime = SystemClock.elapsedRealtime();
+        exchange.requestBytes = request.body != null ? request.body.length : 0;
+        // The host is resolved up front to measure DNS time, the platform caches the result
+        InetAddress.getAllByName(url.getHost());
+        exchange.dnsMs = SystemClock.elapsedRealtime() - startTime;
+        HttpURLConnection urlConnection = (HttpURLConnection) url.openConnection();
+        exchange.urlConnection = urlConnection;
+        if (request.connectTimeoutMs > 0) urlConnection.setConnectTimeout(request.connectTimeoutMs);
+        if (request.readTimeoutMs > 0) urlConnection.setReadTimeout(request.readTimeoutMs);
+        urlConnection.setRequestMethod(request.method);
+        urlConnection.setDoInput(true);
+        urlConnection.setDoOutput(request.body != null);
+        for (Map.Entry<String, String> header : request.headers.entrySet()) {
+            urlConnection.setRequestProperty(header.getKey(), header.getValue());
+        }
+        if (request.body != null) urlConnection.setFixedLengthStreamingMode(request.body.length);
+        // HttpURLConnection sets up TCP and TLS in one step, so TLS time is part of connect time
+        long connectStartTime = SystemClock.elapsedRealtime();
+        urlConnection.connect();
+        exchange.connectMs = SystemClock.elapsedRealtime() - connectStartTime;
+        if (request.body != null) {
+            try (OutputStream out = urlConnection.getOutputStream()) {
+                out.write(request.body);
+            }
+        }
+
+        long requestSentTime = SystemClock.elapsedRealtime();
+        exchange.responseCode = urlConnection.getResponseCode();
+        exchange.responseTime = SystemClock.elapsedRealtime();
+        exchange.ttfbMs = exchange.responseTime - requestSentTime;
+        exchange.deadline = request.totalTimeoutMs > 0
+                ? startTime + request.totalTimeoutMs : Long.MAX_VALUE;
+        // Content-Length of HEAD, 204 and 304 responses does not describe the (empty) body
+        exchange.hasBody = !"HEAD".equals(request.method) && exchange.responseCode != 204
+                && exchange.responseCode != 304;
+        return exchange;
+    }
+
+    private Semaphore acquirePermit(String host) throws IOException {
+        Semaphore permits = getPermits(host);
+        try {
+            permits.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a connection to " + host);
+        }
+        return permits;
+    }
+
+    private static String getHost(URL url) {
+        return url.getHost() + ":" + (url.getPort() != -1 ? url.getPort() : url.getDefaultPort());
+    }
+
+    private synchronized Semaphore getPermits(String host) {
+        Semaphore permits = mHostPermits.get(host);
+        if (permits == null) {
+            permits = new Semaphore(mMaxConnectionsPerHost, true);
+            mHostPermits.put(host, permits);
+        }
+        return permits;
+    }
+
+    private synchronized void recordRequest(String host, long connectMs) {
+        mRequestCount++;
+        if (connectMs <= REUSE_CONNECT_THRESHOLD_MS) mEstimatedReusedCount++;
+        Log.d(TAG, "Request to " + host + " done, " + getStats());
+    }
+
+    /**
+     * Returns request statistics with the estimated connection reuse rate in a loggable form.
+     *
+     * @return statistics string
+     */
+    public synchronized String getStats() {
+        return "requests=" + mRequestCount
+                + ", reusedEstimate=" + mEstimatedReusedCount
+                + ", reuseRateEstimate=" + (mRequestCount > 0
+                ? String.format(Locale.US, "%.2f", (double) mEstimatedReusedCount / mRequestCount)
+                : "0.00");
+    }
+
+    // State of one exchange on a connection
+    private static class Exchange {
+        HttpURLConnection urlConnection;
+        boolean hasBody;
+        int responseCode;
+        int requestBytes;
+        long dnsMs;
+        long connectMs;
+        long ttfbMs;
+        long responseTime;
+        long deadline;
+
+        InputStream getBodyStream() throws IOException {
+            return responseCode >= 400
+                    ? urlConnection.getErrorStream() : urlConnection.getInputStream();
+        }
+
+        long getContentLength() {
+            return hasBody ? urlConnection.getContentLength() : -1;
+        }
+
+        RequestTiming getTiming(long transferMs, long responseBytes) {
+            return new RequestTiming(dnsMs, connectMs, RequestTiming.UNKNOWN, ttfbMs, transferMs,
+                    requestBytes, responseBytes, null);
+        }
+    }
+
+    // Body stream of an opened response, releasing the connection when closed
+    private class ConnectionInputStream extends FilterInputStream {
+        private final Exchange mExchange;
+        private final String mHost;
+        private final Semaphore mPermits;
+        private boolean mEndOfStream;
+        private boolean mClosed = false;
+
+        ConnectionInputStream(InputStream in, Exchange exchange, String host, Semaphore permits) {
+            super(in);
+            mExchange = exchange;
+            mEndOfStream = !exchange.hasBody;
+            mHost = host;
+            mPermits = permits;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int value = super.read();
+            if (value == -1) mEndOfStream = true;
+            return value;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int count = super.read(b, off, len);
+            if (count == -1) mEndOfStream = true;
+            return count;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (mClosed) return;
+            mClosed = true;
+            try {
+                super.close();
+            } finally {
+                // A partially read body would leave the connection unusable for the next request
+                if (!mEndOfStream) mExchange.urlConnection.disconnect();
+                recordRequest(mHost, mExchange.connectMs);
+                mPermits.release();
+            }
+        }
+    }
+
+    private static Map<String, String> getHeaders(HttpURLConnection urlConnection) {
+        Map<String, String> headers = new HashMap<>();
+        for (Map.Entry<String, List<String>> header : urlConnection.getHeaderFields().entrySet()) {
+            if (header.getKey() != null && !header.getValue().isEmpty()) {
+                headers.put(header.getKey(), header.getValue().get(0));
+            }
+        }
+        return headers;
+    }
+}
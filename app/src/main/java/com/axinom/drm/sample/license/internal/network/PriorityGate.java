@@ -0,0 +1,134 @@
+package com.axinom.drm.sample.license.internal.network;
+
+import android.os.SystemClock;
+
+import com.axinom.drm.sample.license.RequestStage;
+
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * Limits the number of requests in flight per host and lets waiting requests in by priority, so
+ * requests which block playback are not queued behind background traffic. Requests of equal
+ * priority are let in in arrival order.
+ */
+public class PriorityGate {
+
+    public static final int PRIORITY_HIGH = 0;
+    public static final int PRIORITY_NORMAL = 1;
+    public static final int PRIORITY_LOW = 2;
+
+    private final int mMaxInFlightPerHost;
+    private final Map<String, Integer> mInFlight = new HashMap<>();
+    private final Map<String, PriorityQueue<Ticket>> mWaiting = new HashMap<>();
+    private long mNextSequence = 0;
+
+    private long mGrantedCount = 0;
+    private long mWaitedCount = 0;
+
+    private static class Ticket implements Comparable<Ticket> {
+        final int priority;
+        final long sequence;
+
+        Ticket(int priority, long sequence) {
+            this.priority = priority;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public int compareTo(Ticket other) {
+            if (priority != other.priority) return Integer.compare(priority, other.priority);
+            return Long.compare(sequence, other.sequence);
+        }
+    }
+
+    /**
+     * @param maxInFlightPerHost maximum number of concurrent requests to one host
+     */
+    public PriorityGate(int maxInFlightPerHost) {
+        mMaxInFlightPerHost = Math.max(1, maxInFlightPerHost);
+    }
+
+    /**
+     * Returns the priority of requests of the stage. License and provisioning requests block
+     * playback, release requests are background traffic.
+     *
+     * @param stage request stage, or null if unknown
+     * @return priority
+     */
+    public static int getPriority(RequestStage stage) {
+        if (stage == null) return PRIORITY_NORMAL;
+        switch (stage) {
+            case LICENSE:
+            case PROVISIONING:
+                return PRIORITY_HIGH;
+            case RELEASE:
+                return PRIORITY_LOW;
+            default:
+                return PRIORITY_NORMAL;
+        }
+    }
+
+    /**
+     * Waits until the request may be sent, at most until the deadline. Every successful call must
+     * be followed by {@link #exit(String)}.
+     *
+     * @param host     host of the request
+     * @param priority request priority
+     * @param deadline {@link SystemClock#elapsedRealtime()} by which the request must be let in,
+     *                 or Long.MAX_VALUE to wait without limit
+     * @throws SocketTimeoutException if the deadline passed while waiting
+     * @throws InterruptedIOException if interrupted while waiting
+     */
+    public synchronized void enter(String host, int priority, long deadline)
+            throws InterruptedIOException {
+        PriorityQueue<Ticket> waiting = mWaiting.get(host);
+        if (waiting == null) {
+            waiting = new PriorityQueue<>();
+            mWaiting.put(host, waiting);
+        }
+        Ticket ticket = new Ticket(priority, mNextSequence++);
+        waiting.add(ticket);
+        boolean waited = false;
+        try {
+            while (getInFlight(host) >= mMaxInFlightPerHost || waiting.peek() != ticket) {
+                waited = true;
+                long remainingMs = deadline - SystemClock.elapsedRealtime();
+                if (remainingMs <= 0) {
+                    waiting.remove(ticket);
+                    notifyAll();
+                    throw new SocketTimeoutException("Timed out waiting for " + host);
+                }
+                wait(deadline == Long.MAX_VALUE ? 0 : remainingMs);
+            }
+        } catch (InterruptedException e) {
+            waiting.remove(ticket);
+            notifyAll();
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for " + host);
+        }
+        waiting.poll();
+        mInFlight.put(host, getInFlight(host) + 1);
+        mGrantedCount++;
+        if (waited) mWaitedCount++;
+        // The next waiting request may fit as well
+        notifyAll();
+    }
+
+    public synchronized void exit(String host) {
+        mInFlight.put(host, Math.max(0, getInFlight(host) - 1));
+        notifyAll();
+    }
+
+    private int getInFlight(String host) {
+        Integer inFlight = mInFlight.get(host);
+        return inFlight != null ? inFlight : 0;
+    }
+
+    public synchronized String getStats() {
+        return "granted=" + mGrantedCount + ", waited=" + mWaitedCount;
+    }
+}
@@ -0,0 +1,54 @@
+package com.axinom.drm.sample.license.internal.network;
+
+/**
+ * Limits applied to manifest, license and provisioning requests. Connect and read timeouts apply
+ * to every attempt, the deadline limits the total time of a request including retries and
+ * backoff, and responses larger than the maximum size are rejected without being read fully.
+ */
+public class RequestOptions {
+
+    public static final int DEFAULT_CONNECT_TIMEOUT_MS = 10 * 1000;
+    public static final int DEFAULT_READ_TIMEOUT_MS = 15 * 1000;
+    public static final long DEFAULT_DEADLINE_MS = 60 * 1000;
+    public static final int DEFAULT_MAX_RESPONSE_BYTES = 16 * 1024 * 1024;
+
+    private final int mConnectTimeoutMs;
+    private final int mReadTimeoutMs;
+    private final long mDeadlineMs;
+    private final int mMaxResponseBytes;
+
+    public RequestOptions() {
+        this(DEFAULT_CONNECT_TIMEOUT_MS, DEFAULT_READ_TIMEOUT_MS, DEFAULT_DEADLINE_MS,
+                DEFAULT_MAX_RESPONSE_BYTES);
+    }
+
+    /**
+     * @param connectTimeoutMs timeout for establishing a connection
+     * @param readTimeoutMs    timeout for waiting on response data
+     * @param deadlineMs       maximum total time of a request, including retries
+     * @param maxResponseBytes maximum size of a response body
+     */
+    public RequestOptions(int connectTimeoutMs, int readTimeoutMs, long deadlineMs,
+                          int maxResponseBytes) {
+        mConnectTimeoutMs = Math.max(1, connectTimeoutMs);
+        mReadTimeoutMs = Math.max(1, readTimeoutMs);
+        mDeadlineMs = Math.max(1, deadlineMs);
+        mMaxResponseBytes = Math.max(1, maxResponseBytes);
+    }
+
+    public int getConnectTimeoutMs() {
+        return mConnectTimeoutMs;
+    }
+
+    public int getReadTimeoutMs() {
+        return mReadTimeoutMs;
+    }
+
+    public long getDeadlineMs() {
+        return mDeadlineMs;
+    }
+
+    public int getMaxResponseBytes() {
+        return mMaxResponseBytes;
+    }
+}
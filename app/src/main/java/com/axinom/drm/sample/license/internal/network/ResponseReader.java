@@ -0,0 +1,175 @@
+package com.axinom.drm.sample.license.internal.network;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.SocketTimeoutException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * Reads response bodies with as few allocations and copies as possible. If the content length is
+ * known, the body is read directly into an array of the exact size. Otherwise it is read into
+ * reusable chunks from a shared pool and copied once into the result array.
+ */
+public class ResponseReader {
+
+    private static final String TAG = ResponseReader.class.getSimpleName();
+
+    private static final int CHUNK_SIZE = 16 * 1024;
+    // Maximum number of idle chunks kept in the pool
+    private static final int MAX_POOLED_CHUNKS = 64;
+    // Reads of at least this size are logged with their throughput
+    private static final int LARGE_RESPONSE_BYTES = 512 * 1024;
+
+    private static final Deque<byte[]> sChunkPool = new ArrayDeque<>();
+
+    private static long sReadCount = 0;
+    private static long sBytesRead = 0;
+    private static long sBytesAllocated = 0;
+    private static long sPresizedCount = 0;
+    private static long sChunkReuseCount = 0;
+
+    /**
+     * Reads the stream to the end and closes it.
+     *
+     * @param inputStream   stream to read
+     * @param contentLength expected number of bytes, or -1 if unknown
+     * @param maxBytes      maximum number of bytes to read
+     * @param deadline      elapsed realtime after which reading fails
+     * @return bytes read
+     * @throws IOException if reading failed, the maximum size was exceeded or the deadline passed
+     */
+    public static byte[] read(InputStream inputStream, long contentLength, int maxBytes,
+                              long deadline) throws IOException {
+        long startTime = SystemClock.elapsedRealtime();
+        byte[] result;
+        long allocated;
+        try {
+            if (contentLength >= 0) {
+                if (contentLength > maxBytes) throw new ResponseTooLargeException(maxBytes);
+                result = readPresized(inputStream, (int) contentLength, deadline);
+                allocated = result.length;
+            } else {
+                List<byte[]> chunks = new ArrayList<>();
+                int[] lastChunkLength = new int[1];
+                try {
+                    allocated = readChunks(inputStream, chunks, lastChunkLength, maxBytes, deadline);
+                    result = join(chunks, lastChunkLength[0]);
+                    allocated += result.length;
+                } finally {
+                    releaseChunks(chunks);
+                }
+            }
+        } finally {
+            inputStream.close();
+        }
+        recordRead(result.length, allocated, contentLength >= 0,
+                SystemClock.elapsedRealtime() - startTime);
+        return result;
+    }
+
+    private static byte[] readPresized(InputStream inputStream, int length, long deadline)
+            throws IOException {
+        byte[] result = new byte[length];
+        int offset = 0;
+        while (offset < length) {
+            int count = inputStream.read(result, offset, length - offset);
+            if (count == -1) {
+                throw new IOException("Response ended after " + offset + " of " + length + " bytes");
+            }
+            offset += count;
+            checkDeadline(deadline);
+        }
+        return result;
+    }
+
+    // Reads into pooled chunks and returns the number of newly allocated bytes
+    private static long readChunks(InputStream inputStream, List<byte[]> chunks,
+                                   int[] lastChunkLength, int maxBytes, long deadline)
+            throws IOException {
+        long allocated = 0;
+        long total = 0;
+        byte[] chunk = null;
+        int offset = CHUNK_SIZE;
+        while (true) {
+            if (offset == CHUNK_SIZE) {
+                chunk = acquireChunk();
+                if (chunk == null) {
+                    chunk = new byte[CHUNK_SIZE];
+                    allocated += CHUNK_SIZE;
+                }
+                chunks.add(chunk);
+                offset = 0;
+            }
+            int count = inputStream.read(chunk, offset, CHUNK_SIZE - offset);
+            if (count == -1) break;
+            offset += count;
+            total += count;
+            if (total > maxBytes) throw new ResponseTooLargeException(maxBytes);
+            checkDeadline(deadline);
+        }
+        lastChunkLength[0] = offset;
+        return allocated;
+    }
+
+    private static byte[] join(List<byte[]> chunks, int lastChunkLength) {
+        int length = (chunks.size() - 1) * CHUNK_SIZE + lastChunkLength;
+        byte[] result = new byte[length];
+        for (int i = 0; i < chunks.size(); i++) {
+            int chunkLength = i == chunks.size() - 1 ? lastChunkLength : CHUNK_SIZE;
+            System.arraycopy(chunks.get(i), 0, result, i * CHUNK_SIZE, chunkLength);
+        }
+        return result;
+    }
+
+    private static void checkDeadline(long deadline) throws SocketTimeoutException {
+        if (SystemClock.elapsedRealtime() > deadline) {
+            throw new SocketTimeoutException("Response not received within the deadline");
+        }
+    }
+
+    private static synchronized byte[] acquireChunk() {
+        byte[] chunk = sChunkPool.pollLast();
+        if (chunk != null) sChunkReuseCount++;
+        return chunk;
+    }
+
+    private static synchronized void releaseChunks(List<byte[]> chunks) {
+        for (byte[] chunk : chunks) {
+            if (sChunkPool.size() >= MAX_POOLED_CHUNKS) break;
+            sChunkPool.addLast(chunk);
+        }
+    }
+
+    private static synchronized void recordRead(int length, long allocated, boolean presized,
+                                                long durationMs) {
+        sReadCount++;
+        sBytesRead += length;
+        sBytesAllocated += allocated;
+        if (presized) sPresizedCount++;
+        if (length >= LARGE_RESPONSE_BYTES) {
+            Log.d(TAG, "Read " + length + " bytes in " + durationMs + " ms ("
+                    + (durationMs > 0 ? length / durationMs : length) + " KB/s), allocated "
+                    + allocated + " bytes, presized: " + presized + ", " + getStats());
+        }
+    }
+
+    /**
+     * Returns allocation statistics in a loggable form.
+     *
+     * @return statistics string
+     */
+    public static synchronized String getStats() {
+        return "reads=" + sReadCount
+                + ", presized=" + sPresizedCount
+                + ", bytesRead=" + sBytesRead
+                + ", bytesAllocated=" + sBytesAllocated
+                + ", chunkReuses=" + sChunkReuseCount
+                + ", pooledChunks=" + sChunkPool.size();
+    }
+}
@@ -0,0 +1,13 @@
+package com.axinom.drm.sample.license.internal.network;
+
+import java.io.IOException;
+
+/**
+ * Thrown by a transport when a response body exceeds the maximum allowed size
+ */
+public class ResponseTooLargeException extends IOException {
+
+    public ResponseTooLargeException(long maxBytes) {
+        super("Response is larger than " + maxBytes + " bytes");
+    }
+}
@@ -0,0 +1,165 @@
+package com.axinom.drm.sample.license.internal.network;
+
+import com.axinom.drm.sample.license.RequestStage;
+import com.axinom.drm.sample.license.interfaces.IHttpTransport;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Classifies request results and decides about retries. Server errors (5xx), 408, 429, timeouts
+ * and connection failures are retryable, other client errors (4xx), oversized responses and HTML
+ * error pages served with a success status (e.g. by captive portals) are fatal. Manifest, license
+ * and provisioning requests are retried with exponential backoff and jitter; release requests are
+ * not retried, as the server may have processed a request whose response was lost.
+ */
+public class RetryPolicy {
+
+    public enum Classification {
+        SUCCESS,
+        RETRYABLE,
+        FATAL
+    }
+
+    public static final int DEFAULT_MAX_ATTEMPTS = 3;
+    public static final long DEFAULT_INITIAL_BACKOFF_MS = 500;
+    public static final long DEFAULT_MAX_BACKOFF_MS = 8000;
+    // Number of leading body bytes inspected for an HTML error page
+    private static final int HTML_SNIFF_LENGTH = 64;
+
+    private final int mMaxAttempts;
+    private final long mInitialBackoffMs;
+    private final long mMaxBackoffMs;
+    private final Random mRandom = new Random();
+
+    // Attempt statistics by stage
+    private final Map<RequestStage, long[]> mStats = new EnumMap<>(RequestStage.class);
+    private static final int STAT_REQUESTS = 0;
+    private static final int STAT_ATTEMPTS = 1;
+    private static final int STAT_FAILURES = 2;
+
+    public RetryPolicy() {
+        this(DEFAULT_MAX_ATTEMPTS, DEFAULT_INITIAL_BACKOFF_MS, DEFAULT_MAX_BACKOFF_MS);
+    }
+
+    /**
+     * @param maxAttempts      maximum number of attempts of a retryable request, including the first
+     * @param initialBackoffMs backoff before the first retry, doubled for every further retry
+     * @param maxBackoffMs     maximum backoff
+     */
+    public RetryPolicy(int maxAttempts, long initialBackoffMs, long maxBackoffMs) {
+        mMaxAttempts = Math.max(1, maxAttempts);
+        mInitialBackoffMs = initialBackoffMs;
+        mMaxBackoffMs = maxBackoffMs;
+    }
+
+    public static Classification classify(IHttpTransport.Response response) {
+        int code = response.code;
+        if (code == 408 || code == 429 || code >= 500) return Classification.RETRYABLE;
+        if (code >= 400) return Classification.FATAL;
+        if (isHtml(response)) return Classification.FATAL;
+        return Classification.SUCCESS;
+    }
+
+    public static Classification classify(IOException e) {
+        if (e instanceof ResponseTooLargeException) return Classification.FATAL;
+        if (e instanceof InterruptedIOException && !(e instanceof SocketTimeoutException)) {
+            return Classification.FATAL;
+        }
+        return Classification.RETRYABLE;
+    }
+
+    /**
+     * Returns whether the response is an HTML page, e.g. an error page of a proxy or captive
+     * portal. The body of a streamed response is peeked if its stream supports mark and reset,
+     * without consuming it.
+     *
+     * @param response response
+     * @return true if the content type or the start of the body is HTML
+     */
+    public static boolean isHtml(IHttpTransport.Response response) {
+        String contentType = response.getHeader("Content-Type");
+        if (contentType != null && contentType.toLowerCase(Locale.US).contains("text/html")) {
+            return true;
+        }
+        if (response.body != null) return startsWithHtml(response.body, response.body.length);
+        if (response.stream == null || !response.stream.markSupported()) return false;
+        byte[] start = new byte[HTML_SNIFF_LENGTH];
+        int length = 0;
+        try {
+            response.stream.mark(HTML_SNIFF_LENGTH);
+            try {
+                while (length < start.length) {
+                    int count = response.stream.read(start, length, start.length - length);
+                    if (count == -1) break;
+                    length += count;
+                }
+            } finally {
+                response.stream.reset();
+            }
+        } catch (IOException e) {
+            // The error surfaces again when the body is read
+            return false;
+        }
+        return startsWithHtml(start, length);
+    }
+
+    private static boolean startsWithHtml(byte[] data, int length) {
+        String start = new String(data, 0, Math.min(HTML_SNIFF_LENGTH, length),
+                StandardCharsets.ISO_8859_1).trim().toLowerCase(Locale.US);
+        return start.startsWith("<!doctype html") || start.startsWith("<html");
+    }
+
+    public boolean shouldRetry(RequestStage stage, Classification classification, int attempt) {
+        return classification == Classification.RETRYABLE && stage != RequestStage.RELEASE
+                && attempt < mMaxAttempts;
+    }
+
+    /**
+     * Returns the delay before the next attempt: exponential backoff with random jitter between
+     * half and the full backoff.
+     *
+     * @param attempt number of the failed attempt, starting from 1
+     * @return delay in milliseconds
+     */
+    public long getBackoffMs(int attempt) {
+        long backoffMs = Math.min(mMaxBackoffMs, mInitialBackoffMs << Math.min(attempt - 1, 20));
+        synchronized (mRandom) {
+            return backoffMs / 2 + (long) (mRandom.nextDouble() * (backoffMs / 2));
+        }
+    }
+
+    public synchronized void recordResult(RequestStage stage, int attempts, boolean success) {
+        long[] stats = mStats.get(stage);
+        if (stats == null) {
+            stats = new long[3];
+            mStats.put(stage, stats);
+        }
+        stats[STAT_REQUESTS]++;
+        stats[STAT_ATTEMPTS] += attempts;
+        if (!success) stats[STAT_FAILURES]++;
+    }
+
+    /**
+     * Returns attempt statistics by stage in a loggable form.
+     *
+     * @return statistics string
+     */
+    public synchronized String getStats() {
+        StringBuilder builder = new StringBuilder();
+        for (Map.Entry<RequestStage, long[]> entry : mStats.entrySet()) {
+            long[] stats = entry.getValue();
+            if (builder.length() > 0) builder.append(", ");
+            builder.append(entry.getKey()).append(": requests=").append(stats[STAT_REQUESTS])
+                    .append(" attempts=").append(stats[STAT_ATTEMPTS])
+                    .append(" failures=").append(stats[STAT_FAILURES]);
+        }
+        return builder.toString();
+    }
+}
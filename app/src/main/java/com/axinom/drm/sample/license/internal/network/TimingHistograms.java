@@ -0,0 +1,127 @@
+package com.axinom.drm.sample.license.internal.network;
+
+import android.util.Log;
+
+import com.axinom.drm.sample.license.RequestStage;
+import com.axinom.drm.sample.license.RequestTiming;
+import com.axinom.drm.sample.license.interfaces.IRequestTimingListener;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Aggregates request timings into histograms by host and request stage. Every phase has its own
+ * histogram with exponential bucket bounds, from which percentiles are estimated.
+ */
+public class TimingHistograms implements IRequestTimingListener {
+
+    private static final String TAG = TimingHistograms.class.getSimpleName();
+
+    // Upper bounds of the histogram buckets in milliseconds, the last bucket is unbounded
+    private static final long[] BUCKET_BOUNDS_MS =
+            {10, 25, 50, 100, 250, 500, 1000, 2500, 5000, 10000, Long.MAX_VALUE};
+    private static final String[] PHASES = {"dns", "connect", "tls", "ttfb", "transfer", "total"};
+
+    private final Map<String, Histogram> mHistograms = new LinkedHashMap<>();
+
+    private static class Histogram {
+        final long[][] counts = new long[PHASES.length][BUCKET_BOUNDS_MS.length];
+        long requests = 0;
+        long bytesSent = 0;
+        long bytesReceived = 0;
+        long reused = 0;
+        // Requests whose transport reported whether the connection was reused
+        long reuseKnown = 0;
+
+        void add(RequestTiming timing) {
+            long[] values = {timing.dnsMs, timing.connectMs, timing.tlsMs, timing.ttfbMs,
+                    timing.transferMs, timing.getTotalMs()};
+            for (int phase = 0; phase < PHASES.length; phase++) {
+                if (values[phase] == RequestTiming.UNKNOWN) continue;
+                counts[phase][getBucket(values[phase])]++;
+            }
+            requests++;
+            bytesSent += timing.bytesSent;
+            bytesReceived += timing.bytesReceived;
+            if (timing.connectionReused != null) {
+                reuseKnown++;
+                if (timing.connectionReused) reused++;
+            }
+        }
+
+        // Returns the upper bound of the bucket which contains the percentile
+        long getPercentileMs(int phase, double percentile) {
+            long total = 0;
+            for (long count : counts[phase]) total += count;
+            if (total == 0) return RequestTiming.UNKNOWN;
+            long rank = (long) Math.ceil(percentile * total);
+            long seen = 0;
+            for (int bucket = 0; bucket < BUCKET_BOUNDS_MS.length; bucket++) {
+                seen += counts[phase][bucket];
+                if (seen >= rank) return BUCKET_BOUNDS_MS[bucket];
+            }
+            return Long.MAX_VALUE;
+        }
+    }
+
+    private static int getBucket(long valueMs) {
+        int bucket = 0;
+        while (valueMs > BUCKET_BOUNDS_MS[bucket]) bucket++;
+        return bucket;
+    }
+
+    @Override
+    public synchronized void onRequestTiming(String host, RequestStage stage, int responseCode,
+                                             RequestTiming timing) {
+        String key = host + " " + stage;
+        Histogram histogram = mHistograms.get(key);
+        if (histogram == null) {
+            histogram = new Histogram();
+            mHistograms.put(key, histogram);
+        }
+        histogram.add(timing);
+        Log.d(TAG, stage + " request to " + host + " (" + responseCode + "): " + timing);
+    }
+
+    /**
+     * Returns the estimated percentile of a phase, as the upper bound of the histogram bucket.
+     *
+     * @param host       host and port of the requests
+     * @param stage      stage of the requests
+     * @param phase      one of dns, connect, tls, ttfb, transfer or total
+     * @param percentile percentile between 0 and 1
+     * @return percentile in milliseconds, or {@link RequestTiming#UNKNOWN} if no data
+     */
+    public synchronized long getPercentileMs(String host, RequestStage stage, String phase,
+                                             double percentile) {
+        Histogram histogram = mHistograms.get(host + " " + stage);
+        int phaseIndex = Arrays.asList(PHASES).indexOf(phase);
+        if (histogram == null || phaseIndex < 0) return RequestTiming.UNKNOWN;
+        return histogram.getPercentileMs(phaseIndex, percentile);
+    }
+
+    /**
+     * Returns p50 and p95 of every phase by host and stage in a loggable form.
+     *
+     * @return statistics string
+     */
+    public synchronized String getStats() {
+        StringBuilder builder = new StringBuilder();
+        for (Map.Entry<String, Histogram> entry : mHistograms.entrySet()) {
+            Histogram histogram = entry.getValue();
+            builder.append(entry.getKey()).append(": requests=").append(histogram.requests)
+                    .append(" reused=").append(histogram.reuseKnown > 0
+                            ? histogram.reused + "/" + histogram.reuseKnown : "unknown")
+                    .append(" sent=").append(histogram.bytesSent)
+                    .append("B received=").append(histogram.bytesReceived).append("B");
+            for (int phase = 0; phase < PHASES.length; phase++) {
+                builder.append(' ').append(PHASES[phase]).append(" p50<=")
+                        .append(histogram.getPercentileMs(phase, 0.5)).append(" p95<=")
+                        .append(histogram.getPercentileMs(phase, 0.95));
+            }
+            builder.append('\n');
+        }
+        return builder.toString();
+    }
+}
@@ -10,17 +10,23 @@ import android.media.UnsupportedSchemeException;
 import android.net.Uri;
 import android.os.AsyncTask;
 import android.os.Build;
+import android.os.SystemClock;
 import android.util.Log;
 import android.util.Pair;
 
 import com.axinom.drm.sample.license.LicenseManagerErrorCode;
+import com.axinom.drm.sample.license.RequestStage;
 import com.axinom.drm.sample.license.internal.exception.LicenseManagerException;
 import com.axinom.drm.sample.license.internal.model.DrmMessage;
 import com.axinom.drm.sample.license.internal.model.Manifest;
 import com.axinom.drm.sample.license.internal.model.SchemeData;
+import com.axinom.drm.sample.license.internal.utils.DrmSessionAdmission;
 import com.axinom.drm.sample.license.internal.utils.DrmUtils;
+import com.axinom.drm.sample.license.internal.utils.KeyExpiryTracker;
 import com.axinom.drm.sample.license.internal.utils.LicenseFileUtils;
+import com.axinom.drm.sample.license.internal.utils.ManifestDiskCache;
 import com.axinom.drm.sample.license.internal.utils.ManifestUtils;
+import com.axinom.drm.sample.license.internal.utils.ParsedManifestCache;
 import com.axinom.drm.sample.license.internal.utils.RequestUtils;
 import com.google.android.exoplayer2.C;
 import com.google.android.exoplayer2.util.Util;
@@ -28,6 +34,7 @@ import com.google.android.exoplayer2.util.Util;
 import org.xmlpull.v1.XmlPullParserException;
 
 import java.io.IOException;
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -82,14 +89,17 @@ public class LicenceDownloadTask extends AsyncTask<LicenceDownloadTask.Params, V
                 onError(e);
             }
         } finally {
-            if (mMediaDrm != null && mSessionId != null) mMediaDrm.closeSession(mSessionId);
+            if (mMediaDrm != null && mSessionId != null) {
+                DrmSessionAdmission.getInstance().closeSession(mMediaDrm, mSessionId);
+                mSessionId = null;
+            }
         }
 
         return keySetId;
     }
 
     private byte[] onNoProvisionError(Params params) {
-        boolean result = makeProvisioning();
+        boolean result = makeProvisioning(mMediaDrm);
         if (!result) {
             mErrorCode = LicenseManagerErrorCode.ERROR_309;
             return null;
@@ -106,23 +116,25 @@ public class LicenceDownloadTask extends AsyncTask<LicenceDownloadTask.Params, V
         return keySetId;
     }
 
+    // Provisions the device, also used by LicenseBatchDownloadTask
     @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
-    private boolean makeProvisioning() {
+    static boolean makeProvisioning(MediaDrm mediaDrm) {
         // Get data required for provisioning
-        MediaDrm.ProvisionRequest request = mMediaDrm.getProvisionRequest();
+        MediaDrm.ProvisionRequest request = mediaDrm.getProvisionRequest();
         // Prepare url
         String url = request.getDefaultUrl() + "&signedRequest=" + new String(request.getData());
         try {
             // make request to default provisioning server (usually it is google server)
-            byte[] response = RequestUtils.executePost(url, null, null, null);
+            byte[] response = RequestUtils.executePost(url, null, null, null,
+                    RequestStage.PROVISIONING);
             // Provide provisioning response to MediaDrm
-            mMediaDrm.provideProvisionResponse(response);
+            mediaDrm.provideProvisionResponse(response);
         } catch (Exception e) {
             e.printStackTrace();
             return false;
         }
 
-        return false;
+        return true;
     }
 
     @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
@@ -137,29 +149,8 @@ public class LicenceDownloadTask extends AsyncTask<LicenceDownloadTask.Params, V
         // then exception will be thrown
         checkDrmMessage(axDrmMessage);
 
-        // Creating media DRM session
-        if (mMediaDrm == null) {
-            mMediaDrm = new MediaDrm(C.WIDEVINE_UUID);
-            mSessionId = mMediaDrm.openSession();
-        }
-
-        Manifest manifest = null;
-        byte[] manifestData = RequestUtils.getManifest(mManifestUrl, null);
-        int format = Util.inferContentType(mManifestUrl);
-        // Parsing manifest to get encryption scheme data
-        if (format == com.google.android.exoplayer2.C.TYPE_DASH) {
-            manifest = ManifestUtils.parseMpdManifest(manifestData);
-        } else if (format == com.google.android.exoplayer2.C.TYPE_HLS) {
-            manifest = ManifestUtils.parseM3U8Manifest(Uri.parse(mManifestUrl), manifestData);
-        }
-        SchemeData schemeData = null;
-        if (manifest != null) {
-            schemeData = DrmUtils.getSchemeData(manifest.schemeDatas, C.WIDEVINE_UUID);
-        }
-        if (schemeData == null) {
-            throw new LicenseManagerException(
-                    LicenseManagerErrorCode.ERROR_301, "schemeData is null");
-        }
+        SchemeData schemeData = loadWidevineSchemeData(mManifestUrl, params.defaultStoragePath,
+                getExtractionMode(axDrmMessage));
 
         // Get data required for license initialization
         byte[] initData = DrmUtils.getSchemeInitData(schemeData, C.WIDEVINE_UUID);
@@ -170,6 +161,24 @@ public class LicenceDownloadTask extends AsyncTask<LicenceDownloadTask.Params, V
                     LicenseManagerErrorCode.ERROR_301, "DRM initData is null");
         }
 
+        // Licenses are stored under their content key ids, so all manifests of the content
+        // share one license
+        String[] keyIds = DrmUtils.getKeyIds(schemeData.data);
+        String licenseKey = keyIds.length > 0 ? LicenseFileUtils.getLicenseId(keyIds) : mManifestUrl;
+        KeyExpiryTracker expiryTracker = KeyExpiryTracker.getInstance(params.defaultStoragePath);
+        if (mAutoSave) {
+            byte[] storedKeySetId = getStoredKeySetId(params.defaultStoragePath, mManifestUrl,
+                    keyIds, licenseKey, params.minExpireSecond);
+            if (storedKeySetId != null) return storedKeySetId;
+        }
+
+        // Creating media DRM session. Sessions are admitted according to the device session budget
+        if (mMediaDrm == null) mMediaDrm = new MediaDrm(C.WIDEVINE_UUID);
+        if (mSessionId == null) mSessionId = DrmSessionAdmission.getInstance().openSession(mMediaDrm);
+
+        // Expiry time of the new license is tracked so that validity checks need no CDM call
+        if (mAutoSave) expiryTracker.attach(mMediaDrm, mSessionId, licenseKey);
+
         // Get request data from MediaDrm needed to be sent to License Server
         MediaDrm.KeyRequest keyRequest = mMediaDrm.getKeyRequest(
                 mSessionId, initData, mimeType, MediaDrm.KEY_TYPE_OFFLINE, null);
@@ -179,9 +188,10 @@ public class LicenceDownloadTask extends AsyncTask<LicenceDownloadTask.Params, V
         Log.d(TAG, "requestProperties: " + requestProperties);
         Log.d(TAG, "licenseServerUrl: " + licenseServerUrl);
 
-        // Make license server post request and acquire response
-        byte[] response = RequestUtils.executePost(
-                licenseServerUrl, axDrmMessage, keyRequest.getData(), requestProperties);
+        // Make license server post request and acquire response, hedging to mirrors if slow
+        byte[] response = RequestUtils.executeHedgedPost(licenseServerUrl,
+                params.licenseServerMirrors, axDrmMessage, keyRequest.getData(),
+                requestProperties, RequestStage.LICENSE);
 
         if (response == null || response.length == 0) {
             throw new LicenseManagerException(
@@ -207,14 +217,89 @@ public class LicenceDownloadTask extends AsyncTask<LicenceDownloadTask.Params, V
         // Saving keys to file in the specific folder
         Log.d(TAG, "Auto save is active: " + mAutoSave);
         if (mAutoSave) {
-            LicenseFileUtils.writeLicenseFile(params.defaultStoragePath, mManifestUrl, keySetId);
+            LicenseFileUtils.writeLicenseFile(params.defaultStoragePath, mManifestUrl, keyIds, keySetId);
+            if (remainingSec != null) expiryTracker.recordRemainingSec(licenseKey, remainingSec.first);
             Log.d(TAG, "Path to licnese file: " + params.defaultStoragePath);
         }
 
         return keySetId;
     }
 
-    private void checkDrmMessage(String drmMessageString) throws LicenseManagerException {
+    /**
+     * Returns the key set id of a stored license with the same key ids if it is known to be
+     * valid long enough, mapping the manifest to it. No license request is needed then.
+     */
+    static byte[] getStoredKeySetId(String defaultStoragePath, String manifestUrl, String[] keyIds,
+                                    String licenseKey, long minExpireSecond)
+            throws LicenseManagerException {
+        if (keyIds.length == 0) return null;
+        long knownRemainingSec = KeyExpiryTracker.getInstance(defaultStoragePath)
+                .getRemainingSec(licenseKey);
+        if (knownRemainingSec == C.TIME_UNSET || knownRemainingSec < minExpireSecond
+                || !LicenseFileUtils.linkLicenseFile(defaultStoragePath, manifestUrl, keyIds)) {
+            return null;
+        }
+        Log.d(TAG, "Reusing stored license " + licenseKey + " for: " + manifestUrl);
+        return LicenseFileUtils.readLicenseFile(defaultStoragePath, manifestUrl);
+    }
+
+    /**
+     * Returns how much of a DASH manifest is read for the keys the DRM message grants. Content
+     * with a single key is covered by the first protected Period. Content with several keys, e.g.
+     * a key per content type, or with keys not listed in the message may protect each content type
+     * separately, so reading stops once all of them are covered.
+     */
+    static ManifestUtils.ExtractionMode getExtractionMode(String drmMessageString) {
+        DrmMessage drmMessage = DrmUtils.parseDrmString(drmMessageString);
+        if (drmMessage != null && drmMessage.keyIds.length == 1) {
+            return ManifestUtils.ExtractionMode.FIRST_PERIOD;
+        }
+        return ManifestUtils.ExtractionMode.ALL_CONTENT_TYPES;
+    }
+
+    /**
+     * Downloads and parses the manifest and returns its Widevine scheme data. Unchanged manifests
+     * are taken from the manifest cache, and are not parsed again if they were parsed before in
+     * the same extraction mode.
+     */
+    static SchemeData loadWidevineSchemeData(String manifestUrl, String defaultStoragePath,
+                                             ManifestUtils.ExtractionMode extractionMode)
+            throws IOException, XmlPullParserException, LicenseManagerException {
+        long startTime = SystemClock.elapsedRealtime();
+        Manifest manifest;
+        try (ManifestDiskCache.Result manifestData =
+                     ManifestDiskCache.getInstance(defaultStoragePath).fetch(manifestUrl)) {
+            ParsedManifestCache parsedCache = ParsedManifestCache.getInstance();
+            manifest = parsedCache.get(manifestUrl, manifestData.validator, extractionMode);
+            if (manifest == null) {
+                int format = Util.inferContentType(manifestUrl);
+                // Parsing manifest while it arrives, reading stops once the keys are covered
+                if (format == com.google.android.exoplayer2.C.TYPE_DASH) {
+                    manifest = ManifestUtils.parseMpdManifest(manifestData.stream, extractionMode);
+                } else if (format == com.google.android.exoplayer2.C.TYPE_HLS) {
+                    manifest = ManifestUtils.parseM3U8Manifest(Uri.parse(manifestUrl),
+                            manifestData.stream);
+                }
+                parsedCache.put(manifestUrl, manifestData.validator, extractionMode, manifest);
+                Log.d(TAG, "Scheme data parsed in " + (SystemClock.elapsedRealtime() - startTime)
+                        + " ms for: " + manifestUrl);
+            } else {
+                Log.d(TAG, "Reusing parsed manifest for: " + manifestUrl + ", "
+                        + parsedCache.getStats());
+            }
+        }
+        SchemeData schemeData = null;
+        if (manifest != null) {
+            schemeData = DrmUtils.getSchemeData(manifest.schemeDatas, C.WIDEVINE_UUID);
+        }
+        if (schemeData == null) {
+            throw new LicenseManagerException(
+                    LicenseManagerErrorCode.ERROR_301, "schemeData is null");
+        }
+        return schemeData;
+    }
+
+    static void checkDrmMessage(String drmMessageString) throws LicenseManagerException {
         DrmMessage drmMessage = DrmUtils.parseDrmString(drmMessageString);
         if (drmMessage == null) {
             throw new LicenseManagerException(LicenseManagerErrorCode.ERROR_306);
@@ -230,6 +315,9 @@ public class LicenceDownloadTask extends AsyncTask<LicenceDownloadTask.Params, V
         if (e instanceof LicenseManagerException) {
             mErrorCode = ((LicenseManagerException) e).getErrorCode();
             mErrorExtraData = ((LicenseManagerException) e).getExtraData();
+        } else if (e instanceof ResourceBusyException) {
+            mErrorCode = LicenseManagerErrorCode.ERROR_312;
+            mErrorExtraData = e.getMessage();
         } else if (e instanceof UnsupportedSchemeException) {
             mErrorCode = LicenseManagerErrorCode.ERROR_301;
             mErrorExtraData = e.getMessage();
@@ -264,16 +352,19 @@ public class LicenceDownloadTask extends AsyncTask<LicenceDownloadTask.Params, V
         final long minExpireSecond;
         final Map<String, String> requestProperties;
         final String licenseServerUrl, manifestUrl, axDrmMessage, defaultStoragePath;
+        final List<String> licenseServerMirrors;
 
         public Params(Map<String, String> requestProperties, String manifestUrl,
                       String licenseServerUrl, String axDrmMessage,
-                      String defaultStoragePath, long minExpireSecond) {
+                      String defaultStoragePath, long minExpireSecond,
+                      List<String> licenseServerMirrors) {
             this.requestProperties = requestProperties;
             this.manifestUrl = manifestUrl;
             this.licenseServerUrl = licenseServerUrl;
             this.axDrmMessage = axDrmMessage;
             this.defaultStoragePath = defaultStoragePath;
             this.minExpireSecond = minExpireSecond;
+            this.licenseServerMirrors = licenseServerMirrors;
         }
     }
 }
@@ -0,0 +1,314 @@
+package com.axinom.drm.sample.license.internal.task;
+
+import android.annotation.SuppressLint;
+import android.annotation.TargetApi;
+import android.media.MediaDrm;
+import android.media.NotProvisionedException;
+import android.media.ResourceBusyException;
+import android.media.UnsupportedSchemeException;
+import android.os.AsyncTask;
+import android.os.Build;
+import android.os.SystemClock;
+import android.util.Log;
+import android.util.Pair;
+
+import com.axinom.drm.sample.license.LicenseManagerErrorCode;
+import com.axinom.drm.sample.license.RequestStage;
+import com.axinom.drm.sample.license.internal.exception.LicenseManagerException;
+import com.axinom.drm.sample.license.internal.model.SchemeData;
+import com.axinom.drm.sample.license.internal.utils.DrmSessionAdmission;
+import com.axinom.drm.sample.license.internal.utils.DrmUtils;
+import com.axinom.drm.sample.license.internal.utils.KeyExpiryTracker;
+import com.axinom.drm.sample.license.internal.utils.LicenseBatchUtils;
+import com.axinom.drm.sample.license.internal.utils.LicenseFileUtils;
+import com.axinom.drm.sample.license.internal.utils.ManifestUtils;
+import com.google.android.exoplayer2.C;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Downloads and stores licenses for several titles which share one DRM message (token). Key
+ * requests of the titles are collected from their own DRM sessions and sent to the license server
+ * in one batch request, and the responses are provided to the sessions they belong to. Titles are
+ * processed in groups that fit the device session budget.
+ */
+public class LicenseBatchDownloadTask extends AsyncTask<LicenseBatchDownloadTask.Params, Void, Void> {
+
+    private static final String TAG = LicenseBatchDownloadTask.class.getSimpleName();
+    public static final int DEFAULT_MAX_BATCH_SIZE = 8;
+
+    // Maximum number of titles in one batch request
+    private static volatile int sMaxBatchSize = DEFAULT_MAX_BATCH_SIZE;
+
+    private LicenceDownloadTask.ILicenceDownloadTaskCallback mListener;
+    private final List<String> mDownloaded = new ArrayList<>();
+    // Error codes and extra data by manifest URL of titles which failed
+    private final Map<String, Pair<LicenseManagerErrorCode, String>> mFailures =
+            new LinkedHashMap<>();
+    // The device is provisioned at most once per task
+    private boolean mProvisioningAttempted = false;
+
+    public LicenseBatchDownloadTask(LicenceDownloadTask.ILicenceDownloadTaskCallback listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Set the maximum number of titles in one batch request. The size is also limited by the
+     * device session budget. Running tasks use the new size for their next batch.
+     *
+     * @param maxBatchSize maximum batch size, at least 1
+     */
+    public static void setMaxBatchSize(int maxBatchSize) {
+        sMaxBatchSize = Math.max(1, maxBatchSize);
+    }
+
+    @SuppressLint("ObsoleteSdkInt")
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+    @Override
+    protected Void doInBackground(Params... params) {
+        Params batchParams = params[0];
+        if (Build.VERSION.SDK_INT < 18) {
+            for (String manifestUrl : batchParams.manifestUrls) {
+                mFailures.put(manifestUrl, new Pair<>(LicenseManagerErrorCode.ERROR_300, null));
+            }
+            return null;
+        }
+
+        MediaDrm mediaDrm;
+        try {
+            // If message is not properly formatted or has no "persistent" flag,
+            // then exception will be thrown
+            LicenceDownloadTask.checkDrmMessage(batchParams.axDrmMessage);
+            mediaDrm = new MediaDrm(C.WIDEVINE_UUID);
+        } catch (Exception e) {
+            for (String manifestUrl : batchParams.manifestUrls) onError(manifestUrl, e);
+            return null;
+        }
+
+        long startTime = SystemClock.elapsedRealtime();
+        int batchSize = Math.min(sMaxBatchSize,
+                DrmSessionAdmission.getInstance().getBackgroundBudget(mediaDrm));
+        List<String> manifestUrls = batchParams.manifestUrls;
+        for (int i = 0; i < manifestUrls.size() && !isCancelled(); i += batchSize) {
+            downloadBatch(mediaDrm, manifestUrls.subList(i, Math.min(i + batchSize, manifestUrls.size())),
+                    batchParams);
+            batchSize = Math.min(sMaxBatchSize,
+                    DrmSessionAdmission.getInstance().getBackgroundBudget(mediaDrm));
+        }
+        Log.d(TAG, "Downloaded " + mDownloaded.size() + "/" + manifestUrls.size()
+                + " licenses in " + (SystemClock.elapsedRealtime() - startTime) + " ms");
+        return null;
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+    private void downloadBatch(MediaDrm mediaDrm, List<String> manifestUrls, Params params) {
+        // Session ids and key requests by manifest URL
+        Map<String, byte[]> sessionIds = new LinkedHashMap<>();
+        Map<String, String[]> keyIdsByManifest = new HashMap<>();
+        // Manifest URLs of requested licenses by license key, and of manifests sharing them
+        Map<String, String> requestedLicenses = new HashMap<>();
+        Map<String, String> sharingManifests = new LinkedHashMap<>();
+        List<String> requestManifestUrls = new ArrayList<>();
+        List<byte[]> requests = new ArrayList<>();
+        ManifestUtils.ExtractionMode extractionMode =
+                LicenceDownloadTask.getExtractionMode(params.axDrmMessage);
+        try {
+            for (String manifestUrl : manifestUrls) {
+                try {
+                    SchemeData schemeData = LicenceDownloadTask.loadWidevineSchemeData(
+                            manifestUrl, params.defaultStoragePath, extractionMode);
+                    byte[] initData = DrmUtils.getSchemeInitData(schemeData, C.WIDEVINE_UUID);
+                    String mimeType = DrmUtils.getSchemeMimeType(schemeData, C.WIDEVINE_UUID);
+                    if (initData == null) {
+                        throw new LicenseManagerException(
+                                LicenseManagerErrorCode.ERROR_301, "DRM initData is null");
+                    }
+
+                    // A valid license stored for another manifest of the content is reused
+                    String[] keyIds = DrmUtils.getKeyIds(schemeData.data);
+                    keyIdsByManifest.put(manifestUrl, keyIds);
+                    String licenseKey = getLicenseKey(manifestUrl, keyIds);
+                    if (LicenceDownloadTask.getStoredKeySetId(params.defaultStoragePath, manifestUrl,
+                            keyIds, licenseKey, params.minExpireSecond) != null) {
+                        mDownloaded.add(manifestUrl);
+                        continue;
+                    }
+                    // Manifests of content already requested in this batch share its license
+                    if (requestedLicenses.containsKey(licenseKey)) {
+                        sharingManifests.put(manifestUrl, requestedLicenses.get(licenseKey));
+                        continue;
+                    }
+                    requestedLicenses.put(licenseKey, manifestUrl);
+
+                    requests.add(getKeyRequest(mediaDrm, manifestUrl, initData, mimeType, sessionIds));
+                    requestManifestUrls.add(manifestUrl);
+                } catch (Exception e) {
+                    onError(manifestUrl, e);
+                }
+            }
+            if (requests.isEmpty()) return;
+
+            Map<Integer, Exception> failures = new HashMap<>();
+            List<byte[]> responses = LicenseBatchUtils.exchange(requests, params.licenseServerUrl,
+                    params.licenseServerMirrors, params.batchLicenseServerUrl, params.axDrmMessage, params.requestProperties,
+                    RequestStage.LICENSE, failures);
+            for (int i = 0; i < requestManifestUrls.size(); i++) {
+                String manifestUrl = requestManifestUrls.get(i);
+                if (failures.containsKey(i)) {
+                    onError(manifestUrl, failures.get(i));
+                    continue;
+                }
+                try {
+                    storeLicense(mediaDrm, sessionIds.get(manifestUrl), manifestUrl,
+                            keyIdsByManifest.get(manifestUrl), responses.get(i), params);
+                    mDownloaded.add(manifestUrl);
+                } catch (Exception e) {
+                    onError(manifestUrl, e);
+                }
+            }
+            for (Map.Entry<String, String> entry : sharingManifests.entrySet()) {
+                linkSharedLicense(entry.getKey(), entry.getValue(),
+                        keyIdsByManifest.get(entry.getKey()), params);
+            }
+        } finally {
+            for (byte[] sessionId : sessionIds.values()) {
+                DrmSessionAdmission.getInstance().closeSession(mediaDrm, sessionId);
+            }
+        }
+    }
+
+    // Gets the key request of a title. NotProvisionedException happens when the device was not
+    // previously provisioned, in this case the device is provisioned and the request is retried.
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+    private byte[] getKeyRequest(MediaDrm mediaDrm, String manifestUrl, byte[] initData,
+                                 String mimeType, Map<String, byte[]> sessionIds)
+            throws NotProvisionedException, LicenseManagerException {
+        try {
+            return openKeyRequest(mediaDrm, manifestUrl, initData, mimeType, sessionIds);
+        } catch (NotProvisionedException e) {
+            byte[] sessionId = sessionIds.remove(manifestUrl);
+            if (sessionId != null) DrmSessionAdmission.getInstance().closeSession(mediaDrm, sessionId);
+            if (mProvisioningAttempted) throw e;
+            mProvisioningAttempted = true;
+            if (!LicenceDownloadTask.makeProvisioning(mediaDrm)) throw e;
+            Log.d(TAG, "Device provisioned, retrying key request for " + manifestUrl);
+            return openKeyRequest(mediaDrm, manifestUrl, initData, mimeType, sessionIds);
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+    private static byte[] openKeyRequest(MediaDrm mediaDrm, String manifestUrl, byte[] initData,
+                                         String mimeType, Map<String, byte[]> sessionIds)
+            throws NotProvisionedException, LicenseManagerException {
+        // Creating media DRM session. Sessions are admitted according to the device session budget
+        byte[] sessionId = DrmSessionAdmission.getInstance().openSession(mediaDrm);
+        sessionIds.put(manifestUrl, sessionId);
+        MediaDrm.KeyRequest keyRequest = mediaDrm.getKeyRequest(
+                sessionId, initData, mimeType, MediaDrm.KEY_TYPE_OFFLINE, null);
+        return keyRequest.getData();
+    }
+
+    // Maps a manifest to the license downloaded for another manifest of the same content
+    private void linkSharedLicense(String manifestUrl, String licenseManifestUrl, String[] keyIds,
+                                   Params params) {
+        Pair<LicenseManagerErrorCode, String> failure = mFailures.get(licenseManifestUrl);
+        if (failure != null) {
+            mFailures.put(manifestUrl, failure);
+            return;
+        }
+        try {
+            LicenseFileUtils.linkLicenseFile(params.defaultStoragePath, manifestUrl, keyIds);
+            mDownloaded.add(manifestUrl);
+        } catch (Exception e) {
+            onError(manifestUrl, e);
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+    private static void storeLicense(MediaDrm mediaDrm, byte[] sessionId, String manifestUrl,
+                                     String[] keyIds, byte[] response, Params params)
+            throws Exception {
+        byte[] keySetId = mediaDrm.provideKeyResponse(sessionId, response);
+        if (keySetId == null || keySetId.length == 0) {
+            throw new LicenseManagerException(
+                    LicenseManagerErrorCode.ERROR_302, "keySetId is empty");
+        }
+
+        Pair<Long, Long> remainingSec = DrmUtils.getLicenseDurationRemainingSec(mediaDrm, sessionId);
+        if (remainingSec != null && remainingSec.first <= params.minExpireSecond) {
+            throw new LicenseManagerException(LicenseManagerErrorCode.ERROR_308);
+        }
+
+        LicenseFileUtils.writeLicenseFile(params.defaultStoragePath, manifestUrl, keyIds, keySetId);
+        if (remainingSec != null) {
+            KeyExpiryTracker.getInstance(params.defaultStoragePath)
+                    .recordRemainingSec(getLicenseKey(manifestUrl, keyIds), remainingSec.first);
+        }
+    }
+
+    private static String getLicenseKey(String manifestUrl, String[] keyIds) {
+        return keyIds.length > 0 ? LicenseFileUtils.getLicenseId(keyIds) : manifestUrl;
+    }
+
+    private void onError(String manifestUrl, Exception e) {
+        Log.d(TAG, "License download failed for " + manifestUrl + " with error:\n " + e.toString());
+        LicenseManagerErrorCode errorCode;
+        String errorExtraData;
+        if (e instanceof LicenseManagerException) {
+            errorCode = ((LicenseManagerException) e).getErrorCode();
+            errorExtraData = ((LicenseManagerException) e).getExtraData();
+        } else if (e instanceof ResourceBusyException) {
+            errorCode = LicenseManagerErrorCode.ERROR_312;
+            errorExtraData = e.getMessage();
+        } else if (e instanceof UnsupportedSchemeException) {
+            errorCode = LicenseManagerErrorCode.ERROR_301;
+            errorExtraData = e.getMessage();
+        } else if (e instanceof NotProvisionedException) {
+            errorCode = LicenseManagerErrorCode.ERROR_309;
+            errorExtraData = null;
+        } else {
+            errorCode = LicenseManagerErrorCode.ERROR_302;
+            errorExtraData = e.getCause() != null ? e.getCause().getMessage() : e.getMessage();
+        }
+        mFailures.put(manifestUrl, new Pair<>(errorCode, errorExtraData));
+    }
+
+    @Override
+    protected void onPostExecute(Void voidParam) {
+        if (mListener != null) {
+            for (String manifestUrl : mDownloaded) {
+                mListener.onLicenseDownloaded(manifestUrl);
+            }
+            for (Map.Entry<String, Pair<LicenseManagerErrorCode, String>> failure : mFailures.entrySet()) {
+                mListener.onLicenseDownloadFailed(
+                        failure.getValue().first, failure.getValue().second, failure.getKey());
+            }
+        }
+        mListener = null;
+    }
+
+    public static class Params {
+        final long minExpireSecond;
+        final Map<String, String> requestProperties;
+        final List<String> manifestUrls, licenseServerMirrors;
+        final String licenseServerUrl, batchLicenseServerUrl, axDrmMessage, defaultStoragePath;
+
+        public Params(Map<String, String> requestProperties, List<String> manifestUrls,
+                      String licenseServerUrl, String batchLicenseServerUrl, String axDrmMessage,
+                      String defaultStoragePath, long minExpireSecond,
+                      List<String> licenseServerMirrors) {
+            this.requestProperties = requestProperties;
+            this.manifestUrls = manifestUrls;
+            this.licenseServerUrl = licenseServerUrl;
+            this.batchLicenseServerUrl = batchLicenseServerUrl;
+            this.axDrmMessage = axDrmMessage;
+            this.defaultStoragePath = defaultStoragePath;
+            this.minExpireSecond = minExpireSecond;
+            this.licenseServerMirrors = licenseServerMirrors;
+        }
+    }
+}
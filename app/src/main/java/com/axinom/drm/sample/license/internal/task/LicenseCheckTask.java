@@ -2,6 +2,7 @@ package com.axinom.drm.sample.license.internal.task;
 
 import android.annotation.SuppressLint;
 import android.media.MediaDrm;
+import android.media.ResourceBusyException;
 import android.media.UnsupportedSchemeException;
 import android.os.AsyncTask;
 import android.os.Build;
@@ -12,7 +13,9 @@ import androidx.annotation.RequiresApi;
 
 import com.axinom.drm.sample.license.LicenseManagerErrorCode;
 import com.axinom.drm.sample.license.internal.exception.LicenseManagerException;
+import com.axinom.drm.sample.license.internal.utils.DrmSessionAdmission;
 import com.axinom.drm.sample.license.internal.utils.DrmUtils;
+import com.axinom.drm.sample.license.internal.utils.KeyExpiryTracker;
 import com.axinom.drm.sample.license.internal.utils.LicenseFileUtils;
 import com.google.android.exoplayer2.C;
 
@@ -53,20 +56,33 @@ public class LicenseCheckTask extends AsyncTask<LicenseCheckTask.Params, Void, B
         mManifestUrl = params[0].manifestUrl;
         byte[] savedKeys = params[0].savedKeys;
         try {
+            // Answer from the tracked expiry time if it is known, no DRM session is needed then
+            KeyExpiryTracker expiryTracker = KeyExpiryTracker.getInstance(params[0].defaultStoragePath);
+            String licenseKey = LicenseFileUtils.getLicenseKey(params[0].defaultStoragePath, mManifestUrl);
+            long knownRemainingSec = savedKeys == null
+                    ? expiryTracker.getRemainingSec(licenseKey) : C.TIME_UNSET;
+            if (knownRemainingSec != C.TIME_UNSET && LicenseFileUtils.hasLicenseFile(
+                    params[0].defaultStoragePath, mManifestUrl)) {
+                Log.d(TAG, "Known remaining seconds: " + knownRemainingSec);
+                return knownRemainingSec >= params[0].minExpireSecond;
+            }
+
             Log.d(TAG, "Trying to restore keys for: " + mManifestUrl);
             byte[] offlineLicenseKeySetId = savedKeys == null ? LicenseFileUtils.readLicenseFile(
                     params[0].defaultStoragePath, mManifestUrl) : savedKeys;
 
-            // Creating media DRM session
-            if (mMediaDrm == null) {
-                mMediaDrm = new MediaDrm(C.WIDEVINE_UUID);
-                mSessionId = mMediaDrm.openSession();
-            }
+            // Creating media DRM session. Sessions are admitted according to the device session budget
+            if (mMediaDrm == null) mMediaDrm = new MediaDrm(C.WIDEVINE_UUID);
+            if (mSessionId == null) mSessionId = DrmSessionAdmission.getInstance().openSession(mMediaDrm);
 
+            if (savedKeys == null) expiryTracker.attach(mMediaDrm, mSessionId, licenseKey);
             mMediaDrm.restoreKeys(mSessionId, offlineLicenseKeySetId);
             Log.d(TAG, "Keys restored!");
             Pair<Long, Long> remainingSec = DrmUtils.getLicenseDurationRemainingSec(mMediaDrm, mSessionId);
             Log.d(TAG, "remainingSec pair: " + remainingSec);
+            if (savedKeys == null && remainingSec != null) {
+                expiryTracker.recordRemainingSec(licenseKey, remainingSec.first);
+            }
             isValid = remainingSec != null && remainingSec.first >= params[0].minExpireSecond;
         } catch (Exception e) {
             onError(e);
@@ -78,7 +94,10 @@ public class LicenseCheckTask extends AsyncTask<LicenseCheckTask.Params, Void, B
 
     @RequiresApi(api = Build.VERSION_CODES.JELLY_BEAN_MR2)
     private void closeSession() {
-        if (mMediaDrm != null && mSessionId != null) mMediaDrm.closeSession(mSessionId);
+        if (mMediaDrm != null && mSessionId != null) {
+            DrmSessionAdmission.getInstance().closeSession(mMediaDrm, mSessionId);
+            mSessionId = null;
+        }
     }
 
     private void onError(Exception e) {
@@ -86,6 +105,9 @@ public class LicenseCheckTask extends AsyncTask<LicenseCheckTask.Params, Void, B
         if (e instanceof LicenseManagerException) {
             mErrorCode = ((LicenseManagerException) e).getErrorCode();
             mErrorExtraData = ((LicenseManagerException) e).getExtraData();
+        } else if (e instanceof ResourceBusyException) {
+            mErrorCode = LicenseManagerErrorCode.ERROR_312;
+            mErrorExtraData = e.getMessage();
         } else if (e instanceof UnsupportedSchemeException) {
             mErrorCode = LicenseManagerErrorCode.ERROR_301;
             mErrorExtraData = e.toString();
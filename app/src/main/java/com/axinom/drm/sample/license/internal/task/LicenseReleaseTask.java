@@ -1,9 +1,7 @@
 package com.axinom.drm.sample.license.internal.task;
 
 import android.annotation.SuppressLint;
-import android.media.DeniedByServerException;
 import android.media.MediaDrm;
-import android.media.NotProvisionedException;
 import android.media.ResourceBusyException;
 import android.media.UnsupportedSchemeException;
 import android.os.AsyncTask;
@@ -15,11 +13,15 @@ import androidx.annotation.RequiresApi;
 
 import com.axinom.drm.sample.license.LicenseManagerErrorCode;
 import com.axinom.drm.sample.license.internal.exception.LicenseManagerException;
+import com.axinom.drm.sample.license.internal.utils.DrmSessionAdmission;
+import com.axinom.drm.sample.license.internal.utils.KeyExpiryTracker;
 import com.axinom.drm.sample.license.internal.utils.LicenseFileUtils;
-import com.axinom.drm.sample.license.internal.utils.RequestUtils;
+import com.axinom.drm.sample.license.internal.utils.LicenseReleaseReporter;
+import com.axinom.drm.sample.license.internal.utils.ParsedManifestCache;
 import com.google.android.exoplayer2.C;
 
-import java.io.IOException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
 
 /**
@@ -65,6 +67,7 @@ public class LicenseReleaseTask extends AsyncTask<LicenseReleaseTask.Params, Voi
         mManifestUrl = params[0].manifestUrl;
         String defaultPath = params[0].defaultStoragePath;
         String licenseServerUrl = params[0].licenseServerUrl;
+        String batchLicenseServerUrl = params[0].batchLicenseServerUrl;
         Map<String, String> requestProperties = params[0].requestProperties;
         boolean stopOnLicenseServerFail = params[0].stopOnLicenseServerFail;
 
@@ -76,6 +79,7 @@ public class LicenseReleaseTask extends AsyncTask<LicenseReleaseTask.Params, Voi
             if (TextUtils.isEmpty(licenseServerUrl)) {
                 try {
                     LicenseFileUtils.deleteAllLicenses(defaultPath);
+                    KeyExpiryTracker.getInstance(defaultPath).clear();
                     Log.d(TAG, "All license key file deleted! ");
                 } catch (Exception e) {
                     onError(e);
@@ -84,120 +88,126 @@ public class LicenseReleaseTask extends AsyncTask<LicenseReleaseTask.Params, Voi
             }
 
             // Find all license files and read their keys
-            String[] allLicensePaths = LicenseFileUtils.getAllLicenseFilesPaths(defaultPath);
-            for (String licensePath : allLicensePaths) {
-                Log.d(TAG, "licensePath = " + licensePath);
-                String manifestUrl;
+            Map<String, byte[]> keySetIds = new LinkedHashMap<>();
+            for (String manifestUrl : LicenseFileUtils.getAllLicenseFilesPaths(defaultPath)) {
+                Log.d(TAG, "License for manifest = " + manifestUrl);
                 try {
-                    manifestUrl = LicenseFileUtils.getNameFromBase64(licensePath);
-                    Log.d(TAG, "licensePath = " + licensePath);
+                    keySetIds.put(manifestUrl, LicenseFileUtils.readLicenseFile(defaultPath, manifestUrl));
                 } catch (Exception e) {
-                    Log.d(TAG, "License file cannot be read, ignoring: " + licensePath);
-                    continue;
-                }
-
-                Exception exception = null;
-                try {
-                    releaseLicenseFromServer(defaultPath, manifestUrl, licenseServerUrl, requestProperties);
-                } catch (Exception e) {
-                    if (stopOnLicenseServerFail) {
-                        exception = e;
-                    }
-                } finally {
-                    closeSession();
-                }
-
-                if (exception != null) {
-                    onError(exception);
-                    return null;
-                }
-
-                try {
-                    Log.d(TAG, "Deleting license key file for manifest: " + manifestUrl);
-                    LicenseFileUtils.deleteLicenseFile(defaultPath, manifestUrl);
-                    Log.d(TAG, "License key file deleted! ");
-                } catch (Exception e) {
-                    onError(e);
-                    return null;
+                    Log.d(TAG, "License file cannot be read, ignoring: " + manifestUrl);
                 }
             }
+            releaseAndDelete(defaultPath, keySetIds, licenseServerUrl, batchLicenseServerUrl,
+                    requestProperties, stopOnLicenseServerFail);
         } else {
             Log.d(TAG, "Releasing one license. Has license server URL: " +
                     !TextUtils.isEmpty(licenseServerUrl));
 
-            // If license server specified, try to release license on server
-            if (!TextUtils.isEmpty(licenseServerUrl)) {
-                Exception exception = null;
+            // If license server not specified, just delete the file
+            if (TextUtils.isEmpty(licenseServerUrl)) {
                 try {
-                    releaseLicenseFromServer(defaultPath, mManifestUrl, licenseServerUrl, requestProperties);
+                    deleteLicense(defaultPath, mManifestUrl);
                 } catch (Exception e) {
-                    if (stopOnLicenseServerFail) {
-                        exception = e;
-                    }
-                } finally {
-                    closeSession();
+                    onError(e);
                 }
+                return null;
+            }
 
-                if (exception != null) {
-                    onError(exception);
+            Map<String, byte[]> keySetIds = new LinkedHashMap<>();
+            try {
+                keySetIds.put(mManifestUrl, LicenseFileUtils.readLicenseFile(defaultPath, mManifestUrl));
+            } catch (LicenseManagerException e) {
+                if (stopOnLicenseServerFail) {
+                    onError(e);
                     return null;
                 }
             }
-
-            try {
-                Log.d(TAG, "Deleting license key file for manifest: " + mManifestUrl);
-                LicenseFileUtils.deleteLicenseFile(defaultPath, mManifestUrl);
-                Log.d(TAG, "License key file deleted! ");
-            } catch (Exception e) {
-                onError(e);
-                return null;
+            releaseAndDelete(defaultPath, keySetIds, licenseServerUrl, batchLicenseServerUrl,
+                    requestProperties, stopOnLicenseServerFail);
+            if (mErrorCode == null && keySetIds.isEmpty()) {
+                try {
+                    deleteLicense(defaultPath, mManifestUrl);
+                } catch (Exception e) {
+                    onError(e);
+                }
             }
         }
 
         return null;
     }
 
+    /**
+     * Releases the licenses on the license server together with releases which could not be
+     * reported earlier, and deletes the license files. If license server request errors should
+     * not stop the release process, failed releases are persisted for a later retry.
+     */
     @RequiresApi(api = Build.VERSION_CODES.JELLY_BEAN_MR2)
-    private void releaseLicenseFromServer(String defaultPath, String manifestUrl, String licenseServerUrl,
-                                          Map<String, String> requestProperties) throws
-            NotProvisionedException, UnsupportedSchemeException,
-            ResourceBusyException, LicenseManagerException, IOException, DeniedByServerException {
-
-        Log.d(TAG, "Trying to release keys for: " + manifestUrl);
-        byte[] keySetId = LicenseFileUtils.readLicenseFile(defaultPath, manifestUrl);
-
-        // Creating media DRM session
-        if (mMediaDrm == null) {
-            mMediaDrm = new MediaDrm(C.WIDEVINE_UUID);
-            mSessionId = mMediaDrm.openSession();
+    private void releaseAndDelete(String defaultPath, Map<String, byte[]> keySetIds,
+                                  String licenseServerUrl, String batchLicenseServerUrl,
+                                  Map<String, String> requestProperties,
+                                  boolean stopOnLicenseServerFail) {
+        LicenseReleaseReporter reporter = LicenseReleaseReporter.getInstance(defaultPath);
+        Map<String, byte[]> pendingReleases = reporter.getPendingReleases();
+        Map<String, byte[]> releases = new LinkedHashMap<>(pendingReleases);
+        releases.putAll(keySetIds);
+        if (releases.isEmpty()) return;
+
+        Map<String, Exception> failures;
+        try {
+            // Creating media DRM session. Sessions are admitted according to the device session budget
+            if (mMediaDrm == null) mMediaDrm = new MediaDrm(C.WIDEVINE_UUID);
+            if (mSessionId == null) mSessionId = DrmSessionAdmission.getInstance().openSession(mMediaDrm);
+            failures = reporter.report(mMediaDrm, releases, licenseServerUrl, batchLicenseServerUrl,
+                    requestProperties);
+        } catch (Exception e) {
+            failures = new HashMap<>();
+            for (String releaseId : releases.keySet()) failures.put(releaseId, e);
+        } finally {
+            closeSession();
         }
 
-        // Ger request data from MediaDrm needed to be sent to License Server
-        MediaDrm.KeyRequest keyRequest = mMediaDrm.getKeyRequest(
-                keySetId, null, null, MediaDrm.KEY_TYPE_RELEASE, null
-        );
-
-        Log.d(TAG, "Keys for release acquired!");
-        Log.d(TAG, "requestProperties: " + requestProperties);
-        Log.d(TAG, "licenseServerUrl: " + licenseServerUrl);
-
-        // Make license server post request and acquire response
-        byte[] response = RequestUtils.executePost(
-                licenseServerUrl, null, keyRequest.getData(), requestProperties);
-
-        if (response == null || response.length == 0) {
-            throw new LicenseManagerException(
-                    LicenseManagerErrorCode.ERROR_302, "Server response is empty");
+        for (String releaseId : pendingReleases.keySet()) {
+            if (!failures.containsKey(releaseId)) reporter.removePendingRelease(releaseId);
         }
 
-        mMediaDrm.provideKeyResponse(keySetId, response);
+        Exception exception = null;
+        for (Map.Entry<String, byte[]> entry : keySetIds.entrySet()) {
+            String manifestUrl = entry.getKey();
+            Exception failure = failures.get(manifestUrl);
+            if (failure != null) {
+                Log.d(TAG, "Release failed for: " + manifestUrl + ", " + failure);
+                if (stopOnLicenseServerFail) {
+                    if (exception == null) exception = failure;
+                    continue;
+                }
+                reporter.addPendingRelease(manifestUrl, entry.getValue());
+            }
+            try {
+                deleteLicense(defaultPath, manifestUrl);
+            } catch (Exception e) {
+                onError(e);
+                return;
+            }
+        }
+        if (exception != null) onError(exception);
+    }
 
-        Log.d(TAG, "Keys released!");
+    private void deleteLicense(String defaultPath, String manifestUrl) throws LicenseManagerException {
+        Log.d(TAG, "Deleting license key file for manifest: " + manifestUrl);
+        String licenseKey = LicenseFileUtils.getLicenseKey(defaultPath, manifestUrl);
+        LicenseFileUtils.deleteLicenseFile(defaultPath, manifestUrl);
+        KeyExpiryTracker.getInstance(defaultPath).remove(licenseKey);
+        // The title is gone, so its parsed protection data only takes up cache space
+        ParsedManifestCache.getInstance().remove(manifestUrl);
+        Log.d(TAG, "License key file deleted! ");
     }
 
     @RequiresApi(api = Build.VERSION_CODES.JELLY_BEAN_MR2)
     private void closeSession() {
-        if (mMediaDrm != null && mSessionId != null) mMediaDrm.closeSession(mSessionId);
+        if (mMediaDrm != null && mSessionId != null) {
+            DrmSessionAdmission.getInstance().closeSession(mMediaDrm, mSessionId);
+            mSessionId = null;
+        }
     }
 
     private void onError(Exception e) {
@@ -205,6 +215,9 @@ public class LicenseReleaseTask extends AsyncTask<LicenseReleaseTask.Params, Voi
         if (e instanceof LicenseManagerException) {
             mErrorCode = ((LicenseManagerException) e).getErrorCode();
             mErrorExtraData = ((LicenseManagerException) e).getExtraData();
+        } else if (e instanceof ResourceBusyException) {
+            mErrorCode = LicenseManagerErrorCode.ERROR_312;
+            mErrorExtraData = e.getMessage();
         } else if (e instanceof UnsupportedSchemeException) {
             mErrorCode = LicenseManagerErrorCode.ERROR_301;
             mErrorExtraData = e.toString();
@@ -235,14 +248,15 @@ public class LicenseReleaseTask extends AsyncTask<LicenseReleaseTask.Params, Voi
     }
 
     public static class Params {
-        final String manifestUrl, defaultStoragePath, licenseServerUrl;
+        final String manifestUrl, defaultStoragePath, licenseServerUrl, batchLicenseServerUrl;
         final boolean deleteAll, stopOnLicenseServerFail;
         final Map<String, String> requestProperties;
 
         public Params(String licenseServerUrl, String manifestUrl, String defaultStoragePath,
                       boolean deleteAll, boolean stopOnLicenseServerFail,
-                      Map<String, String> requestProperties) {
+                      Map<String, String> requestProperties, String batchLicenseServerUrl) {
             this.licenseServerUrl = licenseServerUrl;
+            this.batchLicenseServerUrl = batchLicenseServerUrl;
             this.manifestUrl = manifestUrl;
             this.defaultStoragePath = defaultStoragePath;
             this.deleteAll = deleteAll;
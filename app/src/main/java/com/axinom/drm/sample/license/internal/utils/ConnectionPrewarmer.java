@@ -0,0 +1,143 @@
+package com.axinom.drm.sample.license.internal.utils;
+
+import android.net.Uri;
+import android.os.SystemClock;
+import android.text.TextUtils;
+import android.util.Log;
+
+import java.net.InetAddress;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Opens connections to license and manifest hosts ahead of the requests. Host names are resolved
+ * and a HEAD request establishes the TCP and TLS connection, which then stays in the connection
+ * pool. Connections are kept warm with repeated requests for a limited time, until other hosts
+ * are pre-warmed or pre-warming is stopped.
+ */
+public class ConnectionPrewarmer {
+
+    private static final String TAG = ConnectionPrewarmer.class.getSimpleName();
+
+    // Interval of keep-warm requests, shorter than typical server keep-alive timeouts
+    private static final long KEEP_WARM_INTERVAL_MS = 30 * 1000;
+    // Time after which connections are no longer kept warm
+    public static final long DEFAULT_MAX_KEEP_WARM_MS = 5 * 60 * 1000;
+
+    private static ConnectionPrewarmer sInstance;
+
+    private final ScheduledExecutorService mExecutor = Executors.newSingleThreadScheduledExecutor();
+    private ScheduledFuture<?> mKeepWarmFuture;
+    private Set<String> mOrigins = new LinkedHashSet<>();
+    private boolean mEnabled = true;
+    private long mMaxKeepWarmMs = DEFAULT_MAX_KEEP_WARM_MS;
+
+    private long mPrewarmCount = 0;
+    private long mFailureCount = 0;
+
+    private ConnectionPrewarmer() {
+    }
+
+    public static synchronized ConnectionPrewarmer getInstance() {
+        if (sInstance == null) sInstance = new ConnectionPrewarmer();
+        return sInstance;
+    }
+
+    /**
+     * Pre-warms connections to the hosts of the given URLs and keeps them warm. Pre-warming of
+     * earlier hosts is stopped.
+     *
+     * @param urls URLs whose hosts requests will be made to, e.g. license server and manifest
+     */
+    public synchronized void prewarm(List<String> urls) {
+        if (!mEnabled) return;
+        Set<String> origins = new LinkedHashSet<>();
+        for (String url : urls) {
+            String origin = getOrigin(url);
+            if (origin != null) origins.add(origin);
+        }
+        if (origins.equals(mOrigins) && mKeepWarmFuture != null && !mKeepWarmFuture.isDone()) return;
+
+        stop();
+        if (origins.isEmpty()) return;
+        mOrigins = origins;
+        long startTime = SystemClock.elapsedRealtime();
+        final Set<String> warmedOrigins = origins;
+        final long maxKeepWarmMs = mMaxKeepWarmMs;
+        mKeepWarmFuture = mExecutor.scheduleWithFixedDelay(() -> {
+            if (SystemClock.elapsedRealtime() - startTime > maxKeepWarmMs) {
+                stop(warmedOrigins);
+                return;
+            }
+            for (String origin : warmedOrigins) warm(origin);
+        }, 0, KEEP_WARM_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Configures pre-warming, e.g. to avoid repeated requests on metered networks. Connections
+     * which are currently kept warm are not affected unless pre-warming is disabled.
+     *
+     * @param enabled       whether connections are pre-warmed
+     * @param maxKeepWarmMs time for which connections are kept warm, 0 to warm them only once
+     */
+    public synchronized void configure(boolean enabled, long maxKeepWarmMs) {
+        mEnabled = enabled;
+        mMaxKeepWarmMs = Math.max(0, maxKeepWarmMs);
+        if (!enabled) stop();
+    }
+
+    /**
+     * Stops keeping connections warm. Pooled connections are closed by the pool when idle.
+     */
+    public synchronized void stop() {
+        if (mKeepWarmFuture != null) mKeepWarmFuture.cancel(false);
+        mKeepWarmFuture = null;
+        mOrigins = new LinkedHashSet<>();
+    }
+
+    private synchronized void stop(Set<String> origins) {
+        if (origins == mOrigins) stop();
+    }
+
+    private void warm(String origin) {
+        long startTime = SystemClock.elapsedRealtime();
+        try {
+            InetAddress.getAllByName(Uri.parse(origin).getHost());
+            long dnsTimeMs = SystemClock.elapsedRealtime() - startTime;
+            RequestUtils.prewarmConnection(origin);
+            recordResult(true);
+            Log.d(TAG, "Pre-warmed " + origin + ", dns " + dnsTimeMs + " ms, total "
+                    + (SystemClock.elapsedRealtime() - startTime) + " ms, " + getStats());
+        } catch (Exception e) {
+            recordResult(false);
+            Log.d(TAG, "Pre-warming " + origin + " failed: " + e);
+        }
+    }
+
+    private static String getOrigin(String url) {
+        if (TextUtils.isEmpty(url) || !RequestUtils.isNetworkPath(url)) return null;
+        Uri uri = Uri.parse(url);
+        if (uri.getHost() == null) return null;
+        return uri.getScheme().toLowerCase(Locale.US) + "://" + uri.getEncodedAuthority() + "/";
+    }
+
+    private synchronized void recordResult(boolean success) {
+        mPrewarmCount++;
+        if (!success) mFailureCount++;
+    }
+
+    /**
+     * Returns pre-warming statistics in a loggable form.
+     *
+     * @return statistics string
+     */
+    public synchronized String getStats() {
+        return "prewarms=" + mPrewarmCount + ", failures=" + mFailureCount;
+    }
+}
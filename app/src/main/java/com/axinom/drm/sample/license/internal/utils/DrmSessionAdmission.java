@@ -0,0 +1,242 @@
+package com.axinom.drm.sample.license.internal.utils;
+
+import android.media.MediaDrm;
+import android.media.NotProvisionedException;
+import android.media.ResourceBusyException;
+import android.os.Build;
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.annotation.RequiresApi;
+
+import com.axinom.drm.sample.license.LicenseManagerErrorCode;
+import com.axinom.drm.sample.license.internal.exception.LicenseManagerException;
+
+/**
+ * Admission control for DRM sessions. Devices support only a limited number of concurrently open
+ * sessions, so sessions are reserved for active playback and background license work is queued
+ * until a session is available, instead of failing with {@link ResourceBusyException}.
+ */
+public class DrmSessionAdmission {
+
+    private static final String TAG = DrmSessionAdmission.class.getSimpleName();
+
+    // Session budget used when the device cannot report it (API < 28)
+    private static final int DEFAULT_MAX_SESSIONS = 4;
+    // Number of sessions reserved for every active playback
+    public static final int PLAYBACK_SESSIONS = 2;
+    // Maximum time background work waits for a session
+    private static final long MAX_WAIT_MS = 60000;
+    // Delay before retrying openSession() after ResourceBusyException
+    private static final long RESOURCE_BUSY_RETRY_DELAY_MS = 500;
+
+    private static DrmSessionAdmission sInstance;
+
+    private int mMaxSessions = 0;
+    private int mPlaybackReserved = 0;
+    private int mBackgroundInUse = 0;
+    private int mWaiting = 0;
+
+    // Utilization metrics
+    private int mPeakInUse = 0;
+    private long mAdmittedCount = 0;
+    private long mQueuedCount = 0;
+    private long mTotalWaitMs = 0;
+    private long mResourceBusyCount = 0;
+    private long mRejectedCount = 0;
+
+    public static synchronized DrmSessionAdmission getInstance() {
+        if (sInstance == null) {
+            sInstance = new DrmSessionAdmission();
+        }
+        return sInstance;
+    }
+
+    /**
+     * Reserve sessions for playback. Never blocks; background work is throttled instead.
+     */
+    public synchronized void reservePlayback() {
+        mPlaybackReserved += PLAYBACK_SESSIONS;
+        updatePeak();
+        Log.d(TAG, "Playback reservation added. " + getStats());
+    }
+
+    /**
+     * Release sessions previously reserved with {@link #reservePlayback()}.
+     */
+    public synchronized void releasePlayback() {
+        mPlaybackReserved = Math.max(0, mPlaybackReserved - PLAYBACK_SESSIONS);
+        notifyAll();
+        Log.d(TAG, "Playback reservation released. " + getStats());
+    }
+
+    /**
+     * Open a session for background license work. Waits until the session budget allows it and
+     * retries while the CDM reports that it is busy.
+     *
+     * @param mediaDrm MediaDrm to open the session with
+     * @return id of the opened session
+     * @throws NotProvisionedException if the device is not provisioned
+     * @throws LicenseManagerException if no session became available in time
+     */
+    @RequiresApi(api = Build.VERSION_CODES.JELLY_BEAN_MR2)
+    public byte[] openSession(MediaDrm mediaDrm) throws NotProvisionedException,
+            LicenseManagerException {
+        long deadline = SystemClock.elapsedRealtime() + MAX_WAIT_MS;
+        acquire(mediaDrm, deadline);
+        boolean opened = false;
+        try {
+            while (true) {
+                try {
+                    byte[] sessionId = mediaDrm.openSession();
+                    opened = true;
+                    return sessionId;
+                } catch (ResourceBusyException e) {
+                    onResourceBusy();
+                    if (SystemClock.elapsedRealtime() + RESOURCE_BUSY_RETRY_DELAY_MS > deadline) {
+                        throw sessionUnavailable(e.getMessage());
+                    }
+                    sleep(RESOURCE_BUSY_RETRY_DELAY_MS);
+                }
+            }
+        } finally {
+            if (!opened) release();
+        }
+    }
+
+    /**
+     * Close a session opened with {@link #openSession(MediaDrm)}.
+     *
+     * @param mediaDrm  MediaDrm which owns the session
+     * @param sessionId id of the session
+     */
+    @RequiresApi(api = Build.VERSION_CODES.JELLY_BEAN_MR2)
+    public void closeSession(MediaDrm mediaDrm, byte[] sessionId) {
+        try {
+            mediaDrm.closeSession(sessionId);
+        } finally {
+            release();
+        }
+    }
+
+    /**
+     * Returns the number of sessions background work may currently hold at the same time.
+     * Work which holds several sessions at once must not exceed it, as it would otherwise wait
+     * for its own sessions.
+     *
+     * @param mediaDrm MediaDrm used for reading the device session budget
+     * @return number of sessions, at least 1
+     */
+    public synchronized int getBackgroundBudget(MediaDrm mediaDrm) {
+        if (mMaxSessions == 0) mMaxSessions = readMaxSessions(mediaDrm);
+        return getBackgroundBudget();
+    }
+
+    private synchronized void acquire(MediaDrm mediaDrm, long deadline)
+            throws LicenseManagerException {
+        if (mMaxSessions == 0) mMaxSessions = readMaxSessions(mediaDrm);
+        long waitStart = SystemClock.elapsedRealtime();
+        boolean queued = false;
+        while (mBackgroundInUse >= getBackgroundBudget()) {
+            long remaining = deadline - SystemClock.elapsedRealtime();
+            if (remaining <= 0) {
+                throw sessionUnavailable("Session budget exhausted: " + getStats());
+            }
+            if (!queued) {
+                queued = true;
+                mQueuedCount++;
+                mWaiting++;
+                Log.d(TAG, "Queueing background session request. " + getStats());
+            }
+            try {
+                wait(remaining);
+            } catch (InterruptedException e) {
+                mWaiting--;
+                Thread.currentThread().interrupt();
+                throw sessionUnavailable("Interrupted while waiting for a session");
+            }
+        }
+        if (queued) {
+            mWaiting--;
+            mTotalWaitMs += SystemClock.elapsedRealtime() - waitStart;
+        }
+        mBackgroundInUse++;
+        mAdmittedCount++;
+        updatePeak();
+    }
+
+    private synchronized void release() {
+        mBackgroundInUse = Math.max(0, mBackgroundInUse - 1);
+        notifyAll();
+    }
+
+    private synchronized void onResourceBusy() {
+        mResourceBusyCount++;
+        Log.d(TAG, "CDM reported ResourceBusyException. " + getStats());
+    }
+
+    private synchronized LicenseManagerException sessionUnavailable(String message) {
+        mRejectedCount++;
+        return new LicenseManagerException(LicenseManagerErrorCode.ERROR_312, message);
+    }
+
+    // Background work always gets at least one session, CDM busy errors are retried then
+    private int getBackgroundBudget() {
+        return Math.max(1, mMaxSessions - mPlaybackReserved);
+    }
+
+    private void updatePeak() {
+        mPeakInUse = Math.max(mPeakInUse, mBackgroundInUse + mPlaybackReserved);
+    }
+
+    private static int readMaxSessions(MediaDrm mediaDrm) {
+        if (Build.VERSION.SDK_INT >= 28) {
+            try {
+                int maxSessions = mediaDrm.getMaxSessionCount();
+                if (maxSessions > 0) return maxSessions;
+            } catch (Exception e) {
+                Log.w(TAG, "Cannot read max session count: " + e.getMessage());
+            }
+        }
+        return DEFAULT_MAX_SESSIONS;
+    }
+
+    private static void sleep(long delayMs) throws LicenseManagerException {
+        try {
+            Thread.sleep(delayMs);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new LicenseManagerException(LicenseManagerErrorCode.ERROR_312,
+                    "Interrupted while waiting for a session");
+        }
+    }
+
+    /**
+     * Returns current session utilization, 0 when nothing is open and 1 when the whole session
+     * budget is in use.
+     *
+     * @return utilization ratio
+     */
+    public synchronized float getUtilization() {
+        int maxSessions = mMaxSessions == 0 ? DEFAULT_MAX_SESSIONS : mMaxSessions;
+        return Math.min(1f, (mBackgroundInUse + mPlaybackReserved) / (float) maxSessions);
+    }
+
+    /**
+     * Returns utilization metrics in a loggable form.
+     *
+     * @return metrics string
+     */
+    public synchronized String getStats() {
+        return "maxSessions=" + mMaxSessions
+                + ", playbackReserved=" + mPlaybackReserved
+                + ", backgroundInUse=" + mBackgroundInUse
+                + ", waiting=" + mWaiting
+                + ", peakInUse=" + mPeakInUse
+                + ", admitted=" + mAdmittedCount
+                + ", queued=" + mQueuedCount
+                + ", totalWaitMs=" + mTotalWaitMs
+                + ", resourceBusy=" + mResourceBusyCount
+                + ", rejected=" + mRejectedCount;
+    }
+}
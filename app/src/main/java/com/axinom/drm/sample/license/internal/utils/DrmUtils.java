@@ -12,10 +12,14 @@ import com.axinom.drm.sample.license.internal.model.DrmMessage;
 import com.axinom.drm.sample.license.internal.model.SchemeData;
 import com.google.android.exoplayer2.C;
 
+import org.json.JSONArray;
+import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.UUID;
 
@@ -52,6 +56,10 @@ public class DrmUtils {
                                 && jMessage.getJSONObject("license").getBoolean("allow_persistence");
                 drmMessage.keysBasedOnRequest =
                         jMessage.has("keys_based_on_request") && jMessage.getBoolean("keys_based_on_request");
+                if (jMessage.has("license") && jMessage.getJSONObject("license").has("duration")) {
+                    drmMessage.licenseDuration = jMessage.getJSONObject("license").getLong("duration");
+                }
+                drmMessage.keyIds = parseInlineKeyIds(jMessage);
             }
             return drmMessage;
         } catch (Exception e) {
@@ -60,6 +68,20 @@ public class DrmUtils {
         return null;
     }
 
+    private static String[] parseInlineKeyIds(JSONObject jMessage) throws JSONException {
+        if (!jMessage.has("content_keys_source")
+                || !jMessage.getJSONObject("content_keys_source").has("inline")) {
+            return new String[0];
+        }
+        JSONArray jInlineKeys = jMessage.getJSONObject("content_keys_source").getJSONArray("inline");
+        List<String> keyIds = new ArrayList<>(jInlineKeys.length());
+        for (int i = 0; i < jInlineKeys.length(); i++) {
+            JSONObject jKey = jInlineKeys.getJSONObject(i);
+            if (jKey.has("id")) keyIds.add(jKey.getString("id").toLowerCase(Locale.US));
+        }
+        return keyIds.toArray(new String[0]);
+    }
+
     public static byte[] getSchemeInitData(SchemeData data, UUID uuid) {
         byte[] schemeInitData = data.data;
         if (Build.VERSION.SDK_INT < 21) {
@@ -115,6 +137,23 @@ public class DrmUtils {
         return matchingSchemeDatas.get(0);
     }
 
+    /**
+     * Returns the content key ids found in a PSSH atom, sorted and in lower case UUID form.
+     *
+     * @param psshAtom PSSH atom data
+     * @return key ids, empty if the atom is not valid or lists no key ids
+     */
+    public static String[] getKeyIds(byte[] psshAtom) {
+        if (psshAtom == null) return new String[0];
+        UUID[] keyIds = PsshAtomUtils.parseKeyIds(psshAtom);
+        String[] keyIdStrings = new String[keyIds.length];
+        for (int i = 0; i < keyIds.length; i++) {
+            keyIdStrings[i] = keyIds[i].toString();
+        }
+        Arrays.sort(keyIdStrings);
+        return keyIdStrings;
+    }
+
     public static String getSchemeMimeType(SchemeData data, UUID uuid) {
         String schemeMimeType = data.mimeType;
         if (Build.VERSION.SDK_INT < 26 && C.CLEARKEY_UUID.equals(uuid)
@@ -0,0 +1,203 @@
+package com.axinom.drm.sample.license.internal.utils;
+
+import android.media.MediaDrm;
+import android.os.Build;
+import android.text.TextUtils;
+import android.util.Log;
+
+import androidx.annotation.RequiresApi;
+
+import com.google.android.exoplayer2.C;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * Keeps track of absolute license expiry times. Expiry times are collected from MediaDrm
+ * expiration and key status events of license and playback sessions (and from key status queries
+ * made while a session is open anyway) and persisted, so later validity questions can be answered
+ * without any CDM call. There is one tracker per storage path.
+ */
+public class KeyExpiryTracker {
+
+    private static final String TAG = KeyExpiryTracker.class.getSimpleName();
+    private static final String EXPIRY_FILE_NAME = "drm_expiry.properties";
+
+    /**
+     * Expiry time used for licenses which never expire.
+     */
+    public static final long EXPIRY_NEVER = Long.MAX_VALUE;
+
+    // Trackers by path of their expiry file
+    private static final Map<String, KeyExpiryTracker> sInstances = new HashMap<>();
+
+    private final File mExpiryFile;
+    private final Map<String, Long> mExpiryTimesMs = new HashMap<>();
+
+    private KeyExpiryTracker(File expiryFile) {
+        mExpiryFile = expiryFile;
+        load();
+    }
+
+    /**
+     * Returns the tracker instance of a storage path, creating it if necessary.
+     *
+     * @param defaultStoragePath storage path where the expiry times are persisted
+     * @return tracker instance
+     */
+    public static synchronized KeyExpiryTracker getInstance(String defaultStoragePath) {
+        File expiryFile = new File(defaultStoragePath, EXPIRY_FILE_NAME);
+        KeyExpiryTracker instance = sInstances.get(expiryFile.getAbsolutePath());
+        if (instance == null) {
+            instance = new KeyExpiryTracker(expiryFile);
+            sInstances.put(expiryFile.getAbsolutePath(), instance);
+        }
+        return instance;
+    }
+
+    /**
+     * Registers expiration and key status listeners on an open session. Events are delivered on
+     * the looper of the calling thread, or on the main looper if the calling thread has none.
+     *
+     * @param mediaDrm  MediaDrm which owns the session
+     * @param sessionId id of the open session
+     * @param key       key under which the expiry time is tracked
+     */
+    public void attach(MediaDrm mediaDrm, byte[] sessionId, String key) {
+        if (Build.VERSION.SDK_INT < 23 || TextUtils.isEmpty(key)) return;
+        registerListeners(mediaDrm, sessionId, key);
+    }
+
+    @RequiresApi(api = Build.VERSION_CODES.M)
+    private void registerListeners(MediaDrm mediaDrm, final byte[] sessionId, final String key) {
+        mediaDrm.setOnExpirationUpdateListener((md, eventSessionId, expirationTime) -> {
+            if (!Arrays.equals(sessionId, eventSessionId)) return;
+            recordExpirationUpdate(key, expirationTime);
+        }, null);
+        mediaDrm.setOnKeyStatusChangeListener((md, eventSessionId, keyInformation, hasNewUsableKey) -> {
+            if (!Arrays.equals(sessionId, eventSessionId)) return;
+            if (hasExpiredKey(keyInformation)) recordExpiryTime(key, System.currentTimeMillis());
+        }, null);
+    }
+
+    @RequiresApi(api = Build.VERSION_CODES.M)
+    private static boolean hasExpiredKey(List<MediaDrm.KeyStatus> keyInformation) {
+        for (MediaDrm.KeyStatus keyStatus : keyInformation) {
+            if (keyStatus.getStatusCode() == MediaDrm.KeyStatus.STATUS_EXPIRED) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Records the expiration time of a MediaDrm expiration update.
+     *
+     * @param key            key under which the expiry time is tracked
+     * @param expirationTime expiration time in milliseconds since the epoch, 0 if the keys never
+     *                       expire
+     */
+    public void recordExpirationUpdate(String key, long expirationTime) {
+        recordExpiryTime(key, expirationTime == 0 ? EXPIRY_NEVER : expirationTime);
+    }
+
+    /**
+     * Drops the expiry time of a license whose playback is about to start. The playback duration
+     * of an offline license starts with its first playback, which an expiry time recorded before
+     * does not account for. Until the playback session reports the new expiry time, validity
+     * questions are answered by the CDM.
+     *
+     * @param key key under which the expiry time is tracked
+     */
+    public synchronized void onPlaybackStarting(String key) {
+        if (key != null && mExpiryTimesMs.remove(key) != null) {
+            Log.d(TAG, "Dropped expiry time before playback of: " + key);
+            save();
+        }
+    }
+
+    /**
+     * Records the remaining license duration as returned by
+     * {@link DrmUtils#getLicenseDurationRemainingSec(MediaDrm, byte[])}.
+     *
+     * @param key          key under which the expiry time is tracked
+     * @param remainingSec remaining license duration in seconds, or {@link C#TIME_UNSET}
+     */
+    public void recordRemainingSec(String key, long remainingSec) {
+        if (remainingSec == C.TIME_UNSET) return;
+        long expiryTimeMs = remainingSec >= EXPIRY_NEVER / 1000
+                ? EXPIRY_NEVER : System.currentTimeMillis() + remainingSec * 1000;
+        recordExpiryTime(key, expiryTimeMs);
+    }
+
+    /**
+     * Records an absolute expiry time.
+     *
+     * @param key          key under which the expiry time is tracked
+     * @param expiryTimeMs expiry time in milliseconds since the epoch, or {@link #EXPIRY_NEVER}
+     */
+    public synchronized void recordExpiryTime(String key, long expiryTimeMs) {
+        if (TextUtils.isEmpty(key)) return;
+        Log.d(TAG, "Recording expiry time " + expiryTimeMs + " for: " + key);
+        mExpiryTimesMs.put(key, expiryTimeMs);
+        save();
+    }
+
+    /**
+     * Returns the remaining license duration in seconds without calling the CDM.
+     *
+     * @param key key under which the expiry time is tracked
+     * @return remaining seconds (0 if expired), {@link #EXPIRY_NEVER} if the license never
+     * expires or {@link C#TIME_UNSET} if nothing is known about the license
+     */
+    public synchronized long getRemainingSec(String key) {
+        Long expiryTimeMs = key == null ? null : mExpiryTimesMs.get(key);
+        if (expiryTimeMs == null) return C.TIME_UNSET;
+        if (expiryTimeMs == EXPIRY_NEVER) return EXPIRY_NEVER;
+        return Math.max(0, (expiryTimeMs - System.currentTimeMillis()) / 1000);
+    }
+
+    public synchronized void remove(String key) {
+        if (key != null && mExpiryTimesMs.remove(key) != null) save();
+    }
+
+    public synchronized void clear() {
+        mExpiryTimesMs.clear();
+        save();
+    }
+
+    private void load() {
+        if (!mExpiryFile.exists()) return;
+        Properties properties = new Properties();
+        try (FileInputStream fis = new FileInputStream(mExpiryFile)) {
+            properties.load(fis);
+        } catch (IOException e) {
+            Log.w(TAG, "Cannot read expiry times: " + e.getMessage());
+            return;
+        }
+        for (String key : properties.stringPropertyNames()) {
+            try {
+                mExpiryTimesMs.put(key, Long.parseLong(properties.getProperty(key)));
+            } catch (NumberFormatException e) {
+                // ignore broken entry
+            }
+        }
+    }
+
+    private void save() {
+        Properties properties = new Properties();
+        for (Map.Entry<String, Long> entry : mExpiryTimesMs.entrySet()) {
+            properties.setProperty(entry.getKey(), String.valueOf(entry.getValue()));
+        }
+        try (FileOutputStream fos = new FileOutputStream(mExpiryFile)) {
+            properties.store(fos, null);
+        } catch (IOException e) {
+            Log.w(TAG, "Cannot save expiry times: " + e.getMessage());
+        }
+    }
+}
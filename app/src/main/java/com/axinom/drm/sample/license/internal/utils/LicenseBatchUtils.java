@@ -0,0 +1,131 @@
+package com.axinom.drm.sample.license.internal.utils;
+
+import android.os.SystemClock;
+import android.text.TextUtils;
+import android.util.Base64;
+import android.util.Log;
+
+import com.axinom.drm.sample.license.LicenseManagerErrorCode;
+import com.axinom.drm.sample.license.RequestStage;
+import com.axinom.drm.sample.license.internal.exception.LicenseManagerException;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Utility class for batched license server exchanges. A batch request body is a JSON array with
+ * the Base64 encoded license requests, and the batch response is a JSON array with the Base64
+ * encoded license responses in the same order. Failed items are null or empty in the response.
+ */
+public class LicenseBatchUtils {
+
+    private static final String TAG = LicenseBatchUtils.class.getSimpleName();
+    private static final String CONTENT_TYPE = "application/json";
+
+    public static byte[] encodeBatch(List<byte[]> requests) {
+        JSONArray batch = new JSONArray();
+        for (byte[] request : requests) {
+            batch.put(Base64.encodeToString(request, Base64.NO_WRAP));
+        }
+        return batch.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    public static List<byte[]> decodeBatch(byte[] response, int expectedCount)
+            throws LicenseManagerException {
+        if (response == null || response.length == 0) {
+            throw new LicenseManagerException(
+                    LicenseManagerErrorCode.ERROR_302, "Batch response is empty");
+        }
+        List<byte[]> responses = new ArrayList<>();
+        try {
+            JSONArray batch = new JSONArray(new String(response, StandardCharsets.UTF_8));
+            if (batch.length() != expectedCount) {
+                throw new LicenseManagerException(LicenseManagerErrorCode.ERROR_302,
+                        "Batch response has " + batch.length() + " items, expected " + expectedCount);
+            }
+            for (int i = 0; i < batch.length(); i++) {
+                String item = batch.isNull(i) ? null : batch.getString(i);
+                responses.add(item == null || item.isEmpty()
+                        ? null : Base64.decode(item, Base64.DEFAULT));
+            }
+        } catch (JSONException | IllegalArgumentException e) {
+            throw new LicenseManagerException(
+                    LicenseManagerErrorCode.ERROR_302, "Malformed batch response: " + e.getMessage());
+        }
+        return responses;
+    }
+
+    /**
+     * Sends license requests to the license server, as one batch request if a batch endpoint is
+     * given and there is more than one request, otherwise one by one over pooled keep-alive
+     * connections.
+     *
+     * @param requests          license requests
+     * @param licenseServerUrl  URL of the license server
+     * @param mirrors           URLs of equivalent license servers used for hedging requests
+     *                          sent one by one, or null
+     * @param batchUrl          URL of the license server batch endpoint, or null
+     * @param drmMessage        DRM message (token) shared by all requests, or null
+     * @param requestProperties request header parameters
+     * @param stage             stage the requests belong to
+     * @param failures          receives exceptions by request index for failed requests
+     * @return responses by request index, null for failed requests
+     */
+    public static List<byte[]> exchange(List<byte[]> requests, String licenseServerUrl,
+                                        List<String> mirrors, String batchUrl, String drmMessage,
+                                        Map<String, String> requestProperties,
+                                        RequestStage stage, Map<Integer, Exception> failures) {
+        long startTime = SystemClock.elapsedRealtime();
+        List<byte[]> responses = new ArrayList<>();
+        int roundTrips;
+        if (!TextUtils.isEmpty(batchUrl) && requests.size() > 1) {
+            roundTrips = 1;
+            try {
+                responses.addAll(decodeBatch(RequestUtils.executePost(batchUrl, drmMessage,
+                        encodeBatch(requests), getBatchRequestProperties(requestProperties), stage),
+                        requests.size()));
+            } catch (Exception e) {
+                for (int i = 0; i < requests.size(); i++) {
+                    responses.add(null);
+                    failures.put(i, e);
+                }
+            }
+        } else {
+            roundTrips = requests.size();
+            for (int i = 0; i < requests.size(); i++) {
+                byte[] response = null;
+                try {
+                    response = RequestUtils.executeHedgedPost(licenseServerUrl, mirrors,
+                            drmMessage, requests.get(i), requestProperties, stage);
+                } catch (Exception e) {
+                    failures.put(i, e);
+                }
+                responses.add(response);
+            }
+        }
+        for (int i = 0; i < responses.size(); i++) {
+            if (!failures.containsKey(i) && (responses.get(i) == null || responses.get(i).length == 0)) {
+                responses.set(i, null);
+                failures.put(i, new LicenseManagerException(
+                        LicenseManagerErrorCode.ERROR_302, "Server response is empty"));
+            }
+        }
+        Log.d(TAG, "Exchanged " + requests.size() + " license messages with " + roundTrips
+                + " round trips in " + (SystemClock.elapsedRealtime() - startTime) + " ms");
+        return responses;
+    }
+
+    // Returns request properties for a batch request, leaving the given properties untouched
+    public static Map<String, String> getBatchRequestProperties(Map<String, String> requestProperties) {
+        Map<String, String> batchRequestProperties = new HashMap<>();
+        if (requestProperties != null) batchRequestProperties.putAll(requestProperties);
+        batchRequestProperties.put("Content-Type", CONTENT_TYPE);
+        return batchRequestProperties;
+    }
+}
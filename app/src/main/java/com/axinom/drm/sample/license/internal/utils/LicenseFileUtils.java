@@ -2,6 +2,7 @@ package com.axinom.drm.sample.license.internal.utils;
 
 import android.text.TextUtils;
 import android.util.Base64;
+import android.util.Log;
 
 import com.axinom.drm.sample.license.LicenseManagerErrorCode;
 import com.axinom.drm.sample.license.internal.exception.LicenseManagerException;
@@ -11,19 +12,49 @@ import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.Objects;
+import java.util.Properties;
 
 /**
- * Utility class for working with license key set id files
+ * Utility class for working with license key set id files. Licenses are stored under the content
+ * key ids they hold, and an index maps manifest URLs to them, so that every manifest of the same
+ * content (e.g. DASH and HLS) shares one license. Licenses of content without known key ids, and
+ * licenses saved by earlier versions, are stored under the Base64 encoded manifest URL.
  */
 
 @SuppressWarnings("WeakerAccess")
 public class LicenseFileUtils {
     public static String customStoragePath;
 
+    private static final String TAG = LicenseFileUtils.class.getSimpleName();
+    private static final String LICENSE_ID_PREFIX = "kid_";
+    private static final String INDEX_FILE_NAME = "manifests.index";
+    private static final int MAX_LICENSE_ID_LENGTH = 200;
+
     public static void writeLicenseFile(String defaultStoragePath, String manifestUrl,
                                         byte[] offlineLicenseKeySetId) throws LicenseManagerException {
-        String licenseFileName = getBase64Name(manifestUrl);
+        writeLicenseFile(defaultStoragePath, manifestUrl, null, offlineLicenseKeySetId);
+    }
+
+    /**
+     * Writes the license and maps the manifest to it.
+     *
+     * @param keyIds content key ids held by the license, or null if not known
+     */
+    public static synchronized void writeLicenseFile(String defaultStoragePath, String manifestUrl,
+                                                     String[] keyIds, byte[] offlineLicenseKeySetId)
+            throws LicenseManagerException {
+        String licenseId = getLicenseId(keyIds);
+        String licenseFileName = licenseId != null ? licenseId : getBase64Name(manifestUrl);
         if (TextUtils.isEmpty(licenseFileName)) {
             throw new LicenseManagerException(LicenseManagerErrorCode.ERROR_303,
                     "Problem while saving keys. Incorrect manifest name: " + manifestUrl);
@@ -61,10 +92,43 @@ public class LicenseFileUtils {
         } catch (IOException e) {
             throw new LicenseManagerException(LicenseManagerErrorCode.ERROR_303, e.getMessage());
         }
+
+        if (licenseId != null) {
+            Properties index = readIndex(defaultStoragePath);
+            index.setProperty(ManifestUtils.normalizeManifestUrl(manifestUrl), licenseId);
+            writeIndex(defaultStoragePath, index);
+            // A license saved for this manifest by earlier versions is replaced by the shared one
+            File legacyLicenseFile = getFileFromDataFolder(defaultStoragePath, getBase64Name(manifestUrl));
+            if (legacyLicenseFile.exists() && !legacyLicenseFile.delete()) {
+                Log.w(TAG, "Cannot delete legacy license file for: " + manifestUrl);
+            }
+        }
+    }
+
+    /**
+     * Maps a manifest to an already stored license with the given key ids.
+     *
+     * @return true if such a license is stored
+     */
+    public static synchronized boolean linkLicenseFile(String defaultStoragePath, String manifestUrl,
+                                                       String[] keyIds) throws LicenseManagerException {
+        String licenseId = getLicenseId(keyIds);
+        if (licenseId == null || !getFileFromDataFolder(defaultStoragePath, licenseId).exists()) {
+            return false;
+        }
+        Properties index = readIndex(defaultStoragePath);
+        index.setProperty(ManifestUtils.normalizeManifestUrl(manifestUrl), licenseId);
+        writeIndex(defaultStoragePath, index);
+        return true;
     }
 
-    public static void deleteLicenseFile(String defaultStoragePath, String manifestUrl) throws LicenseManagerException {
-        String licenseFileName = getBase64Name(manifestUrl);
+    /**
+     * Deletes the license of the manifest. A license shared by several manifests is deleted for
+     * all of them, as the content keys are gone.
+     */
+    public static synchronized void deleteLicenseFile(String defaultStoragePath, String manifestUrl)
+            throws LicenseManagerException {
+        String licenseFileName = getLicenseFileName(defaultStoragePath, manifestUrl);
         if (TextUtils.isEmpty(licenseFileName)) {
             throw new LicenseManagerException(LicenseManagerErrorCode.ERROR_303,
                     "Problem deleting saving keys. Incorrect manifest name: " + manifestUrl);
@@ -77,6 +141,11 @@ public class LicenseFileUtils {
             throw new LicenseManagerException(LicenseManagerErrorCode.ERROR_303,
                     "Problem deleting saving keys. Cannot delete license file.");
         }
+
+        Properties index = readIndex(defaultStoragePath);
+        if (index.values().removeAll(Collections.singleton(licenseFileName))) {
+            writeIndex(defaultStoragePath, index);
+        }
     }
 
     public static void deleteAllLicenses(String defaultStoragePath) throws LicenseManagerException {
@@ -98,22 +167,78 @@ public class LicenseFileUtils {
         return fileOrDirectory.delete();
     }
 
-    public static String[] getAllLicenseFilesPaths(String defaultStoragePath) {
+    /**
+     * Returns one manifest URL for every stored license.
+     */
+    public static synchronized String[] getAllLicenseFilesPaths(String defaultStoragePath) {
         File licenseFolder = getDataFolder(defaultStoragePath);
         if (!licenseFolder.exists()) return new String[0];
 
+        // Manifest URL for every license stored under key ids
+        Map<String, String> manifestUrls = new HashMap<>();
+        Properties index = readIndex(defaultStoragePath);
+        for (String manifestUrl : index.stringPropertyNames()) {
+            manifestUrls.put(index.getProperty(manifestUrl), manifestUrl);
+        }
+
         String[] files = licenseFolder.list();
-        String[] filesPaths = new String[Objects.requireNonNull(files).length];
-        for (int i = 0; i < files.length; i++) {
-            filesPaths[i] = getNameFromBase64(files[i]);
+        List<String> filesPaths = new ArrayList<>();
+        for (String file : Objects.requireNonNull(files)) {
+            if (file.equals(INDEX_FILE_NAME)) continue;
+            if (file.startsWith(LICENSE_ID_PREFIX)) {
+                if (manifestUrls.containsKey(file)) filesPaths.add(manifestUrls.get(file));
+            } else {
+                filesPaths.add(getNameFromBase64(file));
+            }
         }
 
-        return filesPaths;
+        return filesPaths.toArray(new String[0]);
+    }
+
+    public static boolean hasLicenseFile(String defaultStoragePath, String manifestUrl) {
+        String licenseFileName = getLicenseFileName(defaultStoragePath, manifestUrl);
+        return !TextUtils.isEmpty(licenseFileName)
+                && getFileFromDataFolder(defaultStoragePath, licenseFileName).exists();
+    }
+
+    /**
+     * Returns the key under which data of the manifest license (e.g. its expiry time) is kept:
+     * the license id for licenses stored under key ids, otherwise the manifest URL.
+     */
+    public static String getLicenseKey(String defaultStoragePath, String manifestUrl) {
+        String licenseId = readIndex(defaultStoragePath)
+                .getProperty(ManifestUtils.normalizeManifestUrl(manifestUrl));
+        return licenseId != null ? licenseId : manifestUrl;
+    }
+
+    /**
+     * Returns the license id for content key ids, or null if no key ids are known.
+     */
+    public static String getLicenseId(String[] keyIds) {
+        if (keyIds == null || keyIds.length == 0) return null;
+        String[] sortedKeyIds = keyIds.clone();
+        Arrays.sort(sortedKeyIds);
+        String licenseId = TextUtils.join("_", sortedKeyIds).replace("-", "");
+        // Content with many keys would exceed the file name length limit
+        if (licenseId.length() > MAX_LICENSE_ID_LENGTH) licenseId = sha1Hex(licenseId);
+        return LICENSE_ID_PREFIX + licenseId;
+    }
+
+    static String sha1Hex(String value) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1")
+                    .digest(value.getBytes(StandardCharsets.UTF_8));
+            StringBuilder builder = new StringBuilder();
+            for (byte b : digest) builder.append(String.format(Locale.US, "%02x", b));
+            return builder.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
     }
 
     public static byte[] readLicenseFile(String defaultStoragePath, String manifestUrl) throws LicenseManagerException {
         byte[] offlineLicenseKeySetId;
-        String licenseFileName = getBase64Name(manifestUrl);
+        String licenseFileName = getLicenseFileName(defaultStoragePath, manifestUrl);
         if (TextUtils.isEmpty(licenseFileName)) {
             throw new LicenseManagerException(LicenseManagerErrorCode.ERROR_303,
                     "Problem while reading keys. Incorrect manifest name: " + manifestUrl);
@@ -139,6 +264,38 @@ public class LicenseFileUtils {
         return offlineLicenseKeySetId;
     }
 
+    // Returns the name of the license file of the manifest, falling back to the legacy name
+    private static String getLicenseFileName(String defaultStoragePath, String manifestUrl) {
+        String licenseId = readIndex(defaultStoragePath)
+                .getProperty(ManifestUtils.normalizeManifestUrl(manifestUrl));
+        if (licenseId != null && getFileFromDataFolder(defaultStoragePath, licenseId).exists()) {
+            return licenseId;
+        }
+        return getBase64Name(manifestUrl);
+    }
+
+    private static synchronized Properties readIndex(String defaultStoragePath) {
+        Properties index = new Properties();
+        File indexFile = getFileFromDataFolder(defaultStoragePath, INDEX_FILE_NAME);
+        if (!indexFile.exists()) return index;
+        try (FileInputStream fis = new FileInputStream(indexFile)) {
+            index.load(fis);
+        } catch (IOException e) {
+            Log.w(TAG, "Cannot read license index: " + e.getMessage());
+        }
+        return index;
+    }
+
+    private static void writeIndex(String defaultStoragePath, Properties index)
+            throws LicenseManagerException {
+        try (FileOutputStream fos = new FileOutputStream(
+                getFileFromDataFolder(defaultStoragePath, INDEX_FILE_NAME))) {
+            index.store(fos, null);
+        } catch (IOException e) {
+            throw new LicenseManagerException(LicenseManagerErrorCode.ERROR_303, e.getMessage());
+        }
+    }
+
     private static String getBase64Name(String fileName) {
         byte[] fileNameData;
         fileNameData = fileName.getBytes(StandardCharsets.UTF_8);
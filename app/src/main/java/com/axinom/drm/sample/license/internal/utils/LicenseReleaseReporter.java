@@ -0,0 +1,158 @@
+package com.axinom.drm.sample.license.internal.utils;
+
+import android.media.MediaDrm;
+import android.os.Build;
+import android.os.SystemClock;
+import android.util.Base64;
+import android.util.Log;
+
+import androidx.annotation.RequiresApi;
+
+import com.axinom.drm.sample.license.RequestStage;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * Reports license releases to the license server. Several releases are sent in one batch request
+ * if a batch endpoint is configured, otherwise they are sent one by one over pooled keep-alive
+ * connections. Releases which could not be reported are persisted outside of the license folder,
+ * so they can be retried with the next release.
+ */
+public class LicenseReleaseReporter {
+
+    private static final String TAG = LicenseReleaseReporter.class.getSimpleName();
+    private static final String PENDING_FILE_NAME = "drm_pending_releases.properties";
+
+    private static LicenseReleaseReporter sInstance;
+
+    private final File mPendingFile;
+    // Manifest URLs of unreported releases by Base64 encoded key set id
+    private final Map<String, String> mPendingReleases = new LinkedHashMap<>();
+
+    private LicenseReleaseReporter(File pendingFile) {
+        mPendingFile = pendingFile;
+        load();
+    }
+
+    /**
+     * Returns the reporter instance, creating it if necessary.
+     *
+     * @param defaultStoragePath storage path where unreported releases are persisted
+     * @return reporter instance
+     */
+    public static synchronized LicenseReleaseReporter getInstance(String defaultStoragePath) {
+        if (sInstance == null) {
+            sInstance = new LicenseReleaseReporter(new File(defaultStoragePath, PENDING_FILE_NAME));
+        }
+        return sInstance;
+    }
+
+    /**
+     * Returns releases which could not be reported earlier.
+     *
+     * @return key set ids by release id
+     */
+    public synchronized Map<String, byte[]> getPendingReleases() {
+        Map<String, byte[]> pendingReleases = new LinkedHashMap<>();
+        for (String releaseId : mPendingReleases.keySet()) {
+            pendingReleases.put(releaseId, Base64.decode(releaseId, Base64.NO_WRAP));
+        }
+        return pendingReleases;
+    }
+
+    public synchronized void addPendingRelease(String manifestUrl, byte[] keySetId) {
+        Log.d(TAG, "Persisting unreported release for: " + manifestUrl);
+        mPendingReleases.put(Base64.encodeToString(keySetId, Base64.NO_WRAP), manifestUrl);
+        save();
+    }
+
+    public synchronized void removePendingRelease(String releaseId) {
+        if (mPendingReleases.remove(releaseId) != null) save();
+    }
+
+    /**
+     * Reports releases to the license server.
+     *
+     * @param mediaDrm          MediaDrm used for creating release requests
+     * @param keySetIds         key set ids of the released licenses by release id
+     * @param licenseServerUrl  URL of the license server
+     * @param batchUrl          URL of the license server batch endpoint, or null if the server
+     *                          does not support batches
+     * @param requestProperties request header parameters
+     * @return exceptions by release id for releases which could not be reported
+     */
+    @RequiresApi(api = Build.VERSION_CODES.JELLY_BEAN_MR2)
+    public Map<String, Exception> report(MediaDrm mediaDrm, Map<String, byte[]> keySetIds,
+                                         String licenseServerUrl, String batchUrl,
+                                         Map<String, String> requestProperties) {
+        long startTime = SystemClock.elapsedRealtime();
+        Map<String, Exception> failures = new HashMap<>();
+        List<String> releaseIds = new ArrayList<>();
+        List<byte[]> requests = new ArrayList<>();
+        for (Map.Entry<String, byte[]> entry : keySetIds.entrySet()) {
+            try {
+                MediaDrm.KeyRequest keyRequest = mediaDrm.getKeyRequest(
+                        entry.getValue(), null, null, MediaDrm.KEY_TYPE_RELEASE, null);
+                releaseIds.add(entry.getKey());
+                requests.add(keyRequest.getData());
+            } catch (Exception e) {
+                failures.put(entry.getKey(), e);
+            }
+        }
+
+        Map<Integer, Exception> exchangeFailures = new HashMap<>();
+        List<byte[]> responses = LicenseBatchUtils.exchange(requests, licenseServerUrl, null,
+                batchUrl, null, requestProperties, RequestStage.RELEASE, exchangeFailures);
+        for (int i = 0; i < releaseIds.size(); i++) {
+            String releaseId = releaseIds.get(i);
+            if (exchangeFailures.containsKey(i)) {
+                failures.put(releaseId, exchangeFailures.get(i));
+                continue;
+            }
+            try {
+                mediaDrm.provideKeyResponse(keySetIds.get(releaseId), responses.get(i));
+            } catch (Exception e) {
+                failures.put(releaseId, e);
+            }
+        }
+
+        Log.d(TAG, "Reported " + (keySetIds.size() - failures.size()) + "/" + keySetIds.size()
+                + " releases in " + (SystemClock.elapsedRealtime() - startTime) + " ms");
+        return failures;
+    }
+
+    private void load() {
+        if (!mPendingFile.exists()) return;
+        Properties properties = new Properties();
+        try (FileInputStream fis = new FileInputStream(mPendingFile)) {
+            properties.load(fis);
+        } catch (IOException e) {
+            Log.w(TAG, "Cannot read unreported releases: " + e.getMessage());
+            return;
+        }
+        for (String releaseId : properties.stringPropertyNames()) {
+            mPendingReleases.put(releaseId, properties.getProperty(releaseId));
+        }
+    }
+
+    private void save() {
+        Properties properties = new Properties();
+        for (Map.Entry<String, String> entry : mPendingReleases.entrySet()) {
+            properties.setProperty(entry.getKey(), entry.getValue());
+        }
+        try (FileOutputStream fos = new FileOutputStream(mPendingFile)) {
+            properties.store(fos, null);
+        } catch (IOException e) {
+            Log.w(TAG, "Cannot save unreported releases: " + e.getMessage());
+        }
+    }
+}
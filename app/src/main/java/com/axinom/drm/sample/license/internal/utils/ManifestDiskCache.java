@@ -0,0 +1,440 @@
+package com.axinom.drm.sample.license.internal.utils;
+
+import android.util.Log;
+
+import com.axinom.drm.sample.license.interfaces.IHttpTransport;
+import com.axinom.drm.sample.license.internal.exception.LicenseManagerException;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * Size limited disk cache of downloaded manifests. Cached manifests are revalidated with
+ * If-None-Match and If-Modified-Since requests, so an unchanged manifest is not transferred again.
+ * The least recently used manifests are removed when the cache exceeds its size. Manifests are
+ * written to the cache while they are read, so they are never held in memory as a whole.
+ */
+public class ManifestDiskCache {
+
+    private static final String TAG = ManifestDiskCache.class.getSimpleName();
+    private static final String CACHE_FOLDER_NAME = "manifest_cache";
+    private static final String INDEX_FILE_NAME = "index.properties";
+    private static final String SUFFIX_ETAG = ".etag";
+    private static final String SUFFIX_LAST_MODIFIED = ".lastModified";
+    private static final String SUFFIX_SIZE = ".size";
+    private static final String SUFFIX_ACCESSED = ".accessed";
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final int DRAIN_BUFFER_SIZE = 16 * 1024;
+    // Rest of a manifest read on close to complete the cached copy, larger rests are not cached
+    private static final int MAX_DRAIN_BYTES = 64 * 1024;
+
+    public static final long DEFAULT_MAX_SIZE_BYTES = 20 * 1024 * 1024;
+
+    private static ManifestDiskCache sInstance;
+
+    private final File mCacheFolder;
+    private final File mIndexFile;
+    // Cache entries by hashed manifest URL, least recently used first
+    private final LinkedHashMap<String, Entry> mEntries = new LinkedHashMap<>(16, 0.75f, true);
+    private long mMaxSizeBytes = DEFAULT_MAX_SIZE_BYTES;
+    private long mSizeBytes = 0;
+
+    private long mHitCount = 0;
+    private long mMissCount = 0;
+    private long mBytesSaved = 0;
+
+    private static class Entry {
+        final String etag;
+        final String lastModified;
+        final long size;
+        long accessed;
+
+        Entry(String etag, String lastModified, long size, long accessed) {
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.size = size;
+            this.accessed = accessed;
+        }
+    }
+
+    /**
+     * Manifest stream with the validator (ETag or Last-Modified) the manifest was served with.
+     * The result must be closed.
+     */
+    public static class Result implements Closeable {
+        public final InputStream stream;
+        public final String validator;
+        public final boolean notModified;
+
+        Result(InputStream stream, String validator, boolean notModified) {
+            this.stream = stream;
+            this.validator = validator;
+            this.notModified = notModified;
+        }
+
+        @Override
+        public void close() throws IOException {
+            stream.close();
+        }
+    }
+
+    private ManifestDiskCache(File cacheFolder) {
+        mCacheFolder = cacheFolder;
+        mIndexFile = new File(cacheFolder, INDEX_FILE_NAME);
+        load();
+    }
+
+    /**
+     * Returns the cache instance, creating it if necessary.
+     *
+     * @param defaultStoragePath storage path under which manifests are cached
+     * @return cache instance
+     */
+    public static synchronized ManifestDiskCache getInstance(String defaultStoragePath) {
+        if (sInstance == null) {
+            sInstance = new ManifestDiskCache(new File(defaultStoragePath, CACHE_FOLDER_NAME));
+        }
+        return sInstance;
+    }
+
+    /**
+     * Set the maximum size of the cache. Manifests are not cached if the size is 0.
+     *
+     * @param maxSizeBytes maximum size in bytes
+     */
+    public synchronized void setMaxSizeBytes(long maxSizeBytes) {
+        mMaxSizeBytes = Math.max(0, maxSizeBytes);
+        trimToSize();
+        save();
+    }
+
+    /**
+     * Opens the manifest, revalidating a cached copy with the server. A downloaded manifest is
+     * written to the cache while it is read from the returned stream. If the stream is closed
+     * before the end, up to {@link #MAX_DRAIN_BYTES} of the rest are read to complete the cached
+     * copy; a manifest with a larger rest is not cached.
+     * Local files are read directly and not cached.
+     *
+     * @param manifestUrl URL of the video manifest file
+     * @return manifest stream
+     * @throws IOException             if a local manifest cannot be read
+     * @throws LicenseManagerException if the manifest request failed
+     */
+    public Result fetch(String manifestUrl) throws IOException, LicenseManagerException {
+        if (!RequestUtils.isNetworkPath(manifestUrl)) {
+            return new Result(new FileInputStream(manifestUrl), null, false);
+        }
+        String key = LicenseFileUtils.sha1Hex(ManifestUtils.getManifestCacheKey(manifestUrl));
+        Map<String, String> headers = new HashMap<>();
+        Entry entry;
+        synchronized (this) {
+            entry = mEntries.get(key);
+        }
+        if (entry != null) {
+            if (entry.etag != null) headers.put("If-None-Match", entry.etag);
+            if (entry.lastModified != null) headers.put("If-Modified-Since", entry.lastModified);
+        }
+
+        IHttpTransport.Response response = RequestUtils.openManifest(manifestUrl, headers);
+        if (response.code == 304 && entry != null) {
+            response.closeStream();
+            InputStream cached = open(key);
+            if (cached != null) {
+                recordHit(key, entry.size);
+                return new Result(cached, getValidator(entry.etag, entry.lastModified), true);
+            }
+            // The cached copy is gone, so the manifest is requested unconditionally
+            response = RequestUtils.openManifest(manifestUrl, null);
+        }
+
+        String etag = response.getHeader("ETag");
+        String lastModified = response.getHeader("Last-Modified");
+        InputStream stream = response.stream;
+        File tempFile = createTempFile(key, etag, lastModified);
+        if (tempFile != null) {
+            try {
+                stream = new CachingInputStream(stream, new FileOutputStream(tempFile), tempFile,
+                        key, etag, lastModified);
+            } catch (IOException e) {
+                Log.w(TAG, "Cannot cache manifest: " + e.getMessage());
+                deleteFile(tempFile);
+            }
+        }
+        return new Result(stream, getValidator(etag, lastModified), false);
+    }
+
+    private static String getValidator(String etag, String lastModified) {
+        return etag != null ? etag : lastModified;
+    }
+
+    private synchronized InputStream open(String key) {
+        try {
+            return new FileInputStream(new File(mCacheFolder, key));
+        } catch (IOException e) {
+            remove(key);
+            save();
+            return null;
+        }
+    }
+
+    // Returns the file the manifest is written to while it is read, or null if it is not cached
+    private synchronized File createTempFile(String key, String etag, String lastModified) {
+        mMissCount++;
+        if ((etag == null && lastModified == null) || mMaxSizeBytes == 0) {
+            remove(key);
+            save();
+            return null;
+        }
+        if (!mCacheFolder.exists() && !mCacheFolder.mkdirs()) return null;
+        try {
+            return File.createTempFile(key, TEMP_SUFFIX, mCacheFolder);
+        } catch (IOException e) {
+            Log.w(TAG, "Cannot cache manifest: " + e.getMessage());
+            return null;
+        }
+    }
+
+    private synchronized void store(String key, String etag, String lastModified, File tempFile,
+                                    long size) {
+        remove(key);
+        if (size > mMaxSizeBytes || !tempFile.renameTo(new File(mCacheFolder, key))) {
+            deleteFile(tempFile);
+            save();
+            return;
+        }
+        mEntries.put(key, new Entry(etag, lastModified, size, System.currentTimeMillis()));
+        mSizeBytes += size;
+        trimToSize();
+        save();
+    }
+
+    private static void deleteFile(File file) {
+        if (file.exists() && !file.delete()) Log.w(TAG, "Cannot delete " + file.getName());
+    }
+
+    private synchronized void recordHit(String key, long size) {
+        Entry entry = mEntries.get(key);
+        if (entry != null) entry.accessed = System.currentTimeMillis();
+        mHitCount++;
+        mBytesSaved += size;
+        save();
+        Log.d(TAG, "Manifest not modified, " + getStats());
+    }
+
+    private void remove(String key) {
+        Entry entry = mEntries.remove(key);
+        if (entry != null) mSizeBytes -= entry.size;
+        File file = new File(mCacheFolder, key);
+        if (file.exists() && !file.delete()) Log.w(TAG, "Cannot delete cached manifest " + key);
+    }
+
+    private void trimToSize() {
+        Iterator<Map.Entry<String, Entry>> entries = mEntries.entrySet().iterator();
+        List<String> evicted = new ArrayList<>();
+        long sizeBytes = mSizeBytes;
+        while (sizeBytes > mMaxSizeBytes && entries.hasNext()) {
+            Map.Entry<String, Entry> entry = entries.next();
+            sizeBytes -= entry.getValue().size;
+            evicted.add(entry.getKey());
+        }
+        for (String key : evicted) remove(key);
+    }
+
+    // Writes the manifest to a temporary file while it is read and stores it when complete
+    private class CachingInputStream extends FilterInputStream {
+        private final OutputStream mOut;
+        private final File mTempFile;
+        private final String mKey;
+        private final String mEtag;
+        private final String mLastModified;
+        private long mSize = 0;
+        private boolean mFailed = false;
+        private boolean mClosed = false;
+
+        CachingInputStream(InputStream in, OutputStream out, File tempFile, String key,
+                           String etag, String lastModified) {
+            super(in);
+            mOut = out;
+            mTempFile = tempFile;
+            mKey = key;
+            mEtag = etag;
+            mLastModified = lastModified;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int value = super.read();
+            if (value == -1) {
+                complete();
+            } else {
+                write(new byte[]{(byte) value}, 0, 1);
+            }
+            return value;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int count = super.read(b, off, len);
+            if (count == -1) {
+                complete();
+            } else {
+                write(b, off, count);
+            }
+            return count;
+        }
+
+        private void write(byte[] b, int off, int len) {
+            if (mFailed) return;
+            try {
+                mOut.write(b, off, len);
+                mSize += len;
+            } catch (IOException e) {
+                Log.w(TAG, "Cannot cache manifest: " + e.getMessage());
+                mFailed = true;
+            }
+        }
+
+        private void complete() {
+            if (mClosed) return;
+            mClosed = true;
+            closeQuietly(mOut);
+            closeQuietly(in);
+            if (mFailed) {
+                deleteFile(mTempFile);
+            } else {
+                store(mKey, mEtag, mLastModified, mTempFile, mSize);
+            }
+        }
+
+        @Override
+        public void close() {
+            if (mClosed) return;
+            if (mFailed) {
+                mClosed = true;
+                closeQuietly(mOut);
+                closeQuietly(in);
+                deleteFile(mTempFile);
+                return;
+            }
+            // The caller stopped early. A short rest is read on the calling thread, so the
+            // connection is released when close returns and is never held by a queued drain.
+            byte[] buffer = new byte[DRAIN_BUFFER_SIZE];
+            long drained = 0;
+            try {
+                while (!mClosed) {
+                    if (mFailed || drained >= MAX_DRAIN_BYTES) {
+                        if (!mFailed) {
+                            Log.d(TAG, "Not caching manifest, more than " + MAX_DRAIN_BYTES
+                                    + " bytes left unread");
+                        }
+                        mFailed = true;
+                        complete();
+                        return;
+                    }
+                    int count = read(buffer, 0,
+                            (int) Math.min(buffer.length, MAX_DRAIN_BYTES - drained));
+                    // The read writes the data to the cache and completes it at the end
+                    if (count > 0) drained += count;
+                }
+            } catch (IOException e) {
+                Log.w(TAG, "Cannot download rest of the manifest: " + e.getMessage());
+                mFailed = true;
+                complete();
+            }
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            // ignore, nothing is read or written anymore
+        }
+    }
+
+    /**
+     * Returns cache statistics in a loggable form.
+     *
+     * @return statistics string
+     */
+    public synchronized String getStats() {
+        return "notModified=" + mHitCount
+                + ", downloaded=" + mMissCount
+                + ", bytesSaved=" + mBytesSaved
+                + ", entries=" + mEntries.size()
+                + ", sizeBytes=" + mSizeBytes;
+    }
+
+    private void load() {
+        // Manifests which were being written when the process ended are incomplete
+        File[] tempFiles = mCacheFolder.listFiles((dir, name) -> name.endsWith(TEMP_SUFFIX));
+        if (tempFiles != null) {
+            for (File tempFile : tempFiles) deleteFile(tempFile);
+        }
+        if (!mIndexFile.exists()) return;
+        Properties properties = new Properties();
+        try (FileInputStream fis = new FileInputStream(mIndexFile)) {
+            properties.load(fis);
+        } catch (IOException e) {
+            Log.w(TAG, "Cannot read manifest cache index: " + e.getMessage());
+            return;
+        }
+        List<Map.Entry<String, Entry>> entries = new ArrayList<>();
+        for (String name : properties.stringPropertyNames()) {
+            if (!name.endsWith(SUFFIX_SIZE)) continue;
+            String key = name.substring(0, name.length() - SUFFIX_SIZE.length());
+            try {
+                Entry entry = new Entry(properties.getProperty(key + SUFFIX_ETAG),
+                        properties.getProperty(key + SUFFIX_LAST_MODIFIED),
+                        Long.parseLong(properties.getProperty(name)),
+                        Long.parseLong(properties.getProperty(key + SUFFIX_ACCESSED, "0")));
+                if (new File(mCacheFolder, key).exists()) {
+                    entries.add(new AbstractMap.SimpleEntry<>(key, entry));
+                }
+            } catch (NumberFormatException e) {
+                // ignore broken entry
+            }
+        }
+        // Restoring the access order
+        Collections.sort(entries, (a, b) -> Long.compare(a.getValue().accessed, b.getValue().accessed));
+        for (Map.Entry<String, Entry> entry : entries) {
+            mEntries.put(entry.getKey(), entry.getValue());
+            mSizeBytes += entry.getValue().size;
+        }
+    }
+
+    private void save() {
+        Properties properties = new Properties();
+        for (Map.Entry<String, Entry> entry : mEntries.entrySet()) {
+            String key = entry.getKey();
+            Entry value = entry.getValue();
+            if (value.etag != null) properties.setProperty(key + SUFFIX_ETAG, value.etag);
+            if (value.lastModified != null) {
+                properties.setProperty(key + SUFFIX_LAST_MODIFIED, value.lastModified);
+            }
+            properties.setProperty(key + SUFFIX_SIZE, String.valueOf(value.size));
+            properties.setProperty(key + SUFFIX_ACCESSED, String.valueOf(value.accessed));
+        }
+        if (!mCacheFolder.exists() && !mCacheFolder.mkdirs()) return;
+        try (FileOutputStream fos = new FileOutputStream(mIndexFile)) {
+            properties.store(fos, null);
+        } catch (IOException e) {
+            Log.w(TAG, "Cannot save manifest cache index: " + e.getMessage());
+        }
+    }
+}
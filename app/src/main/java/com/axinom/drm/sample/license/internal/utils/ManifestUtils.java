@@ -10,7 +10,6 @@ import android.util.Pair;
 import android.util.Xml;
 
 import androidx.annotation.Nullable;
-import androidx.collection.LruCache;
 
 import com.axinom.drm.sample.license.internal.model.Manifest;
 import com.axinom.drm.sample.license.internal.model.SchemeData;
@@ -23,19 +22,26 @@ import org.xmlpull.v1.XmlPullParserException;
 
 import java.io.BufferedReader;
 import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Objects;
+import java.util.Set;
 import java.util.UUID;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 
 /**
- * Utility methods for saving, parsing and accessing {@link Manifest} models from LruCache
+ * Utility methods for parsing {@link Manifest} models. Parsed models are cached by
+ * {@link ParsedManifestCache}.
  */
 @SuppressWarnings("unused")
 public class ManifestUtils {
@@ -45,6 +51,9 @@ public class ManifestUtils {
     // Shared
     private static final String EMPTY = "";
     private static final String CONTENT_PROTECTION = "ContentProtection";
+    private static final String PERIOD = "Period";
+    private static final String ADAPTATION_SET = "AdaptationSet";
+    private static final String REPRESENTATION = "Representation";
 
     private static final Pattern REGEX_KEYFORMATVERSIONS =
             Pattern.compile("KEYFORMATVERSIONS=\"(.+?)\"");
@@ -58,74 +67,166 @@ public class ManifestUtils {
     private static final Pattern REGEX_KEYFORMAT = Pattern.compile("KEYFORMAT=\"(.+?)\"");
     private static final String KEYFORMAT_IDENTITY = "identity";
 
-    private static final LruCache<String, Manifest> manifestLruCache = new LruCache<>(10);
+    private static long sParseCount = 0;
+    private static long sEarlyExitCount = 0;
+    private static long sEventCount = 0;
+    private static long sByteCount = 0;
+    // Query parameters left out of manifest cache keys, e.g. per session tokens
+    private static volatile Set<String> sIgnoredCacheKeyParameters = new HashSet<>();
 
     /**
-     * Adding specified manifest to LruCache
-     *
-     * @param key      url to video manifest file used as LruCache key
-     * @param manifest manifest model as LruCache value
+     * How much of a DASH manifest is read for extracting protection data
      */
-    public static void addManifest(String key, Manifest manifest) {
-        if (!TextUtils.isEmpty(key) && manifest != null) {
-            if (manifestLruCache.get(key) == null)
-                manifestLruCache.put(key, manifest);
-        }
+    public enum ExtractionMode {
+        // Whole manifest
+        FULL,
+        // Up to the end of the first Period in which all AdaptationSet content types (video,
+        // audio, text, ...) have Widevine scheme data, e.g. for content with a key per type
+        ALL_CONTENT_TYPES,
+        // Up to the end of the first Period with Widevine scheme data, for single key content
+        FIRST_PERIOD
     }
 
     /**
-     * Remove specified manifest from LruCache
-     *
-     * @param key url to video manifest file used as LruCache key
-     */
-    public static void removeManifest(String key) {
-        if (!TextUtils.isEmpty(key)) {
-            manifestLruCache.remove(key);
-        }
-    }
-
-    /**
-     * Get specified manifest from LruCache
+     * Parse DASH video manifest and add values to Manifest model.
      *
-     * @param key url to video manifest file used as LruCache key
-     * @return Parsed manifest object
+     * @param data An array containing the response data.
+     * @return Manifest model object
+     * @throws XmlPullParserException error while parsing
+     * @throws IOException            IO exception
      */
-    public static Manifest getManifest(String key) {
-        return TextUtils.isEmpty(key) ? null : manifestLruCache.get(key);
+    public static Manifest parseMpdManifest(byte[] data) throws XmlPullParserException, IOException {
+        return parseMpdManifest(new ByteArrayInputStream(data), ExtractionMode.FULL);
     }
 
     /**
-     * Parse DASH video manifest and add values to Manifest model.
+     * Parse DASH video manifest from a stream and add values to Manifest model, reading only as
+     * much of it as the extraction mode needs. The stream is not closed.
      *
-     * @param data An array containing the response data.
+     * @param inputStream    stream containing the manifest
+     * @param extractionMode how much of the manifest is read
      * @return Manifest model object
      * @throws XmlPullParserException error while parsing
      * @throws IOException            IO exception
      */
-    public static Manifest parseMpdManifest(byte[] data) throws XmlPullParserException, IOException {
+    public static Manifest parseMpdManifest(InputStream inputStream, ExtractionMode extractionMode)
+            throws XmlPullParserException, IOException {
         Manifest manifest = new Manifest();
         ArrayList<SchemeData> schemeDatas = new ArrayList<>();
+        CountingInputStream countingStream = new CountingInputStream(inputStream);
         XmlPullParser xpp = Xml.newPullParser();
         xpp.setFeature(XmlPullParser.FEATURE_PROCESS_NAMESPACES, false);
-        xpp.setInput(new ByteArrayInputStream(data), null);
-
-        String currentTag = EMPTY;
-
+        xpp.setInput(countingStream, null);
+
+        long eventCount = 0;
+        boolean stoppedEarly = false;
+        // Content types of the AdaptationSets of the current Period, and those with Widevine data
+        Set<String> periodContentTypes = new HashSet<>();
+        Set<String> coveredContentTypes = new HashSet<>();
+        boolean periodHasWidevineData = false;
+        String adaptationSetContentType = null;
+        boolean adaptationSetHasWidevineData = false;
         while (xpp.getEventType() != XmlPullParser.END_DOCUMENT) {
             if (isStartTag(xpp, CONTENT_PROTECTION)) {
                 Pair<String, SchemeData> schemeDataPair = parseContentProtection(xpp);
                 Log.d(TAG, "found schemeDataPair: " + schemeDataPair);
-                if (schemeDataPair != null) schemeDatas.add(schemeDataPair.second);
+                if (schemeDataPair != null && schemeDataPair.second != null) {
+                    schemeDatas.add(schemeDataPair.second);
+                    if (schemeDataPair.second.hasData()
+                            && schemeDataPair.second.matches(C.WIDEVINE_UUID)) {
+                        periodHasWidevineData = true;
+                        adaptationSetHasWidevineData = true;
+                    }
+                }
+            } else if (isStartTag(xpp, PERIOD)) {
+                periodContentTypes.clear();
+                coveredContentTypes.clear();
+                periodHasWidevineData = false;
+            } else if (isStartTag(xpp, ADAPTATION_SET)) {
+                adaptationSetContentType = getContentType(xpp.getAttributeValue(null, "contentType"),
+                        xpp.getAttributeValue(null, "mimeType"));
+                adaptationSetHasWidevineData = false;
+            } else if (isStartTag(xpp, REPRESENTATION) && adaptationSetContentType == null) {
+                adaptationSetContentType = getContentType(null,
+                        xpp.getAttributeValue(null, "mimeType"));
+            } else if (isEndTag(xpp, ADAPTATION_SET)) {
+                String contentType = adaptationSetContentType != null ? adaptationSetContentType : EMPTY;
+                periodContentTypes.add(contentType);
+                if (adaptationSetHasWidevineData) coveredContentTypes.add(contentType);
+            } else if (isEndTag(xpp, PERIOD)) {
+                if ((extractionMode == ExtractionMode.FIRST_PERIOD && periodHasWidevineData)
+                        || (extractionMode == ExtractionMode.ALL_CONTENT_TYPES
+                        && !periodContentTypes.isEmpty()
+                        && coveredContentTypes.containsAll(periodContentTypes))) {
+                    stoppedEarly = true;
+                    break;
+                }
             }
             xpp.next();
+            eventCount++;
         }
 
         manifest.schemeDatas = new SchemeData[schemeDatas.size()];
         schemeDatas.toArray(manifest.schemeDatas);
 
+        recordParse(extractionMode, eventCount, countingStream.mByteCount, stoppedEarly);
         return manifest;
     }
 
+    // Returns the content type of an AdaptationSet or Representation, e.g. "video" for video/mp4
+    private static String getContentType(String contentType, String mimeType) {
+        if (!TextUtils.isEmpty(contentType)) return contentType;
+        if (TextUtils.isEmpty(mimeType)) return null;
+        int separator = mimeType.indexOf('/');
+        return separator > 0 ? mimeType.substring(0, separator) : mimeType;
+    }
+
+    private static synchronized void recordParse(ExtractionMode extractionMode, long eventCount,
+                                                 long byteCount, boolean stoppedEarly) {
+        sParseCount++;
+        sEventCount += eventCount;
+        sByteCount += byteCount;
+        if (stoppedEarly) sEarlyExitCount++;
+        Log.d(TAG, "Parsed " + eventCount + " events, " + byteCount + " bytes in mode "
+                + extractionMode + (stoppedEarly ? ", stopped early" : "") + ". " + getParseStats());
+    }
+
+    /**
+     * Returns DASH parsing statistics in a loggable form. The bytes are those the parser read
+     * from the manifest, which include its read-ahead buffer.
+     *
+     * @return statistics string
+     */
+    public static synchronized String getParseStats() {
+        return "parses=" + sParseCount
+                + ", earlyExits=" + sEarlyExitCount
+                + ", eventsVisited=" + sEventCount
+                + ", bytesParsed=" + sByteCount;
+    }
+
+    // Counts the bytes read by the parser
+    private static class CountingInputStream extends FilterInputStream {
+        long mByteCount = 0;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int value = super.read();
+            if (value != -1) mByteCount++;
+            return value;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int count = super.read(b, off, len);
+            if (count > 0) mByteCount += count;
+            return count;
+        }
+    }
+
     /**
      * Parses a ContentProtection element.
      *
@@ -192,7 +293,6 @@ public class ManifestUtils {
      * @return Whether the current event is an end tag with the specified name.
      * @throws XmlPullParserException If an error occurs querying the parser.
      */
-    @SuppressWarnings("SameParameterValue")
     private static boolean isEndTag(XmlPullParser xpp, String name) throws XmlPullParserException {
         return isEndTag(xpp) && xpp.getName().equals(name);
     }
@@ -232,6 +332,71 @@ public class ManifestUtils {
         return xpp.getEventType() == XmlPullParser.START_TAG;
     }
 
+    /**
+     * Returns the manifest URL without query and fragment, with lower case scheme and host, so
+     * that URLs of the same manifest with different query parameters (e.g. tokens) match.
+     *
+     * @param manifestUrl url to video manifest file
+     * @return normalized url, or the given url if it is not hierarchical
+     */
+    public static String normalizeManifestUrl(String manifestUrl) {
+        if (TextUtils.isEmpty(manifestUrl)) return manifestUrl;
+        Uri uri = Uri.parse(manifestUrl);
+        if (!uri.isHierarchical() || uri.getScheme() == null) return manifestUrl;
+        Uri.Builder builder = uri.buildUpon().query(null).fragment(null)
+                .scheme(uri.getScheme().toLowerCase(Locale.US));
+        if (uri.getEncodedAuthority() != null) {
+            builder.encodedAuthority(uri.getEncodedAuthority().toLowerCase(Locale.US));
+        }
+        return builder.build().toString();
+    }
+
+    /**
+     * Returns the key of the manifest in the manifest caches: the full manifest URL without
+     * fragment, with lower case scheme and host. The query is kept, as it may select a different
+     * manifest, except for the parameters set by {@link #setIgnoredCacheKeyParameters(Collection)}.
+     *
+     * @param manifestUrl url to video manifest file
+     * @return cache key, or the given url if it is not hierarchical
+     */
+    public static String getManifestCacheKey(String manifestUrl) {
+        if (TextUtils.isEmpty(manifestUrl)) return manifestUrl;
+        Uri uri = Uri.parse(manifestUrl);
+        if (!uri.isHierarchical() || uri.getScheme() == null) return manifestUrl;
+        Uri.Builder builder = uri.buildUpon().fragment(null)
+                .scheme(uri.getScheme().toLowerCase(Locale.US));
+        if (uri.getEncodedAuthority() != null) {
+            builder.encodedAuthority(uri.getEncodedAuthority().toLowerCase(Locale.US));
+        }
+        Set<String> ignoredParameters = sIgnoredCacheKeyParameters;
+        String query = uri.getEncodedQuery();
+        if (query != null && !ignoredParameters.isEmpty()) {
+            StringBuilder keptQuery = new StringBuilder();
+            for (String parameter : query.split("&")) {
+                int separator = parameter.indexOf('=');
+                String name = Uri.decode(separator != -1
+                        ? parameter.substring(0, separator) : parameter);
+                if (ignoredParameters.contains(name)) continue;
+                if (keptQuery.length() > 0) keptQuery.append('&');
+                keptQuery.append(parameter);
+            }
+            builder.encodedQuery(keptQuery.length() > 0 ? keptQuery.toString() : null);
+        }
+        return builder.build().toString();
+    }
+
+    /**
+     * Set the query parameters which do not select a different manifest, e.g. authorization
+     * tokens, and are therefore left out of the manifest cache keys. By default no parameters
+     * are ignored.
+     *
+     * @param parameterNames names of the ignored query parameters, or null
+     */
+    public static void setIgnoredCacheKeyParameters(Collection<String> parameterNames) {
+        sIgnoredCacheKeyParameters = parameterNames != null
+                ? new HashSet<>(parameterNames) : new HashSet<>();
+    }
+
     /**
      * Check that current source path is a tar file
      *
@@ -242,13 +407,26 @@ public class ManifestUtils {
         return false;
         /*
         if (TextUtils.isEmpty(mediaSourcePath)) return false;
-        String path = mediaSourcePath.toLowerCase();
+        String path = mediaSourcePath.toLowerCase(Locale.US);
         return path.endsWith(".tar") || path.contains(".tar/");
          */
     }
 
     public static Manifest parseM3U8Manifest(Uri uri, byte[] data) throws IOException {
-        BufferedReader reader = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(data)));
+        return parseM3U8Manifest(uri, new ByteArrayInputStream(data));
+    }
+
+    /**
+     * Parse HLS playlist from a stream and add session key values to Manifest model. The stream
+     * is closed when the playlist has been read.
+     *
+     * @param uri         uri of the playlist
+     * @param inputStream stream containing the playlist
+     * @return Manifest model object
+     * @throws IOException IO exception
+     */
+    public static Manifest parseM3U8Manifest(Uri uri, InputStream inputStream) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(inputStream));
         HashMap<String, String> variableDefinitions = new HashMap<>();
         Manifest manifest = new Manifest();
         ArrayList<SchemeData> schemeDatas = new ArrayList<>();
@@ -0,0 +1,136 @@
+package com.axinom.drm.sample.license.internal.utils;
+
+import android.text.TextUtils;
+
+import androidx.collection.LruCache;
+
+import com.axinom.drm.sample.license.internal.model.Manifest;
+import com.axinom.drm.sample.license.internal.model.SchemeData;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Memory cache of the protection data parsed from manifests. Entries are keyed by the manifest
+ * cache key (see {@link ManifestUtils#getManifestCacheKey(String)}), the extraction mode and the
+ * validator (ETag or Last-Modified) the manifest was served with, so a changed manifest is parsed
+ * again. The cache is limited by the estimated size of the entries in bytes, and can be used from
+ * several tasks at the same time.
+ */
+public class ParsedManifestCache {
+
+    private static final String VALIDATOR_SEPARATOR = "#";
+    // Estimated size of the objects of an entry besides the scheme data bytes
+    private static final int ENTRY_OVERHEAD_BYTES = 64;
+    private static final int SCHEME_DATA_OVERHEAD_BYTES = 64;
+
+    public static final int DEFAULT_MAX_SIZE_BYTES = 256 * 1024;
+
+    private static ParsedManifestCache sInstance;
+
+    private final LruCache<String, Manifest> mCache =
+            new LruCache<String, Manifest>(DEFAULT_MAX_SIZE_BYTES) {
+                @Override
+                protected int sizeOf(String key, Manifest manifest) {
+                    return getSizeBytes(key, manifest);
+                }
+            };
+
+    // Lookups of manifests served without a validator, which are never cached
+    private final AtomicLong mUncacheableCount = new AtomicLong();
+
+    private ParsedManifestCache() {
+    }
+
+    public static synchronized ParsedManifestCache getInstance() {
+        if (sInstance == null) sInstance = new ParsedManifestCache();
+        return sInstance;
+    }
+
+    /**
+     * Returns the protection data parsed from the manifest with the given validator.
+     *
+     * @param manifestUrl    URL of the video manifest file
+     * @param validator      ETag or Last-Modified of the manifest, or null if it has none
+     * @param extractionMode how much of the manifest was read
+     * @return parsed manifest, or null if not cached or the manifest has no validator
+     */
+    public Manifest get(String manifestUrl, String validator,
+                        ManifestUtils.ExtractionMode extractionMode) {
+        if (TextUtils.isEmpty(manifestUrl)) return null;
+        if (validator == null) {
+            mUncacheableCount.incrementAndGet();
+            return null;
+        }
+        return mCache.get(getKey(manifestUrl, validator, extractionMode));
+    }
+
+    /**
+     * Adds protection data parsed from a manifest. Manifests without a validator are not cached,
+     * as a changed manifest could not be told apart.
+     *
+     * @param manifestUrl    URL of the video manifest file
+     * @param validator      ETag or Last-Modified of the manifest, or null if it has none
+     * @param extractionMode how much of the manifest was read
+     * @param manifest       parsed manifest
+     */
+    public void put(String manifestUrl, String validator,
+                    ManifestUtils.ExtractionMode extractionMode, Manifest manifest) {
+        if (TextUtils.isEmpty(manifestUrl) || validator == null || manifest == null) return;
+        mCache.put(getKey(manifestUrl, validator, extractionMode), manifest);
+    }
+
+    /**
+     * Removes the protection data of all versions of the manifest.
+     *
+     * @param manifestUrl URL of the video manifest file
+     */
+    public void remove(String manifestUrl) {
+        if (TextUtils.isEmpty(manifestUrl)) return;
+        String prefix = ManifestUtils.getManifestCacheKey(manifestUrl) + VALIDATOR_SEPARATOR;
+        for (String key : mCache.snapshot().keySet()) {
+            if (key.startsWith(prefix)) mCache.remove(key);
+        }
+    }
+
+    /**
+     * Set the maximum size of the cache. The least recently used entries are removed if the
+     * cache is larger.
+     *
+     * @param maxSizeBytes maximum size in bytes
+     */
+    public void setMaxSizeBytes(int maxSizeBytes) {
+        mCache.resize(Math.max(1, maxSizeBytes));
+    }
+
+    /**
+     * Returns cache statistics in a loggable form. Lookups of manifests without a validator are
+     * reported as uncacheable, as they are neither hits nor misses.
+     *
+     * @return statistics string
+     */
+    public String getStats() {
+        return "hits=" + mCache.hitCount()
+                + ", misses=" + mCache.missCount()
+                + ", uncacheable=" + mUncacheableCount.get()
+                + ", evictions=" + mCache.evictionCount()
+                + ", entries=" + mCache.snapshot().size()
+                + ", sizeBytes=" + mCache.size() + "/" + mCache.maxSize();
+    }
+
+    private static String getKey(String manifestUrl, String validator,
+                                 ManifestUtils.ExtractionMode extractionMode) {
+        return ManifestUtils.getManifestCacheKey(manifestUrl) + VALIDATOR_SEPARATOR
+                + extractionMode + VALIDATOR_SEPARATOR + validator;
+    }
+
+    private static int getSizeBytes(String key, Manifest manifest) {
+        int size = ENTRY_OVERHEAD_BYTES + key.length() * 2;
+        if (manifest.schemeDatas == null) return size;
+        for (SchemeData schemeData : manifest.schemeDatas) {
+            size += SCHEME_DATA_OVERHEAD_BYTES;
+            if (schemeData.data != null) size += schemeData.data.length;
+            if (schemeData.mimeType != null) size += schemeData.mimeType.length() * 2;
+        }
+        return size;
+    }
+}
@@ -20,6 +20,11 @@ import android.util.Log;
 import com.axinom.drm.sample.license.internal.model.Atom;
 
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
 import java.util.UUID;
 
 /**
@@ -124,6 +129,71 @@ final class PsshAtomUtils {
         return parsedAtom.schemeData;
     }
 
+    /**
+     * Parses the key ids from a PSSH atom. Key ids are read from the header of version 1 atoms and,
+     * for Widevine atoms, from the key_id fields of the Widevine PSSH data.
+     *
+     * @param atom The atom to parse.
+     * @return The parsed key ids. Empty if the input is not a valid PSSH atom or has no key ids.
+     */
+    static UUID[] parseKeyIds(byte[] atom) {
+        PsshAtom parsedAtom = parsePsshAtom(atom);
+        if (parsedAtom == null) {
+            return new UUID[0];
+        }
+        Set<UUID> keyIds = new LinkedHashSet<>(Arrays.asList(parsedAtom.keyIds));
+        if (com.google.android.exoplayer2.C.WIDEVINE_UUID.equals(parsedAtom.uuid)) {
+            keyIds.addAll(parseWidevineKeyIds(parsedAtom.schemeData));
+        }
+        return keyIds.toArray(new UUID[0]);
+    }
+
+    /**
+     * Parses the key_id fields (field number 2) of the protobuf encoded Widevine PSSH data.
+     */
+    private static List<UUID> parseWidevineKeyIds(byte[] data) {
+        List<UUID> keyIds = new ArrayList<>();
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        try {
+            while (buffer.hasRemaining()) {
+                long tag = readVarint(buffer);
+                int fieldNumber = (int) (tag >>> 3);
+                int wireType = (int) (tag & 7);
+                if (wireType == 0) {
+                    readVarint(buffer);
+                } else if (wireType == 1) {
+                    buffer.position(buffer.position() + 8);
+                } else if (wireType == 5) {
+                    buffer.position(buffer.position() + 4);
+                } else if (wireType == 2) {
+                    int length = (int) readVarint(buffer);
+                    if (fieldNumber == 2 && length == 16) {
+                        keyIds.add(new UUID(buffer.getLong(), buffer.getLong()));
+                    } else {
+                        buffer.position(buffer.position() + length);
+                    }
+                } else {
+                    break;
+                }
+            }
+        } catch (RuntimeException e) {
+            Log.w(TAG, "Malformed Widevine PSSH data");
+        }
+        return keyIds;
+    }
+
+    private static long readVarint(ByteBuffer buffer) {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = buffer.get();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("Malformed varint");
+    }
+
     /**
      * Parses a PSSH atom. Version 0 and 1 PSSH atoms are supported.
      *
@@ -154,9 +224,13 @@ final class PsshAtomUtils {
             return null;
         }
         UUID uuid = new UUID(atomData.readLong(), atomData.readLong());
+        UUID[] keyIds = new UUID[0];
         if (atomVersion == 1) {
             int keyIdCount = atomData.readUnsignedIntToInt();
-            atomData.skipBytes(16 * keyIdCount);
+            keyIds = new UUID[keyIdCount];
+            for (int i = 0; i < keyIdCount; i++) {
+                keyIds[i] = new UUID(atomData.readLong(), atomData.readLong());
+            }
         }
         int dataSize = atomData.readUnsignedIntToInt();
         if (dataSize != atomData.bytesLeft()) {
@@ -165,18 +239,20 @@ final class PsshAtomUtils {
         }
         byte[] data = new byte[dataSize];
         atomData.readBytes(data, 0, dataSize);
-        return new PsshAtom(uuid, atomVersion, data);
+        return new PsshAtom(uuid, atomVersion, keyIds, data);
     }
 
     private static class PsshAtom {
 
         private final UUID uuid;
         private final int version;
+        private final UUID[] keyIds;
         private final byte[] schemeData;
 
-        PsshAtom(UUID uuid, int version, byte[] schemeData) {
+        PsshAtom(UUID uuid, int version, UUID[] keyIds, byte[] schemeData) {
             this.uuid = uuid;
             this.version = version;
+            this.keyIds = keyIds;
             this.schemeData = schemeData;
         }
 
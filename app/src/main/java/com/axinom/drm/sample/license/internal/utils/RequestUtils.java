@@ -1,16 +1,28 @@
 package com.axinom.drm.sample.license.internal.utils;
 
+import android.net.Uri;
+import android.os.SystemClock;
 import android.text.TextUtils;
 import android.util.Log;
 
+import com.axinom.drm.sample.license.LicenseManagerErrorCode;
+import com.axinom.drm.sample.license.RequestStage;
+import com.axinom.drm.sample.license.interfaces.IHttpTransport;
+import com.axinom.drm.sample.license.interfaces.IRequestTimingListener;
+import com.axinom.drm.sample.license.internal.exception.LicenseManagerException;
+import com.axinom.drm.sample.license.internal.network.CircuitBreaker;
+import com.axinom.drm.sample.license.internal.network.ContentDecoder;
+import com.axinom.drm.sample.license.internal.network.HedgedRequestExecutor;
+import com.axinom.drm.sample.license.internal.network.PooledHttpTransport;
+import com.axinom.drm.sample.license.internal.network.RequestOptions;
+import com.axinom.drm.sample.license.internal.network.RetryPolicy;
+import com.axinom.drm.sample.license.internal.network.TimingHistograms;
+
 import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.net.HttpURLConnection;
-import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -20,13 +32,21 @@ public class RequestUtils {
 
     private static final String TAG = RequestUtils.class.getSimpleName();
 
+    private static volatile IHttpTransport sTransport = new PooledHttpTransport();
+    private static volatile RetryPolicy sRetryPolicy = new RetryPolicy();
+    private static volatile CircuitBreaker sCircuitBreaker = new CircuitBreaker();
+    private static volatile RequestOptions sRequestOptions = new RequestOptions();
+    private static final HedgedRequestExecutor sHedgedExecutor = new HedgedRequestExecutor();
+    private static final TimingHistograms sTimingHistograms = new TimingHistograms();
+    private static volatile IRequestTimingListener sTimingListener = null;
+
     @SuppressWarnings("SameParameterValue")
     public static byte[] getManifest(String path, Map<String, String> requestProperties)
-            throws IOException {
+            throws IOException, LicenseManagerException {
 
         Log.d(TAG, "Getting manifest from: " + path);
 
-        if (!path.toLowerCase().startsWith("http://") && !path.toLowerCase().startsWith("https://")) {
+        if (!isNetworkPath(path)) {
             Log.d(TAG, "Path is local! Loading from file.");
             byte[] manifestFromFile = LicenseFileUtils.readFullFile(path);
             if (manifestFromFile == null) {
@@ -36,87 +56,300 @@ public class RequestUtils {
         }
 
         Log.d(TAG, "Path is not local! Loading from network.");
-        InputStream in;
-        HttpURLConnection urlConnection = null;
-        try {
-            urlConnection = (HttpURLConnection) new URL(path).openConnection();
-            urlConnection.setRequestMethod("GET");
-            urlConnection.setDoInput(true);
-            if (requestProperties != null) {
-                for (Map.Entry<String, String> requestProperty : requestProperties.entrySet()) {
-                    urlConnection.setRequestProperty(requestProperty.getKey(), requestProperty.getValue());
-                }
-            }
-            int responseCode = urlConnection.getResponseCode();
-            Log.d(TAG, "Connection response code: " + responseCode);
-            if (responseCode >= 400 && responseCode <= 499) {
-                throw new IOException("Unexpected response status code: " + responseCode);
-            }
-            in = new BufferedInputStream(urlConnection.getInputStream());
+        return getManifestResponse(path, requestProperties).body;
+    }
+
+    /**
+     * Gets the manifest from the network and returns the whole response, e.g. for conditional
+     * requests answered with 304 Not Modified. Compressed transfer is requested, and the
+     * transport decodes the body.
+     *
+     * @param url               URL of the manifest
+     * @param requestProperties request header parameters
+     * @return response
+     * @throws LicenseManagerException if the request failed
+     */
+    public static IHttpTransport.Response getManifestResponse(String url,
+                                                              Map<String, String> requestProperties)
+            throws LicenseManagerException {
+        return executeForResponse(new IHttpTransport.Request("GET", url,
+                getManifestHeaders(requestProperties), null), RequestStage.MANIFEST, false);
+    }
 
-        } catch (Exception e) {
-            e.printStackTrace();
-            if (urlConnection != null) urlConnection.disconnect();
-            throw new IOException(e);
+    /**
+     * Gets the manifest from the network like {@link #getManifestResponse(String, Map)}, but
+     * returns as soon as the response headers have arrived. The body is available as the
+     * decoded {@link IHttpTransport.Response#stream}, which the caller must close.
+     *
+     * @param url               URL of the manifest
+     * @param requestProperties request header parameters
+     * @return response with the unread body stream
+     * @throws LicenseManagerException if the request failed
+     */
+    public static IHttpTransport.Response openManifest(String url,
+                                                       Map<String, String> requestProperties)
+            throws LicenseManagerException {
+        return executeForResponse(new IHttpTransport.Request("GET", url,
+                getManifestHeaders(requestProperties), null), RequestStage.MANIFEST, true);
+    }
+
+    private static Map<String, String> getManifestHeaders(Map<String, String> requestProperties) {
+        Map<String, String> headers = new HashMap<>();
+        if (requestProperties != null) headers.putAll(requestProperties);
+        // Setting the header disables transparent decompression, so the transfer size is known
+        if (!headers.containsKey("Accept-Encoding")) {
+            headers.put("Accept-Encoding", ContentDecoder.ACCEPT_ENCODING);
         }
+        return headers;
+    }
 
-        byte[] response = convertInputStreamToByteArray(in);
-        urlConnection.disconnect();
-        return response;
+    /**
+     * Opens a connection to the origin with a HEAD request, so that the connection is pooled for
+     * the following requests. The request is not retried and its response code is ignored.
+     *
+     * @param origin scheme, host and port of the server
+     * @throws IOException if the connection could not be established
+     */
+    public static void prewarmConnection(String origin) throws IOException {
+        RequestOptions options = sRequestOptions;
+        sTransport.execute(new IHttpTransport.Request("HEAD", origin, null, null,
+                options.getConnectTimeoutMs(), options.getReadTimeoutMs(),
+                options.getConnectTimeoutMs() + options.getReadTimeoutMs(), 0, null));
+    }
+
+    public static boolean isNetworkPath(String path) {
+        return path.toLowerCase().startsWith("http://") || path.toLowerCase().startsWith("https://");
     }
 
     public static byte[] executePost(String url, String drmMessage, byte[] data,
-                                     Map<String, String> requestProperties) throws IOException {
-        Log.d(TAG, "Executing license server post request: " + url);
-        HttpURLConnection urlConnection = null;
-        InputStream in;
-        try {
-            urlConnection = (HttpURLConnection) new URL(url).openConnection();
-            urlConnection.setRequestMethod("POST");
-            urlConnection.setDoOutput(data != null);
-            urlConnection.setDoInput(true);
-            if (requestProperties != null) {
-                for (Map.Entry<String, String> requestProperty : requestProperties.entrySet()) {
-                    urlConnection.setRequestProperty(requestProperty.getKey(), requestProperty.getValue());
-                }
-            }
-            if (!TextUtils.isEmpty(drmMessage))
-                urlConnection.setRequestProperty("X-AxDRM-Message", drmMessage);
-            if (data != null) {
-                OutputStream out = new BufferedOutputStream(urlConnection.getOutputStream());
-                out.write(data);
-                out.close();
-            }
-            int responseCode = urlConnection.getResponseCode();
-            Log.d(TAG, "Connection response code: " + responseCode);
-            if (responseCode >= 400 && responseCode <= 499) {
-                throw new IOException("Unexpected response status code: " + responseCode);
+                                     Map<String, String> requestProperties)
+            throws LicenseManagerException {
+        return executePost(url, drmMessage, data, requestProperties, RequestStage.LICENSE);
+    }
+
+    public static byte[] executePost(String url, String drmMessage, byte[] data,
+                                     Map<String, String> requestProperties, RequestStage stage)
+            throws LicenseManagerException {
+        Log.d(TAG, "Executing " + stage + " post request: " + url);
+        Map<String, String> headers = new HashMap<>();
+        if (requestProperties != null) headers.putAll(requestProperties);
+        if (!TextUtils.isEmpty(drmMessage)) headers.put("X-AxDRM-Message", drmMessage);
+        return execute(new IHttpTransport.Request("POST", url, headers, data), stage);
+    }
+
+    /**
+     * Executes a post request against the URL and equivalent mirror endpoints. If the endpoint
+     * has not answered within the usual response time, a duplicate request is sent to the next
+     * mirror and the first successful response is used.
+     *
+     * @param url               URL of the primary endpoint
+     * @param mirrors           URLs of equivalent endpoints, or null
+     * @param drmMessage        DRM message (token), or null
+     * @param data              request body
+     * @param requestProperties request header parameters
+     * @param stage             stage the request belongs to
+     * @return response body
+     * @throws LicenseManagerException if the request failed on all endpoints
+     */
+    public static byte[] executeHedgedPost(String url, List<String> mirrors, String drmMessage,
+                                           byte[] data, Map<String, String> requestProperties,
+                                           RequestStage stage)
+            throws LicenseManagerException {
+        List<String> urls = new ArrayList<>();
+        urls.add(url);
+        if (mirrors != null) {
+            for (String mirror : mirrors) {
+                if (!TextUtils.isEmpty(mirror) && !urls.contains(mirror)) urls.add(mirror);
             }
-            in = new BufferedInputStream(urlConnection.getInputStream());
-        } catch (Exception e) {
-            e.printStackTrace();
-            if (urlConnection != null) urlConnection.disconnect();
-            throw new IOException(e);
         }
+        if (urls.size() == 1) return executePost(url, drmMessage, data, requestProperties, stage);
+        return sHedgedExecutor.execute(urls,
+                endpoint -> executePost(endpoint, drmMessage, data, requestProperties, stage));
+    }
+
+    public static String getHedgingStats() {
+        return sHedgedExecutor.getStats();
+    }
+
+    /**
+     * Set the transport used for all requests. By default a {@link PooledHttpTransport} is used.
+     *
+     * @param transport HTTP transport
+     */
+    public static void setTransport(IHttpTransport transport) {
+        sTransport = transport != null ? transport : new PooledHttpTransport();
+    }
+
+    public static IHttpTransport getTransport() {
+        return sTransport;
+    }
+
+    /**
+     * Set the policy deciding about request retries. By default a {@link RetryPolicy} with
+     * default settings is used.
+     *
+     * @param retryPolicy retry policy
+     */
+    public static void setRetryPolicy(RetryPolicy retryPolicy) {
+        sRetryPolicy = retryPolicy != null ? retryPolicy : new RetryPolicy();
+    }
+
+    /**
+     * Set the circuit breaker which makes requests to failing hosts fail fast. By default a
+     * {@link CircuitBreaker} with default settings is used.
+     *
+     * @param circuitBreaker circuit breaker
+     */
+    public static void setCircuitBreaker(CircuitBreaker circuitBreaker) {
+        sCircuitBreaker = circuitBreaker != null ? circuitBreaker : new CircuitBreaker();
+    }
+
+    /**
+     * Set timeouts, deadline and maximum response size of all requests. By default
+     * {@link RequestOptions} with default settings are used.
+     *
+     * @param requestOptions request options
+     */
+    public static void setRequestOptions(RequestOptions requestOptions) {
+        sRequestOptions = requestOptions != null ? requestOptions : new RequestOptions();
+    }
+
+    /**
+     * Set the listener which receives the timing breakdown of every request. Timings are always
+     * aggregated into histograms, see {@link #getTimingHistograms()}.
+     *
+     * @param timingListener timing listener, or null
+     */
+    public static void setTimingListener(IRequestTimingListener timingListener) {
+        sTimingListener = timingListener;
+    }
+
+    public static TimingHistograms getTimingHistograms() {
+        return sTimingHistograms;
+    }
+
+    private static void dispatchTiming(String host, RequestStage stage,
+                                       IHttpTransport.Response response) {
+        if (response.timing == null) return;
+        sTimingHistograms.onRequestTiming(host, stage, response.code, response.timing);
+        IRequestTimingListener timingListener = sTimingListener;
+        if (timingListener != null) {
+            timingListener.onRequestTiming(host, stage, response.code, response.timing);
+        }
+    }
+
+    private static String getHost(String url) {
+        Uri uri = Uri.parse(url);
+        return uri.getHost() + ":" + uri.getPort();
+    }
 
-        byte[] response = convertInputStreamToByteArray(in);
-        urlConnection.disconnect();
-        return response;
+    // Buffers the body stream, so that RetryPolicy can detect HTML error pages in streamed bodies
+    private static IHttpTransport.Response peekable(IHttpTransport.Response response) {
+        if (response.stream == null || response.stream.markSupported()) return response;
+        return new IHttpTransport.Response(response.code, response.headers, response.body,
+                response.timing, new BufferedInputStream(response.stream));
     }
 
-    private static byte[] convertInputStreamToByteArray(InputStream inputStream) throws IOException {
-        byte[] bytes;
-        ByteArrayOutputStream bos = new ByteArrayOutputStream();
-        byte[] data = new byte[1024];
-        int count;
-        while ((count = inputStream.read(data)) != -1) {
-            bos.write(data, 0, count);
+    private static byte[] execute(IHttpTransport.Request request, RequestStage stage)
+            throws LicenseManagerException {
+        return executeForResponse(request, stage, false).body;
+    }
+
+    // Executes the request, retrying it according to the retry policy within the request deadline.
+    // A streamed response is returned unread, so the deadline does not cover reading its body
+    // beyond the total timeout passed to the transport.
+    private static IHttpTransport.Response executeForResponse(IHttpTransport.Request request,
+                                                              RequestStage stage, boolean stream)
+            throws LicenseManagerException {
+        RetryPolicy retryPolicy = sRetryPolicy;
+        CircuitBreaker circuitBreaker = sCircuitBreaker;
+        RequestOptions options = sRequestOptions;
+        String host = getHost(request.url);
+        long deadline = SystemClock.elapsedRealtime() + options.getDeadlineMs();
+        int attempt = 0;
+        String failure = null;
+        while (true) {
+            long remainingMs = deadline - SystemClock.elapsedRealtime();
+            if (remainingMs <= 0) {
+                retryPolicy.recordResult(stage, attempt, false);
+                throw new LicenseManagerException(LicenseManagerErrorCode.ERROR_313, stage
+                        + " request exceeded the deadline of " + options.getDeadlineMs() + " ms"
+                        + (failure != null ? " after: " + failure : ""));
+            }
+            if (!circuitBreaker.allowRequest(host)) {
+                retryPolicy.recordResult(stage, attempt, false);
+                throw new LicenseManagerException(LicenseManagerErrorCode.ERROR_314, host
+                        + " failed repeatedly, retry in "
+                        + circuitBreaker.getRemainingOpenMs(host) / 1000 + " s");
+            }
+            attempt++;
+            IHttpTransport.Response response = null;
+            RetryPolicy.Classification classification;
+            try {
+                IHttpTransport.Request attemptRequest = new IHttpTransport.Request(
+                        request.method, request.url, request.headers, request.body,
+                        (int) Math.min(options.getConnectTimeoutMs(), remainingMs),
+                        (int) Math.min(options.getReadTimeoutMs(), remainingMs),
+                        remainingMs, options.getMaxResponseBytes(), stage);
+                response = stream ? peekable(sTransport.open(attemptRequest))
+                        : sTransport.execute(attemptRequest);
+                dispatchTiming(host, stage, response);
+                Log.d(TAG, "Connection response code: " + response.code);
+                classification = RetryPolicy.classify(response);
+                failure = "HTTP " + response.code
+                        + (RetryPolicy.isHtml(response) ? " with HTML error page" : "");
+            } catch (IOException e) {
+                e.printStackTrace();
+                classification = RetryPolicy.classify(e);
+                failure = e.toString();
+            } catch (RuntimeException e) {
+                // Otherwise the half-open probe slot of the host would stay taken for good
+                circuitBreaker.releaseProbe(host);
+                if (response != null) response.closeStream();
+                throw e;
+            }
+
+            // Only failures which indicate an unhealthy server count for the circuit breaker, and
+            // only a received response proves it healthy. Other errors, e.g. a cancelled request,
+            // say nothing about the server.
+            if (classification == RetryPolicy.Classification.RETRYABLE) {
+                circuitBreaker.recordFailure(host);
+            } else if (response != null) {
+                circuitBreaker.recordSuccess(host);
+            } else {
+                circuitBreaker.releaseProbe(host);
+            }
+
+            if (classification == RetryPolicy.Classification.SUCCESS) {
+                retryPolicy.recordResult(stage, attempt, true);
+                return response;
+            }
+            // The body of a failed streamed response is not read, which releases its connection
+            if (response != null) response.closeStream();
+            if (!retryPolicy.shouldRetry(stage, classification, attempt)) {
+                retryPolicy.recordResult(stage, attempt, false);
+                Log.d(TAG, "Request failed: " + failure + ". " + retryPolicy.getStats());
+                throw new LicenseManagerException(LicenseManagerErrorCode.ERROR_313,
+                        stage + " request failed after " + attempt + " attempts: " + failure);
+            }
+
+            long backoffMs = retryPolicy.getBackoffMs(attempt);
+            if (SystemClock.elapsedRealtime() + backoffMs >= deadline) {
+                retryPolicy.recordResult(stage, attempt, false);
+                throw new LicenseManagerException(LicenseManagerErrorCode.ERROR_313, stage
+                        + " request cannot be retried within the deadline of "
+                        + options.getDeadlineMs() + " ms after: " + failure);
+            }
+            Log.d(TAG, "Retrying " + stage + " request in " + backoffMs + " ms after: " + failure);
+            try {
+                Thread.sleep(backoffMs);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                retryPolicy.recordResult(stage, attempt, false);
+                throw new LicenseManagerException(LicenseManagerErrorCode.ERROR_313,
+                        stage + " request interrupted after " + attempt + " attempts: " + failure);
+            }
         }
-        bos.flush();
-        bos.close();
-        inputStream.close();
-        bytes = bos.toByteArray();
-        return bytes;
     }
 
 }
@@ -0,0 +1,86 @@
+package com.axinom.drm.sample.network;
+
+import android.os.SystemClock;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import okhttp3.Dns;
+
+/**
+ * {@link Dns} which caches resolved addresses for a fixed time, so requests of the license
+ * layer, the player and Volley to the same host share one lookup.
+ */
+public class CachingDns implements Dns {
+
+    public static final long DEFAULT_TTL_MS = 60 * 1000;
+
+    private final Dns mDelegate;
+    private final long mTtlMs;
+    private final Map<String, Entry> mEntries = new HashMap<>();
+
+    private long mHitCount = 0;
+    private long mMissCount = 0;
+
+    private static class Entry {
+        final List<InetAddress> addresses;
+        final long expiresAt;
+
+        Entry(List<InetAddress> addresses, long expiresAt) {
+            this.addresses = addresses;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    public CachingDns() {
+        this(Dns.SYSTEM, DEFAULT_TTL_MS);
+    }
+
+    /**
+     * @param delegate resolver used for hosts which are not cached
+     * @param ttlMs    time for which resolved addresses are used
+     */
+    public CachingDns(Dns delegate, long ttlMs) {
+        mDelegate = delegate;
+        mTtlMs = ttlMs;
+    }
+
+    @Override
+    public List<InetAddress> lookup(String hostname) throws UnknownHostException {
+        long now = SystemClock.elapsedRealtime();
+        synchronized (this) {
+            Entry entry = mEntries.get(hostname);
+            if (entry != null && entry.expiresAt > now) {
+                mHitCount++;
+                return entry.addresses;
+            }
+            mMissCount++;
+        }
+        // Lookups are not serialized, a failed lookup is not cached
+        List<InetAddress> addresses = Collections.unmodifiableList(mDelegate.lookup(hostname));
+        synchronized (this) {
+            mEntries.put(hostname, new Entry(addresses, now + mTtlMs));
+        }
+        return addresses;
+    }
+
+    /**
+     * Removes all cached addresses, e.g. after the network has changed.
+     */
+    public synchronized void clear() {
+        mEntries.clear();
+    }
+
+    /**
+     * Returns cache statistics in a loggable form.
+     *
+     * @return statistics string
+     */
+    public synchronized String getStats() {
+        return "hits=" + mHitCount + ", misses=" + mMissCount + ", hosts=" + mEntries.size();
+    }
+}
@@ -0,0 +1,87 @@
+package com.axinom.drm.sample.network;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+
+import okhttp3.Call;
+import okhttp3.Connection;
+import okhttp3.EventListener;
+import okhttp3.Protocol;
+
+/**
+ * Counts calls, connections and transferred bytes of all calls made with the shared HTTP client.
+ * One instance is shared by all calls, so it only keeps counters.
+ */
+public class HttpEventCounter extends EventListener implements EventListener.Factory {
+
+    private long mCallCount = 0;
+    private long mFailedCallCount = 0;
+    private long mConnectionCount = 0;
+    private long mFailedConnectionCount = 0;
+    private long mAcquiredConnectionCount = 0;
+    private long mHttp2ConnectionCount = 0;
+    private long mBytesSent = 0;
+    private long mBytesReceived = 0;
+
+    @Override
+    public EventListener create(Call call) {
+        return this;
+    }
+
+    @Override
+    public synchronized void callStart(Call call) {
+        mCallCount++;
+    }
+
+    @Override
+    public synchronized void callFailed(Call call, IOException ioe) {
+        mFailedCallCount++;
+    }
+
+    @Override
+    public synchronized void connectEnd(Call call, InetSocketAddress inetSocketAddress,
+                                        Proxy proxy, Protocol protocol) {
+        mConnectionCount++;
+        if (protocol == Protocol.HTTP_2) mHttp2ConnectionCount++;
+    }
+
+    @Override
+    public synchronized void connectFailed(Call call, InetSocketAddress inetSocketAddress,
+                                           Proxy proxy, Protocol protocol, IOException ioe) {
+        mFailedConnectionCount++;
+    }
+
+    @Override
+    public synchronized void connectionAcquired(Call call, Connection connection) {
+        mAcquiredConnectionCount++;
+    }
+
+    @Override
+    public synchronized void requestBodyEnd(Call call, long byteCount) {
+        mBytesSent += byteCount;
+    }
+
+    @Override
+    public synchronized void responseBodyEnd(Call call, long byteCount) {
+        mBytesReceived += byteCount;
+    }
+
+    /**
+     * Returns the counters in a loggable form. Connections acquired by calls which did not open
+     * them were reused from the pool or shared over HTTP/2.
+     *
+     * @return statistics string
+     */
+    public synchronized String getStats() {
+        long reused = Math.max(0, mAcquiredConnectionCount - mConnectionCount);
+        return "calls=" + mCallCount
+                + ", failed=" + mFailedCallCount
+                + ", connections=" + mConnectionCount
+                + ", http2=" + mHttp2ConnectionCount
+                + ", connectFailed=" + mFailedConnectionCount
+                + ", reused=" + reused
+                + ", bytesSent=" + mBytesSent
+                + ", bytesReceived=" + mBytesReceived;
+    }
+}
@@ -0,0 +1,202 @@
+package com.axinom.drm.sample.network;
+
+import android.annotation.TargetApi;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.ConnectivityManager;
+import android.net.Network;
+import android.net.NetworkCapabilities;
+import android.net.NetworkInfo;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.telephony.TelephonyManager;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Watches the default network and derives how much parallel traffic the app should create on
+ * it. On unmetered networks media downloads, segment downloads and connection pre-warming run at
+ * full parallelism. On metered networks there are fewer, larger transfers: one media download at
+ * a time, larger license batches and no repeated keep-warm requests. Listeners are notified on
+ * the main thread whenever the profile changes.
+ */
+public class NetworkPolicy {
+
+    private static final String TAG = NetworkPolicy.class.getSimpleName();
+
+    // Downstream bandwidth below which a network is treated as slow
+    private static final int LOW_BANDWIDTH_KBPS = 2000;
+
+    private static NetworkPolicy sInstance;
+
+    private final CopyOnWriteArrayList<Listener> mListeners = new CopyOnWriteArrayList<>();
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private ConnectivityManager mConnectivityManager;
+    private volatile Profile mProfile = Profile.UNMETERED;
+
+    public interface Listener {
+        void onProfileChanged(Profile profile);
+    }
+
+    /**
+     * Parallelism settings for one class of network
+     */
+    public static class Profile {
+        public static final Profile UNMETERED = new Profile("unmetered", 3, 6, 8, true,
+                5 * 60 * 1000);
+        public static final Profile UNMETERED_SLOW = new Profile("unmetered-slow", 2, 3, 8, true,
+                5 * 60 * 1000);
+        public static final Profile METERED = new Profile("metered", 1, 2, 16, true, 0);
+        public static final Profile METERED_SLOW = new Profile("metered-slow", 1, 1, 16, false, 0);
+
+        public final String name;
+        // Number of media downloads running at the same time
+        public final int maxParallelDownloads;
+        // Number of threads downloading segments of the running media downloads
+        public final int downloadThreads;
+        // Number of titles per license batch request
+        public final int licenseBatchSize;
+        // Whether license and manifest connections are pre-warmed on title selection
+        public final boolean prewarm;
+        // Time for which pre-warmed connections are kept warm, 0 to warm them once
+        public final long keepWarmMs;
+
+        Profile(String name, int maxParallelDownloads, int downloadThreads, int licenseBatchSize,
+                boolean prewarm, long keepWarmMs) {
+            this.name = name;
+            this.maxParallelDownloads = maxParallelDownloads;
+            this.downloadThreads = downloadThreads;
+            this.licenseBatchSize = licenseBatchSize;
+            this.prewarm = prewarm;
+            this.keepWarmMs = keepWarmMs;
+        }
+
+        @NonNull
+        @Override
+        public String toString() {
+            return name + " (downloads=" + maxParallelDownloads
+                    + ", downloadThreads=" + downloadThreads
+                    + ", licenseBatchSize=" + licenseBatchSize
+                    + ", prewarm=" + prewarm
+                    + ", keepWarmMs=" + keepWarmMs + ")";
+        }
+    }
+
+    private NetworkPolicy() {
+    }
+
+    public static synchronized NetworkPolicy getInstance() {
+        if (sInstance == null) sInstance = new NetworkPolicy();
+        return sInstance;
+    }
+
+    /**
+     * Starts watching the default network. Calling it again has no effect.
+     *
+     * @param context context
+     */
+    public synchronized void start(Context context) {
+        if (mConnectivityManager != null) return;
+        mConnectivityManager = (ConnectivityManager) context.getApplicationContext()
+                .getSystemService(Context.CONNECTIVITY_SERVICE);
+        if (mConnectivityManager == null) return;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
+            registerNetworkCallback();
+        } else {
+            // Older versions have no default network callback
+            context.getApplicationContext().registerReceiver(new BroadcastReceiver() {
+                @Override
+                public void onReceive(Context context, Intent intent) {
+                    SharedHttpClient.clearDnsCache();
+                    onNetworkChanged(getLegacyProfile());
+                }
+            }, new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION));
+            onNetworkChanged(getLegacyProfile());
+        }
+    }
+
+    public Profile getProfile() {
+        return mProfile;
+    }
+
+    /**
+     * Adds a listener and calls it with the current profile. Must be called on the main thread.
+     *
+     * @param listener listener
+     */
+    public void addListener(Listener listener) {
+        mListeners.add(listener);
+        listener.onProfileChanged(mProfile);
+    }
+
+    public void removeListener(Listener listener) {
+        mListeners.remove(listener);
+    }
+
+    @TargetApi(Build.VERSION_CODES.N)
+    private void registerNetworkCallback() {
+        mConnectivityManager.registerDefaultNetworkCallback(new ConnectivityManager.NetworkCallback() {
+            @Override
+            public void onAvailable(@NonNull Network network) {
+                // Addresses resolved on the previous network may not be the best ones here
+                SharedHttpClient.clearDnsCache();
+            }
+
+            @Override
+            public void onCapabilitiesChanged(@NonNull Network network,
+                                              @NonNull NetworkCapabilities capabilities) {
+                onNetworkChanged(getProfile(capabilities));
+            }
+        });
+    }
+
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private static Profile getProfile(NetworkCapabilities capabilities) {
+        boolean metered = !capabilities.hasCapability(NetworkCapabilities.NET_CAPABILITY_NOT_METERED);
+        int bandwidthKbps = capabilities.getLinkDownstreamBandwidthKbps();
+        // Unknown bandwidth is reported as 0
+        boolean slow = bandwidthKbps > 0 && bandwidthKbps < LOW_BANDWIDTH_KBPS;
+        if (metered) return slow ? Profile.METERED_SLOW : Profile.METERED;
+        return slow ? Profile.UNMETERED_SLOW : Profile.UNMETERED;
+    }
+
+    @SuppressWarnings("deprecation")
+    private Profile getLegacyProfile() {
+        NetworkInfo networkInfo = mConnectivityManager.getActiveNetworkInfo();
+        if (networkInfo == null || !networkInfo.isConnected()) return null;
+        boolean metered = mConnectivityManager.isActiveNetworkMetered();
+        boolean slow = networkInfo.getType() == ConnectivityManager.TYPE_MOBILE
+                && isSlowMobileSubtype(networkInfo.getSubtype());
+        if (metered) return slow ? Profile.METERED_SLOW : Profile.METERED;
+        return slow ? Profile.UNMETERED_SLOW : Profile.UNMETERED;
+    }
+
+    private static boolean isSlowMobileSubtype(int subtype) {
+        switch (subtype) {
+            case TelephonyManager.NETWORK_TYPE_GPRS:
+            case TelephonyManager.NETWORK_TYPE_EDGE:
+            case TelephonyManager.NETWORK_TYPE_CDMA:
+            case TelephonyManager.NETWORK_TYPE_1xRTT:
+            case TelephonyManager.NETWORK_TYPE_IDEN:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    // The last profile is kept while there is no network, downloads wait for the network anyway
+    private void onNetworkChanged(Profile profile) {
+        mMainHandler.post(() -> {
+            if (profile == null || profile == mProfile) return;
+            Log.d(TAG, "Network profile changed from " + mProfile.name + " to " + profile);
+            mProfile = profile;
+            for (Listener listener : mListeners) listener.onProfileChanged(profile);
+        });
+    }
+}
@@ -0,0 +1,253 @@
+package com.axinom.drm.sample.network;
+
+import android.net.Uri;
+
+import androidx.annotation.Nullable;
+
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.PlaybackException;
+import com.google.android.exoplayer2.upstream.BaseDataSource;
+import com.google.android.exoplayer2.upstream.DataSourceException;
+import com.google.android.exoplayer2.upstream.DataSpec;
+import com.google.android.exoplayer2.upstream.HttpDataSource;
+import com.google.android.exoplayer2.upstream.HttpUtil;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import okhttp3.Call;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+
+/**
+ * ExoPlayer {@link HttpDataSource} which executes requests with an OkHttp {@link Call.Factory},
+ * so media and license requests of the player share the connection pool and DNS cache of
+ * {@link SharedHttpClient}. The OkHttp extension of the ExoPlayer version in use requires a
+ * newer OkHttp than the app can use on its minimum API level, so this covers the subset of it
+ * the player needs.
+ */
+public class OkHttpDataSource extends BaseDataSource implements HttpDataSource {
+
+    /**
+     * Creates {@link OkHttpDataSource} instances.
+     */
+    public static class Factory implements HttpDataSource.Factory {
+
+        private final Call.Factory mCallFactory;
+        private final RequestProperties mDefaultRequestProperties = new RequestProperties();
+
+        public Factory(Call.Factory callFactory) {
+            mCallFactory = callFactory;
+        }
+
+        @Override
+        public Factory setDefaultRequestProperties(Map<String, String> defaultRequestProperties) {
+            mDefaultRequestProperties.clearAndSet(defaultRequestProperties);
+            return this;
+        }
+
+        @Override
+        public OkHttpDataSource createDataSource() {
+            return new OkHttpDataSource(mCallFactory, mDefaultRequestProperties);
+        }
+    }
+
+    private static final int SKIP_BUFFER_SIZE = 4096;
+
+    private final Call.Factory mCallFactory;
+    private final RequestProperties mDefaultRequestProperties;
+    private final RequestProperties mRequestProperties = new RequestProperties();
+
+    @Nullable
+    private DataSpec mDataSpec;
+    @Nullable
+    private Response mResponse;
+    @Nullable
+    private InputStream mResponseStream;
+    private boolean mOpened;
+    private long mBytesToRead;
+    private long mBytesRead;
+
+    private OkHttpDataSource(Call.Factory callFactory, RequestProperties defaultRequestProperties) {
+        super(true);
+        mCallFactory = callFactory;
+        mDefaultRequestProperties = defaultRequestProperties;
+    }
+
+    @Nullable
+    @Override
+    public Uri getUri() {
+        return mResponse != null ? Uri.parse(mResponse.request().url().toString()) : null;
+    }
+
+    @Override
+    public int getResponseCode() {
+        return mResponse != null ? mResponse.code() : -1;
+    }
+
+    @Override
+    public Map<String, List<String>> getResponseHeaders() {
+        return mResponse != null ? mResponse.headers().toMultimap()
+                : Collections.<String, List<String>>emptyMap();
+    }
+
+    @Override
+    public void setRequestProperty(String name, String value) {
+        mRequestProperties.set(name, value);
+    }
+
+    @Override
+    public void clearRequestProperty(String name) {
+        mRequestProperties.remove(name);
+    }
+
+    @Override
+    public void clearAllRequestProperties() {
+        mRequestProperties.clear();
+    }
+
+    @Override
+    public long open(DataSpec dataSpec) throws HttpDataSourceException {
+        mDataSpec = dataSpec;
+        mBytesRead = 0;
+        mBytesToRead = 0;
+        transferInitializing(dataSpec);
+
+        Response response;
+        try {
+            response = mCallFactory.newCall(buildRequest(dataSpec)).execute();
+        } catch (IOException e) {
+            throw HttpDataSourceException.createForIOException(e, dataSpec,
+                    HttpDataSourceException.TYPE_OPEN);
+        }
+        mResponse = response;
+        ResponseBody body = response.body();
+        int responseCode = response.code();
+
+        if (!response.isSuccessful() || body == null) {
+            // The requested range starts at the end of the content
+            if (responseCode == 416 && dataSpec.position
+                    == HttpUtil.getDocumentSize(response.header("Content-Range"))) {
+                mOpened = true;
+                transferStarted(dataSpec);
+                return dataSpec.length != C.LENGTH_UNSET ? dataSpec.length : 0;
+            }
+            byte[] errorBody;
+            try {
+                errorBody = body != null ? body.bytes() : new byte[0];
+            } catch (IOException e) {
+                errorBody = new byte[0];
+            }
+            Map<String, List<String>> headers = response.headers().toMultimap();
+            closeConnectionQuietly();
+            IOException cause = responseCode == 416 ? new DataSourceException(
+                    PlaybackException.ERROR_CODE_IO_READ_POSITION_OUT_OF_RANGE) : null;
+            throw new InvalidResponseCodeException(responseCode, response.message(), cause,
+                    headers, dataSpec, errorBody);
+        }
+        mResponseStream = body.byteStream();
+
+        // A server ignoring the range request returns the content from the beginning
+        long bytesToSkip = responseCode == 200 && dataSpec.position != 0 ? dataSpec.position : 0;
+        if (dataSpec.length != C.LENGTH_UNSET) {
+            mBytesToRead = dataSpec.length;
+        } else {
+            long contentLength = body.contentLength();
+            mBytesToRead = contentLength != -1 ? contentLength - bytesToSkip : C.LENGTH_UNSET;
+        }
+
+        mOpened = true;
+        transferStarted(dataSpec);
+        try {
+            skipFully(bytesToSkip);
+        } catch (IOException e) {
+            closeConnectionQuietly();
+            throw HttpDataSourceException.createForIOException(e, dataSpec,
+                    HttpDataSourceException.TYPE_OPEN);
+        }
+        return mBytesToRead;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws HttpDataSourceException {
+        if (length == 0) return 0;
+        if (mBytesToRead != C.LENGTH_UNSET) {
+            long bytesRemaining = mBytesToRead - mBytesRead;
+            if (bytesRemaining == 0) return C.RESULT_END_OF_INPUT;
+            length = (int) Math.min(length, bytesRemaining);
+        }
+        if (mResponseStream == null) return C.RESULT_END_OF_INPUT;
+        try {
+            int read = mResponseStream.read(buffer, offset, length);
+            if (read == -1) return C.RESULT_END_OF_INPUT;
+            mBytesRead += read;
+            bytesTransferred(read);
+            return read;
+        } catch (IOException e) {
+            throw HttpDataSourceException.createForIOException(e, mDataSpec,
+                    HttpDataSourceException.TYPE_READ);
+        }
+    }
+
+    @Override
+    public void close() {
+        if (mOpened) {
+            mOpened = false;
+            transferEnded();
+            closeConnectionQuietly();
+        }
+    }
+
+    private Request buildRequest(DataSpec dataSpec) {
+        Request.Builder builder = new Request.Builder().url(dataSpec.uri.toString());
+        Map<String, String> headers = new HashMap<>(mDefaultRequestProperties.getSnapshot());
+        headers.putAll(mRequestProperties.getSnapshot());
+        headers.putAll(dataSpec.httpRequestHeaders);
+        for (Map.Entry<String, String> header : headers.entrySet()) {
+            builder.header(header.getKey(), header.getValue());
+        }
+        String range = HttpUtil.buildRangeRequestHeader(dataSpec.position, dataSpec.length);
+        if (range != null) builder.header("Range", range);
+        // Byte ranges refer to the encoded content, so it must not be compressed in transit
+        if (!dataSpec.isFlagSet(DataSpec.FLAG_ALLOW_GZIP)) {
+            builder.header("Accept-Encoding", "identity");
+        }
+
+        RequestBody body = null;
+        if (dataSpec.httpBody != null) {
+            body = RequestBody.create(null, dataSpec.httpBody);
+        } else if (dataSpec.httpMethod == DataSpec.HTTP_METHOD_POST) {
+            body = RequestBody.create(null, new byte[0]);
+        }
+        return builder.method(dataSpec.getHttpMethodString(), body).build();
+    }
+
+    private void skipFully(long bytesToSkip) throws IOException {
+        if (bytesToSkip == 0 || mResponseStream == null) return;
+        byte[] skipBuffer = new byte[SKIP_BUFFER_SIZE];
+        while (bytesToSkip > 0) {
+            int read = mResponseStream.read(skipBuffer, 0,
+                    (int) Math.min(bytesToSkip, skipBuffer.length));
+            if (read == -1) {
+                throw new DataSourceException(
+                        PlaybackException.ERROR_CODE_IO_READ_POSITION_OUT_OF_RANGE);
+            }
+            bytesToSkip -= read;
+            bytesTransferred(read);
+        }
+    }
+
+    private void closeConnectionQuietly() {
+        if (mResponse != null) {
+            ResponseBody body = mResponse.body();
+            if (body != null) body.close();
+        }
+        mResponseStream = null;
+    }
+}
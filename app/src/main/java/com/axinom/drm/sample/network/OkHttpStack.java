@@ -0,0 +1,108 @@
+package com.axinom.drm.sample.network;
+
+import com.android.volley.AuthFailureError;
+import com.android.volley.Header;
+import com.android.volley.Request;
+import com.android.volley.toolbox.BaseHttpStack;
+import com.android.volley.toolbox.HttpResponse;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.Call;
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+
+/**
+ * Volley {@link BaseHttpStack} which executes requests with an {@link OkHttpClient}, so Volley
+ * shares its connection pool and DNS cache.
+ */
+public class OkHttpStack extends BaseHttpStack {
+
+    private final OkHttpClient mClient;
+
+    public OkHttpStack(OkHttpClient client) {
+        mClient = client;
+    }
+
+    @Override
+    public HttpResponse executeRequest(Request<?> request, Map<String, String> additionalHeaders)
+            throws IOException, AuthFailureError {
+        Map<String, String> headers = new HashMap<>(request.getHeaders());
+        headers.putAll(additionalHeaders);
+        okhttp3.Request.Builder builder = new okhttp3.Request.Builder().url(request.getUrl());
+        for (Map.Entry<String, String> header : headers.entrySet()) {
+            builder.header(header.getKey(), header.getValue());
+        }
+        setMethodAndBody(builder, request);
+
+        // Volley's timeout applies to connecting and to each read, like with its own stack
+        int timeoutMs = request.getTimeoutMs();
+        OkHttpClient client = mClient.newBuilder()
+                .connectTimeout(timeoutMs, TimeUnit.MILLISECONDS)
+                .readTimeout(timeoutMs, TimeUnit.MILLISECONDS)
+                .build();
+        Call call = client.newCall(builder.build());
+        Response response = call.execute();
+
+        List<Header> responseHeaders = new ArrayList<>();
+        for (int i = 0; i < response.headers().size(); i++) {
+            responseHeaders.add(new Header(response.headers().name(i), response.headers().value(i)));
+        }
+        ResponseBody body = response.body();
+        if (body == null) return new HttpResponse(response.code(), responseHeaders);
+        // Volley closes the stream after reading it, which releases the connection
+        return new HttpResponse(response.code(), responseHeaders, (int) body.contentLength(),
+                body.byteStream());
+    }
+
+    private static void setMethodAndBody(okhttp3.Request.Builder builder, Request<?> request)
+            throws AuthFailureError {
+        switch (request.getMethod()) {
+            case Request.Method.DEPRECATED_GET_OR_POST:
+                byte[] postBody = request.getBody();
+                if (postBody != null) {
+                    builder.post(createBody(request, postBody));
+                }
+                break;
+            case Request.Method.GET:
+                builder.get();
+                break;
+            case Request.Method.DELETE:
+                builder.delete();
+                break;
+            case Request.Method.POST:
+                builder.post(createBody(request, request.getBody()));
+                break;
+            case Request.Method.PUT:
+                builder.put(createBody(request, request.getBody()));
+                break;
+            case Request.Method.HEAD:
+                builder.head();
+                break;
+            case Request.Method.OPTIONS:
+                builder.method("OPTIONS", null);
+                break;
+            case Request.Method.TRACE:
+                builder.method("TRACE", null);
+                break;
+            case Request.Method.PATCH:
+                builder.patch(createBody(request, request.getBody()));
+                break;
+            default:
+                throw new IllegalStateException("Unknown method type.");
+        }
+    }
+
+    private static RequestBody createBody(Request<?> request, byte[] body) {
+        return RequestBody.create(MediaType.parse(request.getBodyContentType()),
+                body != null ? body : new byte[0]);
+    }
+}
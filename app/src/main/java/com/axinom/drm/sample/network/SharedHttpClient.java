@@ -0,0 +1,99 @@
+package com.axinom.drm.sample.network;
+
+import android.util.Log;
+
+import com.axinom.drm.sample.license.interfaces.IHttpTransport;
+import com.axinom.drm.sample.license.internal.network.OkHttpTransport;
+import com.google.android.exoplayer2.upstream.HttpDataSource;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.ConnectionPool;
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+
+/**
+ * The OkHttp client shared by license requests, ExoPlayer and Volley, so connections to the same
+ * hosts are shared, host names are resolved once and all calls are counted in one place.
+ */
+public class SharedHttpClient {
+
+    private static final String TAG = SharedHttpClient.class.getSimpleName();
+
+    public static final int DEFAULT_MAX_IDLE_CONNECTIONS = 8;
+    public static final long DEFAULT_KEEP_ALIVE_DURATION_MS = 5 * 60 * 1000;
+    public static final int DEFAULT_CONNECT_TIMEOUT_MS = 10 * 1000;
+    public static final int DEFAULT_READ_TIMEOUT_MS = 15 * 1000;
+
+    private static OkHttpClient sClient;
+    private static CachingDns sDns;
+    private static HttpEventCounter sEventCounter;
+    private static IHttpTransport sLicenseTransport;
+
+    /**
+     * Returns the shared client, creating it if necessary. Clients with other settings should be
+     * derived from it with {@link OkHttpClient#newBuilder()}, which keeps the connection pool.
+     *
+     * @return shared client
+     */
+    public static synchronized OkHttpClient getClient() {
+        if (sClient == null) {
+            sDns = new CachingDns();
+            sEventCounter = new HttpEventCounter();
+            sClient = new OkHttpClient.Builder()
+                    .protocols(Arrays.asList(Protocol.HTTP_2, Protocol.HTTP_1_1))
+                    .connectionPool(new ConnectionPool(DEFAULT_MAX_IDLE_CONNECTIONS,
+                            DEFAULT_KEEP_ALIVE_DURATION_MS, TimeUnit.MILLISECONDS))
+                    .dns(sDns)
+                    .eventListenerFactory(sEventCounter)
+                    .connectTimeout(DEFAULT_CONNECT_TIMEOUT_MS, TimeUnit.MILLISECONDS)
+                    .readTimeout(DEFAULT_READ_TIMEOUT_MS, TimeUnit.MILLISECONDS)
+                    .build();
+            Log.d(TAG, "Created shared HTTP client");
+        }
+        return sClient;
+    }
+
+    /**
+     * Returns the transport for the license layer, which runs on the shared client.
+     *
+     * @return license transport
+     */
+    public static synchronized IHttpTransport getLicenseTransport() {
+        if (sLicenseTransport == null) {
+            sLicenseTransport = new OkHttpTransport(getClient(),
+                    OkHttpTransport.DEFAULT_MAX_IN_FLIGHT_PER_HOST);
+        }
+        return sLicenseTransport;
+    }
+
+    /**
+     * Returns a factory of ExoPlayer data sources running on the shared client.
+     *
+     * @return HTTP data source factory
+     */
+    public static HttpDataSource.Factory buildHttpDataSourceFactory() {
+        return new OkHttpDataSource.Factory(getClient());
+    }
+
+    /**
+     * Removes cached host addresses, e.g. after the network has changed.
+     */
+    public static synchronized void clearDnsCache() {
+        if (sDns != null) sDns.clear();
+    }
+
+    /**
+     * Returns connection pool, DNS cache and call statistics in a loggable form.
+     *
+     * @return statistics string
+     */
+    public static synchronized String getStats() {
+        if (sClient == null) return "not created";
+        return "pool: connections=" + sClient.connectionPool().connectionCount()
+                + ", idle=" + sClient.connectionPool().idleConnectionCount()
+                + "; dns: " + sDns.getStats()
+                + "; calls: " + sEventCounter.getStats();
+    }
+}
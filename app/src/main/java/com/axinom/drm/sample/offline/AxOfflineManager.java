@@ -4,12 +4,13 @@ import android.content.Context;
 import android.os.Environment;
 import android.util.Log;
 
+import com.axinom.drm.sample.network.NetworkPolicy;
+import com.axinom.drm.sample.network.SharedHttpClient;
 import com.google.android.exoplayer2.database.DatabaseProvider;
 import com.google.android.exoplayer2.database.StandaloneDatabaseProvider;
 import com.google.android.exoplayer2.offline.DownloadManager;
 import com.google.android.exoplayer2.upstream.DataSource;
 import com.google.android.exoplayer2.upstream.DefaultDataSource;
-import com.google.android.exoplayer2.upstream.DefaultHttpDataSource;
 import com.google.android.exoplayer2.upstream.HttpDataSource;
 import com.google.android.exoplayer2.upstream.cache.Cache;
 import com.google.android.exoplayer2.upstream.cache.CacheDataSource;
@@ -17,7 +18,9 @@ import com.google.android.exoplayer2.upstream.cache.NoOpCacheEvictor;
 import com.google.android.exoplayer2.upstream.cache.SimpleCache;
 
 import java.io.File;
-import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 /**
  * A class that manages the initialization of DownloadManager and data source factory objects.
@@ -31,6 +34,11 @@ public class AxOfflineManager {
     private DownloadManager mDownloadManager;
     private AxDownloadTracker mDownloadTracker;
     private Cache mDownloadCache;
+    // Downloads segments of the running downloads in parallel, sized by the network profile
+    private final ThreadPoolExecutor mDownloadExecutor = new ThreadPoolExecutor(
+            NetworkPolicy.Profile.UNMETERED.downloadThreads,
+            NetworkPolicy.Profile.UNMETERED.downloadThreads,
+            30, TimeUnit.SECONDS, new LinkedBlockingQueue<>());
 
     private static String DEFAULT_DOWNLOADS_FOLDER;
 
@@ -70,9 +78,25 @@ public class AxOfflineManager {
                     getDatabaseProvider(context),
                     getDownloadCache(context),
                     buildHttpDataSourceFactory(),
-                    Executors.newFixedThreadPool(6));
+                    mDownloadExecutor);
             mDownloadTracker = new AxDownloadTracker(context, buildDataSourceFactory(context),
                     mDownloadManager);
+            // Parallelism follows the network, e.g. one download with few threads on cellular
+            NetworkPolicy.getInstance().addListener(this::applyNetworkProfile);
+        }
+    }
+
+    private void applyNetworkProfile(NetworkPolicy.Profile profile) {
+        Log.d(TAG, "Applying network profile: " + profile);
+        mDownloadManager.setMaxParallelDownloads(profile.maxParallelDownloads);
+        // The maximum pool size may not become smaller than the core size, nor the other way round
+        int threads = profile.downloadThreads;
+        if (threads > mDownloadExecutor.getMaximumPoolSize()) {
+            mDownloadExecutor.setMaximumPoolSize(threads);
+            mDownloadExecutor.setCorePoolSize(threads);
+        } else {
+            mDownloadExecutor.setCorePoolSize(threads);
+            mDownloadExecutor.setMaximumPoolSize(threads);
         }
     }
 
@@ -101,7 +125,7 @@ public class AxOfflineManager {
 
     // Returns a {@link HttpDataSource.Factory}
     private HttpDataSource.Factory buildHttpDataSourceFactory() {
-        return new DefaultHttpDataSource.Factory();
+        return SharedHttpClient.buildHttpDataSourceFactory();
     }
 
     private static CacheDataSource.Factory buildReadOnlyCacheDataSource(
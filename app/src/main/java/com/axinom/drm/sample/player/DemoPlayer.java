@@ -1,6 +1,7 @@
 package com.axinom.drm.sample.player;
 
 import android.content.Context;
+import android.media.MediaDrm;
 import android.net.ConnectivityManager;
 import android.net.Uri;
 import android.text.TextUtils;
@@ -13,9 +14,11 @@ import com.axinom.drm.sample.license.LicenseManagerErrorCode;
 import com.axinom.drm.sample.license.OfflineLicenseManager;
 import com.axinom.drm.sample.license.interfaces.IOfflineLicenseManagerListener;
 import com.axinom.drm.sample.license.internal.model.DrmMessage;
+import com.axinom.drm.sample.license.internal.utils.DrmSessionAdmission;
 import com.axinom.drm.sample.license.internal.utils.DrmUtils;
 import com.axinom.drm.sample.offline.AxDownloadService;
 import com.axinom.drm.sample.offline.AxDownloadTracker;
+import com.axinom.drm.sample.network.SharedHttpClient;
 import com.axinom.drm.sample.offline.AxOfflineManager;
 import com.axinom.drm.sample.util.Utility;
 import com.google.android.exoplayer2.C;
@@ -26,7 +29,7 @@ import com.google.android.exoplayer2.MediaItem;
 import com.google.android.exoplayer2.PlaybackException;
 import com.google.android.exoplayer2.Player;
 import com.google.android.exoplayer2.drm.DefaultDrmSessionManager;
-import com.google.android.exoplayer2.drm.FrameworkMediaDrm;
+import com.google.android.exoplayer2.drm.ExoMediaDrm;
 import com.google.android.exoplayer2.drm.HttpMediaDrmCallback;
 import com.google.android.exoplayer2.offline.DownloadHelper;
 import com.google.android.exoplayer2.offline.DownloadRequest;
@@ -47,11 +50,11 @@ import com.google.android.exoplayer2.trackselection.TrackSelectionArray;
 import com.google.android.exoplayer2.ui.StyledPlayerView;
 import com.google.android.exoplayer2.upstream.DataSource;
 import com.google.android.exoplayer2.upstream.DefaultDataSource;
-import com.google.android.exoplayer2.upstream.DefaultHttpDataSource;
 import com.google.android.exoplayer2.upstream.HttpDataSource;
 import com.google.android.exoplayer2.util.Util;
 
 import java.util.List;
+import java.util.UUID;
 import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
@@ -65,6 +68,8 @@ class DemoPlayer implements TextOutput, IOfflineLicenseManagerListener, Player.L
     long startPosition = 0;
     boolean startOnPrepared = true;
     boolean shouldPlayOffline = false;
+    // Opt-in reuse of streaming licenses for online playback, see StreamingLicenseCache
+    boolean useLicenseCache = false;
   }
   public static class UnsupportedFormatException extends Exception { }
 
@@ -92,6 +97,12 @@ class DemoPlayer implements TextOutput, IOfflineLicenseManagerListener, Player.L
   private DefaultDrmSessionManager mDrmSessionManager;
   // Media format
   private int mFormat;
+  // Pre-acquires keys of upcoming periods when live streams rotate keys
+  private KeyRotationMonitor mKeyRotationMonitor;
+  // Whether DRM session manager is shared through StreamingLicenseCache
+  private boolean mUsesLicenseCache = false;
+  // Whether DRM sessions are currently reserved for this playback
+  private boolean mHasSessionReservation = false;
 
   private final CopyOnWriteArrayList<Listener> mListeners;
 
@@ -117,6 +128,10 @@ class DemoPlayer implements TextOutput, IOfflineLicenseManagerListener, Player.L
         throw new UnsupportedFormatException();
       }
       if (drmConfiguration != null) {
+        // Reserve DRM sessions for playback so that background license work is queued instead of
+        // taking the sessions playback needs
+        DrmSessionAdmission.getInstance().reservePlayback();
+        mHasSessionReservation = true;
         mDrmSessionManager = buildDrmSessionManager(String.valueOf(drmConfiguration.licenseUri),
                 drmConfiguration.licenseRequestHeaders.get("X-AxDRM-Message"));
         // OfflineLicenseManager should be initialized and license keys received only if
@@ -140,10 +155,19 @@ class DemoPlayer implements TextOutput, IOfflineLicenseManagerListener, Player.L
     // Defining DefaultRenderersFactory for the player
     DefaultRenderersFactory renderersFactory = new DefaultRenderersFactory(mContext);
     try {
-      mPlayer = new ExoPlayer.Builder(mContext, renderersFactory)
-              .setTrackSelector(trackSelector)
-              .build();
+      ExoPlayer.Builder playerBuilder = new ExoPlayer.Builder(mContext, renderersFactory)
+              .setTrackSelector(trackSelector);
+      // Cached DRM session managers are bound to the playback thread of the cache
+      if (mUsesLicenseCache) {
+        playerBuilder.setPlaybackLooper(StreamingLicenseCache.getInstance().getPlaybackLooper());
+      }
+      mPlayer = playerBuilder.build();
       mPlayer.addListener(this);
+      // Online DRM playback watches manifest refreshes for new key ids
+      if (mDrmSessionManager != null && !mParams.shouldPlayOffline) {
+        mKeyRotationMonitor = new KeyRotationMonitor(mPlayer, mDrmSessionManager);
+        mPlayer.addListener(mKeyRotationMonitor);
+      }
       mPlayerIsCreated = true;
       // Preparing the player can start here in case content should be played online (offline license
       // has to be acquired first before starting the preparation process) or if the content is not
@@ -212,7 +236,8 @@ class DemoPlayer implements TextOutput, IOfflineLicenseManagerListener, Player.L
       return null;
     } else {
       dispatchPlayerLog(mContext.getString(R.string.player_online_playback));
-      DataSource.Factory dataSourceFactory = new DefaultDataSource.Factory(context);
+      DataSource.Factory dataSourceFactory =
+              new DefaultDataSource.Factory(context, buildHttpDataSourceFactory());
       if (mFormat == C.CONTENT_TYPE_DASH) {
         if (mDrmSessionManager != null) {
           return new DashMediaSource.Factory(
@@ -241,25 +266,78 @@ class DemoPlayer implements TextOutput, IOfflineLicenseManagerListener, Player.L
 
   // A method for building HttpDataSource.Factory
   private HttpDataSource.Factory buildHttpDataSourceFactory() {
-    return new DefaultHttpDataSource.Factory();
+    return SharedHttpClient.buildHttpDataSourceFactory();
   }
 
   // A method for building DrmSessionManager
   private DefaultDrmSessionManager buildDrmSessionManager(String licenseUrl, String drmToken) {
     dispatchPlayerLog("Building DrmSessionManager with licenseUrl = [" +
             licenseUrl + "] and drmToken = [" + drmToken + "]");
+    mUsesLicenseCache = false;
+    // Online playback can reuse a still valid streaming license if license cache is enabled
+    if (mParams.useLicenseCache && !mParams.shouldPlayOffline) {
+      DefaultDrmSessionManager cachedDrmSessionManager = StreamingLicenseCache.getInstance().get(
+              licenseUrl, drmToken, keepaliveMs -> buildDrmSessionManagerBuilder()
+                      .setSessionKeepaliveMs(keepaliveMs)
+                      .build(buildDrmCallback(licenseUrl, drmToken)));
+      if (cachedDrmSessionManager != null) {
+        dispatchPlayerLog("Using DrmSessionManager from license cache");
+        mUsesLicenseCache = true;
+        return cachedDrmSessionManager;
+      }
+      dispatchPlayerLog("License cache is not allowed for this content");
+    }
+    return buildDrmSessionManagerBuilder()
+            .build(buildDrmCallback(licenseUrl, drmToken));
+  }
+
+  // A method for building DrmSessionManager builder with the common configuration
+  private DefaultDrmSessionManager.Builder buildDrmSessionManagerBuilder() {
+    return new DefaultDrmSessionManager.Builder()
+            .setUuidAndExoMediaDrmProvider(C.WIDEVINE_UUID, mParams.shouldPlayOffline
+                    ? this::acquireOfflineMediaDrm : RenewingMediaDrm.PROVIDER)
+            .setMultiSession(true);
+  }
+
+  // Acquires the MediaDrm for offline playback. The playback duration of an offline license
+  // starts with playback, so expiry updates of the playback sessions are passed to the offline
+  // license manager, which tracks license expiry for later license checks.
+  private ExoMediaDrm acquireOfflineMediaDrm(UUID uuid) {
+    ExoMediaDrm mediaDrm = RenewingMediaDrm.PROVIDER.acquireExoMediaDrm(uuid);
+    if (Util.SDK_INT >= 23) {
+      String manifestUrl = String.valueOf(Utility.getPlaybackProperties(mParams.mediaItem).uri);
+      mediaDrm.setOnExpirationUpdateListener((md, sessionId, expirationTimeMs) ->
+              onOfflineLicenseExpirationUpdate(manifestUrl, expirationTimeMs));
+      mediaDrm.setOnKeyStatusChangeListener((md, sessionId, keyInformation, hasNewUsableKey) -> {
+        for (ExoMediaDrm.KeyStatus keyStatus : keyInformation) {
+          if (keyStatus.getStatusCode() == MediaDrm.KeyStatus.STATUS_EXPIRED) {
+            onOfflineLicenseExpirationUpdate(manifestUrl, System.currentTimeMillis());
+            return;
+          }
+        }
+      });
+    }
+    return mediaDrm;
+  }
+
+  private void onOfflineLicenseExpirationUpdate(String manifestUrl, long expirationTimeMs) {
+    // Called on the MediaDrm event thread
+    Log.d(TAG, "Offline license expiration update: " + expirationTimeMs);
+    OfflineLicenseManager offlineLicenseManager = mOfflineLicenseManager;
+    if (offlineLicenseManager != null) {
+      offlineLicenseManager.onLicenseExpirationUpdate(manifestUrl, expirationTimeMs);
+    }
+  }
+
+  // A method for building the license request callback
+  private HttpMediaDrmCallback buildDrmCallback(String licenseUrl, String drmToken) {
     HttpMediaDrmCallback drmCallback = new HttpMediaDrmCallback(licenseUrl,
             buildHttpDataSourceFactory());
     // Here the license token is attached to license request
     if (drmToken != null) {
         drmCallback.setKeyRequestProperty("X-AxDRM-Message", drmToken);
     }
-
-    return new DefaultDrmSessionManager.Builder()
-            .setUuidAndExoMediaDrmProvider(C.WIDEVINE_UUID, FrameworkMediaDrm.DEFAULT_PROVIDER)
-            .setMultiSession(true)
-            .build(drmCallback);
-
+    return drmCallback;
   }
 
   // A method for preparing the player for creation
@@ -291,9 +369,18 @@ class DemoPlayer implements TextOutput, IOfflineLicenseManagerListener, Player.L
   // General method for releasing the player
   private void playerRelease(){
     dispatchPlayerLog("Releasing the player");
+    if (mKeyRotationMonitor != null) {
+      mKeyRotationMonitor.release();
+      mKeyRotationMonitor = null;
+    }
     if (mPlayer != null) {
       mPlayer.release();
       mPlayer = null;
+      dispatchPlayerLog("License renewal stats: " + RenewingMediaDrm.getRenewalStats());
+    }
+    if (mHasSessionReservation) {
+      DrmSessionAdmission.getInstance().releasePlayback();
+      mHasSessionReservation = false;
     }
   }
 
@@ -433,6 +520,8 @@ class DemoPlayer implements TextOutput, IOfflineLicenseManagerListener, Player.L
     dispatchPlayerLog("Offline license acquired.");
     // Offline license acquired. Starting in MODE_QUERY
     mDrmSessionManager.setMode(DefaultDrmSessionManager.MODE_QUERY, keyIds);
+    // The expiry time known before playback does not include the playback duration
+    mOfflineLicenseManager.onPlaybackStarting(manifestUrl);
     startPlayerPrepare();
   }
 
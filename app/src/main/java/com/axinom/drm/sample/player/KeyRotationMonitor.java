@@ -0,0 +1,145 @@
+package com.axinom.drm.sample.player;
+
+import android.text.TextUtils;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import com.axinom.drm.sample.license.internal.utils.DrmUtils;
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.ExoPlayer;
+import com.google.android.exoplayer2.Format;
+import com.google.android.exoplayer2.Player;
+import com.google.android.exoplayer2.Timeline;
+import com.google.android.exoplayer2.drm.DrmInitData;
+import com.google.android.exoplayer2.drm.DrmSessionManager;
+import com.google.android.exoplayer2.source.dash.manifest.AdaptationSet;
+import com.google.android.exoplayer2.source.dash.manifest.DashManifest;
+import com.google.android.exoplayer2.source.dash.manifest.Period;
+import com.google.android.exoplayer2.source.dash.manifest.Representation;
+import com.google.android.exoplayer2.source.hls.HlsManifest;
+import com.google.android.exoplayer2.source.hls.playlist.HlsMediaPlaylist;
+import com.google.android.exoplayer2.util.MimeTypes;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Detects key rotation in live streams. Every manifest refresh is checked for content key ids
+ * which have not been seen before, and DRM sessions for them are pre-acquired right away, so the
+ * keys of upcoming periods are already loaded when playback reaches the rotation boundary.
+ * Pre-acquired sessions are kept in a small pool of warm sessions.
+ */
+final class KeyRotationMonitor implements Player.Listener {
+
+  private static final String TAG = KeyRotationMonitor.class.getSimpleName();
+  // Maximum number of pre-acquired sessions kept warm
+  private static final int MAX_WARM_SESSIONS = 4;
+
+  private final ExoPlayer mPlayer;
+  private final DrmSessionManager mDrmSessionManager;
+  // Pre-acquired sessions by key id set, oldest first
+  private final LinkedHashMap<String, DrmSessionManager.DrmSessionReference> mWarmSessions =
+          new LinkedHashMap<>();
+  private final Set<String> mKnownKeyIds = new HashSet<>();
+  private int mRotationCount = 0;
+
+  KeyRotationMonitor(ExoPlayer player, DrmSessionManager drmSessionManager) {
+    mPlayer = player;
+    mDrmSessionManager = drmSessionManager;
+  }
+
+  @Override
+  public void onTimelineChanged(@NonNull Timeline timeline, int reason) {
+    if (reason != Player.TIMELINE_CHANGE_REASON_SOURCE_UPDATE || !mPlayer.isCurrentMediaItemLive()) {
+      return;
+    }
+    for (Format format : getProtectedFormats(mPlayer.getCurrentManifest())) {
+      String keyIds = getKeyIds(format.drmInitData);
+      if (keyIds.isEmpty() || mWarmSessions.containsKey(keyIds)) continue;
+      boolean isRotation = !mKnownKeyIds.isEmpty();
+      boolean hasNewKeyId = false;
+      for (String keyId : keyIds.split(",")) {
+        hasNewKeyId |= mKnownKeyIds.add(keyId);
+      }
+      if (!hasNewKeyId) continue;
+      if (isRotation) {
+        mRotationCount++;
+        Log.d(TAG, "Key rotation detected, new key ids = [" + keyIds + "], rotations = "
+                + mRotationCount);
+      }
+      preacquire(keyIds, format);
+    }
+  }
+
+  // Pre-acquires a session for the keys, keeping at most MAX_WARM_SESSIONS sessions warm
+  private void preacquire(String keyIds, Format format) {
+    mWarmSessions.put(keyIds, mDrmSessionManager.preacquireSession(null, format));
+    Iterator<Map.Entry<String, DrmSessionManager.DrmSessionReference>> iterator =
+            mWarmSessions.entrySet().iterator();
+    while (mWarmSessions.size() > MAX_WARM_SESSIONS && iterator.hasNext()) {
+      iterator.next().getValue().release();
+      iterator.remove();
+    }
+  }
+
+  // Releases all warm sessions. Must be called before the player is released.
+  void release() {
+    for (DrmSessionManager.DrmSessionReference reference : mWarmSessions.values()) {
+      reference.release();
+    }
+    mWarmSessions.clear();
+    mKnownKeyIds.clear();
+  }
+
+  // Returns formats with DRM init data from a DASH or HLS manifest, one per DrmInitData
+  private static List<Format> getProtectedFormats(Object manifest) {
+    List<Format> formats = new ArrayList<>();
+    Set<DrmInitData> drmInitDatas = new HashSet<>();
+    if (manifest instanceof DashManifest) {
+      DashManifest dashManifest = (DashManifest) manifest;
+      for (int i = 0; i < dashManifest.getPeriodCount(); i++) {
+        Period period = dashManifest.getPeriod(i);
+        for (AdaptationSet adaptationSet : period.adaptationSets) {
+          for (Representation representation : adaptationSet.representations) {
+            Format format = representation.format;
+            if (format.drmInitData != null && drmInitDatas.add(format.drmInitData)) {
+              formats.add(format);
+            }
+          }
+        }
+      }
+    } else if (manifest instanceof HlsManifest) {
+      HlsMediaPlaylist mediaPlaylist = ((HlsManifest) manifest).mediaPlaylist;
+      for (HlsMediaPlaylist.Segment segment : mediaPlaylist.segments) {
+        if (segment.drmInitData != null && drmInitDatas.add(segment.drmInitData)) {
+          formats.add(new Format.Builder()
+                  .setSampleMimeType(MimeTypes.VIDEO_MP4)
+                  .setDrmInitData(segment.drmInitData)
+                  .build());
+        }
+      }
+    }
+    return formats;
+  }
+
+  // Returns sorted, comma separated key ids from the Widevine scheme data
+  private static String getKeyIds(DrmInitData drmInitData) {
+    Set<String> keyIds = new HashSet<>();
+    for (int i = 0; i < drmInitData.schemeDataCount; i++) {
+      DrmInitData.SchemeData schemeData = drmInitData.get(i);
+      if (schemeData.matches(C.WIDEVINE_UUID) || schemeData.matches(C.COMMON_PSSH_UUID)) {
+        for (String keyId : DrmUtils.getKeyIds(schemeData.data)) keyIds.add(keyId);
+      }
+    }
+    List<String> sortedKeyIds = new ArrayList<>(keyIds);
+    Collections.sort(sortedKeyIds);
+    return TextUtils.join(",", sortedKeyIds);
+  }
+}
@@ -49,11 +49,14 @@ public class PlayerActivity extends Activity implements DemoPlayer.Listener, Vie
   public static final String LICENSE_TOKEN = "license_token";
   public static final String DRM_SCHEME = "drm_scheme";
   public static final String SHOULD_PLAY_OFFLINE = "should_play_offline";
+  public static final String USE_LICENSE_CACHE = "use_license_cache";
 
   // Media item that contains relevant information for the player
   private MediaItem mMediaItem;
   // Boolean to determine if online or offline source should be used for playback
   private boolean mShouldPlayOffline;
+  // Boolean to determine if streaming licenses may be reused for online playback
+  private boolean mUseLicenseCache;
   // Save last playback position on suspend
   private long mPlayerPosition;
   // Boolean to determine whether playback should automatically start when player is prepared
@@ -126,6 +129,7 @@ public class PlayerActivity extends Activity implements DemoPlayer.Listener, Vie
     mMediaItem = mediaItemBuilder.build();
     if (intent.getExtras() != null) {
       mShouldPlayOffline = intent.getExtras().getBoolean(SHOULD_PLAY_OFFLINE);
+      mUseLicenseCache = intent.getExtras().getBoolean(USE_LICENSE_CACHE);
     }
     mPlayerPosition = 0;
     mPlayerStartOnPrepared = true;
@@ -238,6 +242,7 @@ public class PlayerActivity extends Activity implements DemoPlayer.Listener, Vie
     params.startPosition = mPlayerPosition;
     params.startOnPrepared = mPlayerStartOnPrepared;
     params.shouldPlayOffline = mShouldPlayOffline;
+    params.useLicenseCache = mUseLicenseCache;
     
     // If player is not existing, create a new instance of it and prepare
     if (mPlayer == null) {
@@ -0,0 +1,321 @@
+package com.axinom.drm.sample.player;
+
+import android.media.DeniedByServerException;
+import android.media.MediaCryptoException;
+import android.media.MediaDrmException;
+import android.media.NotProvisionedException;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.PersistableBundle;
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.analytics.PlayerId;
+import com.google.android.exoplayer2.decoder.CryptoConfig;
+import com.google.android.exoplayer2.drm.DrmInitData;
+import com.google.android.exoplayer2.drm.DummyExoMediaDrm;
+import com.google.android.exoplayer2.drm.ExoMediaDrm;
+import com.google.android.exoplayer2.drm.FrameworkMediaDrm;
+import com.google.android.exoplayer2.drm.UnsupportedDrmException;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An {@link ExoMediaDrm} wrapping {@link FrameworkMediaDrm} which renews streaming licenses in the
+ * background before they expire. After a streaming license is loaded into a session, the remaining
+ * license duration is watched, and well before expiry a {@link ExoMediaDrm#EVENT_KEY_REQUIRED}
+ * event is delivered to the DRM session. The session then makes a license renewal request and
+ * loads the new keys into the same session, so playback continues without rebuffering.
+ */
+final class RenewingMediaDrm implements ExoMediaDrm {
+
+  static final ExoMediaDrm.Provider PROVIDER = uuid -> {
+    try {
+      return new RenewingMediaDrm(FrameworkMediaDrm.newInstance(uuid));
+    } catch (UnsupportedDrmException e) {
+      Log.e(RenewingMediaDrm.class.getSimpleName(), "Failed to instantiate a FrameworkMediaDrm for uuid: "
+              + uuid + ".");
+      return new DummyExoMediaDrm();
+    }
+  };
+
+  private static final String TAG = RenewingMediaDrm.class.getSimpleName();
+  // Widevine specific key status field name for the remaining license duration, in seconds.
+  private static final String PROPERTY_LICENSE_DURATION_REMAINING = "LicenseDurationRemaining";
+  // Renewal is started when the remaining license duration drops below this
+  private static final long MIN_RENEWAL_MARGIN_SEC = 60;
+  // Renewal is started at the latest when this share of the license duration is left
+  private static final float RENEWAL_MARGIN_RATIO = 0.2f;
+  // Interval of checks while a renewal is due but not yet finished
+  private static final long RETRY_INTERVAL_MS = 10000;
+
+  // Renewal latency statistics, shared by all instances
+  private static int sRenewalCount = 0;
+  private static long sTotalRenewalLatencyMs = 0;
+  private static long sMaxRenewalLatencyMs = 0;
+
+  private final FrameworkMediaDrm mDelegate;
+  private final HandlerThread mRenewalThread;
+  private final Handler mRenewalHandler;
+  // Open sessions which have a streaming license loaded, by session id
+  private final Map<ByteBuffer, Long> mRenewalStartTimes = new HashMap<>();
+  // Handler tokens of the renewal checks, by session id. Handler compares tokens by identity, so
+  // every post and removal of a session uses the same token object.
+  private final Map<ByteBuffer, Object> mRenewalTokens = new HashMap<>();
+  @Nullable private OnEventListener mEventListener;
+  // Starts at 1 like the reference count of the wrapped FrameworkMediaDrm
+  private int mReferenceCount = 1;
+
+  private RenewingMediaDrm(FrameworkMediaDrm delegate) {
+    mDelegate = delegate;
+    mRenewalThread = new HandlerThread("ExoPlayer:LicenseRenewal");
+    mRenewalThread.start();
+    mRenewalHandler = new Handler(mRenewalThread.getLooper());
+  }
+
+  // Returns renewal latency statistics in a loggable form
+  static synchronized String getRenewalStats() {
+    return "renewals = " + sRenewalCount
+            + ", averageLatencyMs = " + (sRenewalCount == 0 ? 0 : sTotalRenewalLatencyMs / sRenewalCount)
+            + ", maxLatencyMs = " + sMaxRenewalLatencyMs;
+  }
+
+  private static synchronized void recordRenewalLatency(long latencyMs) {
+    sRenewalCount++;
+    sTotalRenewalLatencyMs += latencyMs;
+    sMaxRenewalLatencyMs = Math.max(sMaxRenewalLatencyMs, latencyMs);
+  }
+
+  @Override
+  public void setOnEventListener(@Nullable OnEventListener listener) {
+    synchronized (this) {
+      mEventListener = listener;
+    }
+    mDelegate.setOnEventListener(listener == null ? null
+            : (mediaDrm, sessionId, event, extra, data) ->
+                    listener.onEvent(this, sessionId, event, extra, data));
+  }
+
+  @Override
+  public void setOnKeyStatusChangeListener(@Nullable OnKeyStatusChangeListener listener) {
+    mDelegate.setOnKeyStatusChangeListener(listener == null ? null
+            : (mediaDrm, sessionId, keyInformation, hasNewUsableKey) ->
+                    listener.onKeyStatusChange(this, sessionId, keyInformation, hasNewUsableKey));
+  }
+
+  @Override
+  public void setOnExpirationUpdateListener(@Nullable OnExpirationUpdateListener listener) {
+    mDelegate.setOnExpirationUpdateListener(listener == null ? null
+            : (mediaDrm, sessionId, expirationTimeMs) ->
+                    listener.onExpirationUpdate(this, sessionId, expirationTimeMs));
+  }
+
+  @NonNull
+  @Override
+  public byte[] openSession() throws MediaDrmException {
+    return mDelegate.openSession();
+  }
+
+  @Override
+  public void closeSession(@NonNull byte[] sessionId) {
+    Object renewalToken;
+    synchronized (this) {
+      mRenewalStartTimes.remove(ByteBuffer.wrap(sessionId));
+      renewalToken = mRenewalTokens.remove(ByteBuffer.wrap(sessionId));
+    }
+    if (renewalToken != null) mRenewalHandler.removeCallbacksAndMessages(renewalToken);
+    mDelegate.closeSession(sessionId);
+  }
+
+  @Override
+  public void setPlayerIdForSession(@NonNull byte[] sessionId, @NonNull PlayerId playerId) {
+    mDelegate.setPlayerIdForSession(sessionId, playerId);
+  }
+
+  @NonNull
+  @Override
+  public KeyRequest getKeyRequest(@NonNull byte[] scope,
+                                  @Nullable List<DrmInitData.SchemeData> schemeDatas, int keyType,
+                                  @Nullable HashMap<String, String> optionalParameters)
+          throws NotProvisionedException {
+    return mDelegate.getKeyRequest(scope, schemeDatas, keyType, optionalParameters);
+  }
+
+  @Nullable
+  @Override
+  public byte[] provideKeyResponse(@NonNull byte[] scope, @NonNull byte[] response)
+          throws NotProvisionedException, DeniedByServerException {
+    byte[] keySetId = mDelegate.provideKeyResponse(scope, response);
+    // Streaming licenses are provided with the session id as scope and return no key set id
+    if (keySetId == null || keySetId.length == 0) {
+      onStreamingLicenseLoaded(scope);
+    }
+    return keySetId;
+  }
+
+  private void onStreamingLicenseLoaded(byte[] sessionId) {
+    ByteBuffer sessionKey = ByteBuffer.wrap(sessionId.clone());
+    Long renewalStartTime;
+    synchronized (this) {
+      renewalStartTime = mRenewalStartTimes.put(sessionKey, 0L);
+    }
+    if (renewalStartTime != null && renewalStartTime != 0) {
+      long latencyMs = SystemClock.elapsedRealtime() - renewalStartTime;
+      recordRenewalLatency(latencyMs);
+      Log.d(TAG, "License renewed in " + latencyMs + " ms, " + getRenewalStats());
+    }
+    scheduleRenewal(sessionKey);
+  }
+
+  // Schedules the next renewal check according to the remaining license duration
+  private void scheduleRenewal(ByteBuffer sessionKey) {
+    long remainingSec = getLicenseDurationRemainingSec(sessionKey.array());
+    if (remainingSec == C.TIME_UNSET || remainingSec == Long.MAX_VALUE) {
+      // Unlimited license or unknown duration, nothing to renew
+      return;
+    }
+    long marginSec = Math.max(MIN_RENEWAL_MARGIN_SEC, (long) (remainingSec * RENEWAL_MARGIN_RATIO));
+    long delayMs = Math.max(0, (remainingSec - marginSec) * 1000);
+    Log.d(TAG, "License remaining " + remainingSec + " s, renewal check in " + delayMs + " ms");
+    Object renewalToken = getRenewalToken(sessionKey);
+    if (renewalToken == null) return;
+    mRenewalHandler.removeCallbacksAndMessages(renewalToken);
+    mRenewalHandler.postAtTime(() -> maybeRenew(sessionKey, marginSec), renewalToken,
+            SystemClock.uptimeMillis() + delayMs);
+  }
+
+  // Returns the handler token of the session, or null if the session has been closed
+  @Nullable
+  private synchronized Object getRenewalToken(ByteBuffer sessionKey) {
+    if (!mRenewalStartTimes.containsKey(sessionKey)) return null;
+    Object renewalToken = mRenewalTokens.get(sessionKey);
+    if (renewalToken == null) {
+      renewalToken = new Object();
+      mRenewalTokens.put(sessionKey, renewalToken);
+    }
+    return renewalToken;
+  }
+
+  private void maybeRenew(ByteBuffer sessionKey, long marginSec) {
+    OnEventListener eventListener;
+    synchronized (this) {
+      if (!mRenewalStartTimes.containsKey(sessionKey)) return;
+      long remainingSec = getLicenseDurationRemainingSec(sessionKey.array());
+      if (remainingSec != C.TIME_UNSET && remainingSec > marginSec) {
+        scheduleRenewal(sessionKey);
+        return;
+      }
+      Long renewalStartTime = mRenewalStartTimes.get(sessionKey);
+      if (renewalStartTime == null || renewalStartTime == 0) {
+        mRenewalStartTimes.put(sessionKey, SystemClock.elapsedRealtime());
+      }
+      eventListener = mEventListener;
+    }
+    if (eventListener == null) return;
+    Log.d(TAG, "Requesting license renewal in the background");
+    eventListener.onEvent(this, sessionKey.array(), EVENT_KEY_REQUIRED, 0, null);
+    // Check again later in case the renewal request failed
+    Object renewalToken = getRenewalToken(sessionKey);
+    if (renewalToken == null) return;
+    mRenewalHandler.postAtTime(() -> maybeRenew(sessionKey, marginSec), renewalToken,
+            SystemClock.uptimeMillis() + RETRY_INTERVAL_MS);
+  }
+
+  private long getLicenseDurationRemainingSec(byte[] sessionId) {
+    try {
+      String value = mDelegate.queryKeyStatus(sessionId).get(PROPERTY_LICENSE_DURATION_REMAINING);
+      if (value != null) return Long.parseLong(value);
+    } catch (RuntimeException e) {
+      // Session closed or value not available
+    }
+    return C.TIME_UNSET;
+  }
+
+  @NonNull
+  @Override
+  public ProvisionRequest getProvisionRequest() {
+    return mDelegate.getProvisionRequest();
+  }
+
+  @Override
+  public void provideProvisionResponse(@NonNull byte[] response) throws DeniedByServerException {
+    mDelegate.provideProvisionResponse(response);
+  }
+
+  @NonNull
+  @Override
+  public Map<String, String> queryKeyStatus(@NonNull byte[] sessionId) {
+    return mDelegate.queryKeyStatus(sessionId);
+  }
+
+  @Override
+  public boolean requiresSecureDecoder(@NonNull byte[] sessionId, @NonNull String mimeType) {
+    return mDelegate.requiresSecureDecoder(sessionId, mimeType);
+  }
+
+  @Override
+  public synchronized void acquire() {
+    mReferenceCount++;
+    mDelegate.acquire();
+  }
+
+  @Override
+  public synchronized void release() {
+    mDelegate.release();
+    if (--mReferenceCount == 0) {
+      mRenewalHandler.removeCallbacksAndMessages(null);
+      mRenewalThread.quitSafely();
+    }
+  }
+
+  @Override
+  public void restoreKeys(@NonNull byte[] sessionId, @NonNull byte[] keySetId) {
+    mDelegate.restoreKeys(sessionId, keySetId);
+  }
+
+  @Nullable
+  @Override
+  public PersistableBundle getMetrics() {
+    return mDelegate.getMetrics();
+  }
+
+  @NonNull
+  @Override
+  public String getPropertyString(@NonNull String propertyName) {
+    return mDelegate.getPropertyString(propertyName);
+  }
+
+  @NonNull
+  @Override
+  public byte[] getPropertyByteArray(@NonNull String propertyName) {
+    return mDelegate.getPropertyByteArray(propertyName);
+  }
+
+  @Override
+  public void setPropertyString(@NonNull String propertyName, @NonNull String value) {
+    mDelegate.setPropertyString(propertyName, value);
+  }
+
+  @Override
+  public void setPropertyByteArray(@NonNull String propertyName, @NonNull byte[] value) {
+    mDelegate.setPropertyByteArray(propertyName, value);
+  }
+
+  @NonNull
+  @Override
+  public CryptoConfig createCryptoConfig(@NonNull byte[] sessionId) throws MediaCryptoException {
+    return mDelegate.createCryptoConfig(sessionId);
+  }
+
+  @Override
+  public int getCryptoType() {
+    return mDelegate.getCryptoType();
+  }
+}
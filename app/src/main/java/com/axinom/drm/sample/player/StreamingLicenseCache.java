@@ -0,0 +1,166 @@
+package com.axinom.drm.sample.player;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.text.TextUtils;
+import android.util.Log;
+
+import com.axinom.drm.sample.license.internal.model.DrmMessage;
+import com.axinom.drm.sample.license.internal.utils.DrmUtils;
+import com.google.android.exoplayer2.drm.DefaultDrmSessionManager;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * An opt-in cache of streaming licenses for online playback. Streaming licenses are bound to the
+ * DRM session they were requested for, so instead of license bytes the cache keeps the
+ * {@link DefaultDrmSessionManager} alive together with its sessions (using session keepalive).
+ * Replaying the same content while the entry is valid reuses the open session and its keys, so no
+ * license request is made.
+ *
+ * <p>Entries are keyed by license server URL and the content key ids listed in the DRM message.
+ * Content is cached only if the DRM message lists its key ids and the keys are not chosen by the
+ * license server based on the request. The time to live is bounded by the license duration from
+ * the DRM message.
+ *
+ * <p>A session manager can only serve players that share its playback thread, so players using
+ * the cache must be built with {@link #getPlaybackLooper()}.
+ */
+final class StreamingLicenseCache {
+
+  // Builds a DRM session manager that keeps its sessions alive for the given time
+  interface DrmSessionManagerFactory {
+    DefaultDrmSessionManager create(long sessionKeepaliveMs);
+  }
+
+  private static final String TAG = StreamingLicenseCache.class.getSimpleName();
+  // Default time to live of cached licenses
+  private static final long DEFAULT_TTL_MS = 5 * 60 * 1000;
+  // Cached license should not be used this close to the license expiry
+  private static final long LICENSE_EXPIRY_MARGIN_MS = 30 * 1000;
+
+  private static StreamingLicenseCache sInstance;
+
+  private final Handler mPlaybackHandler;
+  private final Map<String, Entry> mEntries = new HashMap<>();
+  private long mTtlMs = DEFAULT_TTL_MS;
+  private int mHitCount = 0;
+  private int mMissCount = 0;
+
+  private static class Entry {
+    final DefaultDrmSessionManager drmSessionManager;
+    final long expiresAtMs;
+
+    Entry(DefaultDrmSessionManager drmSessionManager, long expiresAtMs) {
+      this.drmSessionManager = drmSessionManager;
+      this.expiresAtMs = expiresAtMs;
+    }
+  }
+
+  private StreamingLicenseCache() {
+    HandlerThread playbackThread = new HandlerThread("ExoPlayer:LicenseCachePlayback");
+    playbackThread.start();
+    mPlaybackHandler = new Handler(playbackThread.getLooper());
+  }
+
+  static synchronized StreamingLicenseCache getInstance() {
+    if (sInstance == null) {
+      sInstance = new StreamingLicenseCache();
+    }
+    return sInstance;
+  }
+
+  // Playback looper that must be used by players using cached DRM session managers
+  Looper getPlaybackLooper() {
+    return mPlaybackHandler.getLooper();
+  }
+
+  // Sets the maximum time a license is kept in the cache
+  synchronized void setTtlMs(long ttlMs) {
+    mTtlMs = ttlMs;
+  }
+
+  /**
+   * Returns a cached DRM session manager for the content, creating and caching one on a miss.
+   *
+   * @param licenseUrl license server URL
+   * @param drmToken   DRM message (token)
+   * @param factory    factory for creating a new DRM session manager
+   * @return DRM session manager, or null if caching is not allowed for this content
+   */
+  synchronized DefaultDrmSessionManager get(String licenseUrl, String drmToken,
+                                            DrmSessionManagerFactory factory) {
+    DrmMessage drmMessage = TextUtils.isEmpty(drmToken) ? null : DrmUtils.parseDrmString(drmToken);
+    String key = getCacheKey(licenseUrl, drmMessage);
+    if (key == null) return null;
+    evictExpired();
+
+    Entry entry = mEntries.get(key);
+    if (entry != null) {
+      mHitCount++;
+      Log.d(TAG, "License cache hit for " + key + ", hits = " + mHitCount
+              + ", misses = " + mMissCount);
+      return entry.drmSessionManager;
+    }
+
+    long ttlMs = getTtlMs(drmMessage);
+    if (ttlMs <= 0) return null;
+    mMissCount++;
+    Log.d(TAG, "License cache miss for " + key + ", caching for " + ttlMs + " ms"
+            + ", hits = " + mHitCount + ", misses = " + mMissCount);
+    DefaultDrmSessionManager drmSessionManager = factory.create(ttlMs);
+    // The cache holds its own reference, so sessions survive the release of the player
+    drmSessionManager.prepare();
+    mEntries.put(key, new Entry(drmSessionManager, SystemClock.elapsedRealtime() + ttlMs));
+    mPlaybackHandler.postDelayed(this::evictExpired, ttlMs);
+    return drmSessionManager;
+  }
+
+  // Drops all cached licenses
+  synchronized void clear() {
+    for (Entry entry : mEntries.values()) {
+      releaseOnPlaybackThread(entry.drmSessionManager);
+    }
+    mEntries.clear();
+  }
+
+  private synchronized void evictExpired() {
+    long now = SystemClock.elapsedRealtime();
+    Iterator<Entry> iterator = mEntries.values().iterator();
+    while (iterator.hasNext()) {
+      Entry entry = iterator.next();
+      if (entry.expiresAtMs <= now) {
+        releaseOnPlaybackThread(entry.drmSessionManager);
+        iterator.remove();
+      }
+    }
+  }
+
+  private void releaseOnPlaybackThread(DefaultDrmSessionManager drmSessionManager) {
+    mPlaybackHandler.post(drmSessionManager::release);
+  }
+
+  private long getTtlMs(DrmMessage drmMessage) {
+    long ttlMs = mTtlMs;
+    if (drmMessage.licenseDuration > 0) {
+      ttlMs = Math.min(ttlMs, drmMessage.licenseDuration * 1000 - LICENSE_EXPIRY_MARGIN_MS);
+    }
+    return ttlMs;
+  }
+
+  // Returns the cache key, or null if the DRM message does not allow caching
+  private static String getCacheKey(String licenseUrl, DrmMessage drmMessage) {
+    if (TextUtils.isEmpty(licenseUrl) || drmMessage == null
+            || drmMessage.keysBasedOnRequest || drmMessage.keyIds.length == 0) {
+      return null;
+    }
+    String[] keyIds = drmMessage.keyIds.clone();
+    Arrays.sort(keyIds);
+    return licenseUrl + "|" + TextUtils.join(",", keyIds);
+  }
+}